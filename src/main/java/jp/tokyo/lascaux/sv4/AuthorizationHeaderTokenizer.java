@@ -0,0 +1,218 @@
+package jp.tokyo.lascaux.sv4;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params.Credential;
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+
+/**
+ * <pre>
+ * Authorizationヘッダーを正規表現を使用せずに1回の走査で分解するクラスです。
+ * 分解した結果は元の文字列上の位置として保持し、取得時に必要な部分だけを切り出します
+ * 以下の形式を受け付けます
+ * 　アルゴリズム名 Credential=xxx, SignedHeaders=xxx, Signature=xxx
+ * ・Credential、SignedHeaders、Signatureの順番は問いません
+ * ・パラメータ名の大文字小文字は区別しません
+ * ・先頭、末尾、カンマの前後の空白は無視します
+ * 形式が間違っている場合は、位置を含めたメッセージでSignatureV4Exceptionをスローします
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+final class AuthorizationHeaderTokenizer {
+	private static final String CREDENTIAL = "Credential";
+	private static final String SIGNED_HEADERS = "SignedHeaders";
+	private static final String SIGNATURE = "Signature";
+	private String header;
+	private int algorithmStart;
+	private int algorithmEnd;
+	private int credentialStart;
+	private int credentialEnd;
+	private int signedHeadersStart;
+	private int signedHeadersEnd;
+	private int signatureStart;
+	private int signatureEnd;
+
+	/**
+	 * Authorizationヘッダーを分解します。
+	 *
+	 * @param header Authorizationヘッダーの値
+	 * @throws SignatureV4Exception 形式が間違っている場合
+	 */
+	void tokenize(String header) throws SignatureV4Exception {
+		this.header = header;
+		credentialStart = -1;
+		signedHeadersStart = -1;
+		signatureStart = -1;
+		int length = header.length();
+		int i = skipWhitespace(0);
+		algorithmStart = i;
+		while (i < length && !isWhitespace(header.charAt(i))) {
+			i++;
+		}
+		algorithmEnd = i;
+		if (algorithmStart == algorithmEnd) {
+			throw error(i, "アルゴリズム名がありません。");
+		}
+		i = skipWhitespace(i);
+		if (i == length) {
+			throw error(i, "アルゴリズム名の後にパラメータがありません。");
+		}
+		for (;;) {
+			int nameStart = i;
+			while (i < length && header.charAt(i) != '=' && header.charAt(i) != ','
+					&& !isWhitespace(header.charAt(i))) {
+				i++;
+			}
+			if (i == length || header.charAt(i) != '=') {
+				throw error(i, "パラメータ名の後に\"=\"がありません。");
+			}
+			int nameEnd = i++;
+			int valueStart = i;
+			while (i < length && header.charAt(i) != ',' && !isWhitespace(header.charAt(i))) {
+				i++;
+			}
+			if (valueStart == i) {
+				throw error(i, "パラメータの値がありません。");
+			}
+			assign(nameStart, nameEnd, valueStart, i);
+			i = skipWhitespace(i);
+			if (i == length) {
+				break;
+			}
+			if (header.charAt(i) != ',') {
+				throw error(i, "パラメータの区切り文字\",\"がありません。");
+			}
+			i = skipWhitespace(i + 1);
+			if (i == length) {
+				throw error(i, "\",\"の後にパラメータがありません。");
+			}
+		}
+		if (credentialStart < 0) {
+			throw error(length, "Credentialがありません。");
+		}
+		if (signedHeadersStart < 0) {
+			throw error(length, "SignedHeadersがありません。");
+		}
+		if (signatureStart < 0) {
+			throw error(length, "Signatureがありません。");
+		}
+	}
+
+	String getAlgorithm() {
+		return header.substring(algorithmStart, algorithmEnd);
+	}
+
+	String getCredentialString() {
+		return header.substring(credentialStart, credentialEnd);
+	}
+
+	Credential getCredential() throws SignatureV4Exception {
+		return parseCredential(header, credentialStart, credentialEnd);
+	}
+
+	SortedSet<String> getLowerSignedHeaders() {
+		return parseLowerSignedHeaders(header, signedHeadersStart, signedHeadersEnd);
+	}
+
+	String getSignature() {
+		return header.substring(signatureStart, signatureEnd);
+	}
+
+	/**
+	 * <pre>
+	 * 文字列の指定範囲を"/"で区切られた5つの値として資格情報を作成します。
+	 * 区切りの数が違う場合はSignatureV4Exceptionをスローします
+	 * </pre>
+	 */
+	static Credential parseCredential(String s, int start, int end) throws SignatureV4Exception {
+		int[] slashes = new int[4];
+		int count = 0;
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) == '/') {
+				if (count == slashes.length) {
+					count++;
+					break;
+				}
+				slashes[count++] = i;
+			}
+		}
+		if (count != slashes.length) {
+			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS,
+					"credentialは/で区切られた5つの値である必要があります。 [" + s.substring(start, end) + "]");
+		}
+		return new Credential(s.substring(start, slashes[0]), s.substring(slashes[0] + 1,
+				slashes[1]), s.substring(slashes[1] + 1, slashes[2]), s.substring(slashes[2] + 1,
+				slashes[3]), s.substring(slashes[3] + 1, end));
+	}
+
+	/**
+	 * 文字列の指定範囲を";"で区切り、小文字に変換してソートしたSetを返します。空の要素は無視します。
+	 */
+	static SortedSet<String> parseLowerSignedHeaders(String s, int start, int end) {
+		SortedSet<String> set = new TreeSet<>();
+		int segmentStart = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || s.charAt(i) == ';') {
+				if (i > segmentStart) {
+					set.add(s.substring(segmentStart, i).toLowerCase());
+				}
+				segmentStart = i + 1;
+			}
+		}
+		return set;
+	}
+
+	private void assign(int nameStart, int nameEnd, int valueStart, int valueEnd)
+			throws SignatureV4Exception {
+		if (nameIs(CREDENTIAL, nameStart, nameEnd)) {
+			checkDuplicate(credentialStart, CREDENTIAL, nameStart);
+			credentialStart = valueStart;
+			credentialEnd = valueEnd;
+		} else if (nameIs(SIGNED_HEADERS, nameStart, nameEnd)) {
+			checkDuplicate(signedHeadersStart, SIGNED_HEADERS, nameStart);
+			signedHeadersStart = valueStart;
+			signedHeadersEnd = valueEnd;
+		} else if (nameIs(SIGNATURE, nameStart, nameEnd)) {
+			checkDuplicate(signatureStart, SIGNATURE, nameStart);
+			signatureStart = valueStart;
+			signatureEnd = valueEnd;
+		} else {
+			throw error(nameStart,
+					String.format("不明なパラメータです。 [%s]", header.substring(nameStart, nameEnd)));
+		}
+	}
+
+	private boolean nameIs(String name, int nameStart, int nameEnd) {
+		return nameEnd - nameStart == name.length()
+				&& header.regionMatches(true, nameStart, name, 0, name.length());
+	}
+
+	private void checkDuplicate(int currentStart, String name, int position)
+			throws SignatureV4Exception {
+		if (currentStart >= 0) {
+			throw error(position, String.format("%sが重複しています。", name));
+		}
+	}
+
+	private int skipWhitespace(int i) {
+		while (i < header.length() && isWhitespace(header.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * 正規表現の\sと同じ文字を空白とします。
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+	}
+
+	private SignatureV4Exception error(int position, String message) {
+		return new SignatureV4Exception(ErrorType.INVALID_PARAMS, String.format(
+				"Authorizationヘッダーの形式が間違っています。%s position [%d], authorization [%s]", message,
+				position, header));
+	}
+}
@@ -0,0 +1,222 @@
+package jp.tokyo.lascaux.sv4;
+
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+
+import org.apache.commons.codec.binary.Hex;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params.KeyValuesMap;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ParameterType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+import jp.tokyo.lascaux.sv4.util.SignatureV4Util;
+
+/**
+ * <pre>
+ * 正規化されたリクエストを文字列として組み立てずに、UTF-8のバイト列として直接ダイジェストに書き込むクラスです。
+ * 書き込む内容は{@link SignatureV4Validator#createCanonicalRequest}と同じです
+ * ヘッダーの値のトリムと、値が1つのヘッダーの書き込みでは文字列やリストを作成しません
+ * URIは正規化済みの場合はそのまま書き込みますが、正規化が必要な場合とクエリーは
+ * {@link SignatureV4Util}で正規化した文字列を作成してから書き込みます（クエリーは並べ替えが必要なため）
+ * 書き込み用のバッファはスレッド毎に保持して使い回し、ダイジェストは{@link ReusableSHAAlgorithm}のスレッド毎のものを使用するので、
+ * {@link #getInstance()}で取得したインスタンスは取得したスレッド内でのみ使用してください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+final class CanonicalRequestWriter {
+	private static final int BUFFER_SIZE = 1024;
+	private static final ThreadLocal<CanonicalRequestWriter> WRITERS = new ThreadLocal<CanonicalRequestWriter>() {
+		@Override
+		protected CanonicalRequestWriter initialValue() {
+			return new CanonicalRequestWriter();
+		}
+	};
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	//hashCanonicalRequestの間だけ設定する、ReusableSHAAlgorithmのスレッド毎のダイジェスト
+	private MessageDigest digest;
+	private int position;
+
+	private CanonicalRequestWriter() {
+	}
+
+	/**
+	 * 呼び出したスレッド用のインスタンスを返します。
+	 *
+	 * @return このスレッド用のインスタンス
+	 */
+	static CanonicalRequestWriter getInstance() {
+		return WRITERS.get();
+	}
+
+	/**
+	 * 正規化されたリクエストをハッシュ化した16進数文字列を返します。
+	 *
+	 * @param params SV4パラメータ
+	 * @param hashType ハッシュアルゴリズムタイプ
+	 * @param parameterType パラメータタイプ
+	 * @return 正規化されたリクエストのハッシュ値
+	 * @throws Exception
+	 */
+	String hashCanonicalRequest(SignatureV4Params params, HashType hashType,
+			ParameterType parameterType) throws Exception {
+		//ペイロードのハッシュ化は同じダイジェストを使用するので、書き込みを始める前に行う
+		String payloadHash = SignatureV4Validator.resolvePayloadHash(params, hashType);
+		digest = ReusableSHAAlgorithm.getInstance(hashType).getDigest();
+		position = 0;
+		write(params.getMethod());
+		write(SignatureV4Util.LINE_SEPARATOR);
+		write(SignatureV4Util.normalizeUri(params.getRequestUri(),
+				SignatureV4Validator.getUriNormalizationRule(params)));
+		write(SignatureV4Util.LINE_SEPARATOR);
+		String encodedKeySortedQueries = SignatureV4Util.createCanonicalQueries(params,
+				parameterType);
+		if (encodedKeySortedQueries != null) {
+			write(encodedKeySortedQueries);
+		}
+		write(SignatureV4Util.LINE_SEPARATOR);
+		SortedSet<String> lowerSignedHeaders = params.getLowerSignedHeaders(parameterType);
+		writeCanonicalHeaders(params.getHeaders(), lowerSignedHeaders);
+		write(SignatureV4Util.LINE_SEPARATOR);
+		boolean notFirst = false;
+		for (String signedHeader : lowerSignedHeaders) {
+			if (notFirst) {
+				write(';');
+			}
+			write(signedHeader);
+			notFirst = true;
+		}
+		write(SignatureV4Util.LINE_SEPARATOR);
+		write(payloadHash);
+		flush();
+		String hashed = new String(Hex.encodeHex(digest.digest()));
+		digest = null;
+		return hashed;
+	}
+
+	/**
+	 * {@link SignatureV4Validator#createCanonicalHeaders}と同じ内容を、各行の改行を含めて書き込みます。
+	 */
+	private void writeCanonicalHeaders(KeyValuesMap headers, SortedSet<String> lowerSignedHeaders) {
+		for (String key : lowerSignedHeaders) {
+			if ("authorization".equals(key)) {
+				continue;
+			}
+			int count = headers.countByLowerKey(key);
+			if (count == 0) {
+				continue;
+			}
+			write(key);
+			write(':');
+			if (count == 1) {
+				writeTrimmedHeaderValue(headers.getSingleByLowerKey(key));
+				write(SignatureV4Util.LINE_SEPARATOR);
+				continue;
+			}
+			//複数の値は並べ替えが必要なので、リストを作成する
+			List<String> values = headers.getValuesByLowerKey(key);
+			Collections.sort(values);
+			boolean b = false;
+			for (String s : values) {
+				if (b) {
+					write(',');
+				}
+				b = true;
+				writeTrimmedHeaderValue(s);
+			}
+			write(SignatureV4Util.LINE_SEPARATOR);
+		}
+	}
+
+	/**
+	 * {@link SignatureV4Util#trimHeaderValue(String)}と同じ変換を、文字列を作成せずに行いながら書き込みます。
+	 */
+	private void writeTrimmedHeaderValue(String value) {
+		if (value == null) {
+			write("null");
+			return;
+		}
+		int start = 0;
+		int end = value.length();
+		while (start < end && value.charAt(start) <= ' ') {
+			start++;
+		}
+		while (start < end && value.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (start == end) {
+			return;
+		}
+		char first = value.charAt(start);
+		char last = value.charAt(end - 1);
+		boolean quoted = first == '"' || first == '\'' || last == '"' || last == '\'';
+		boolean previousSpace = false;
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (c == ' ' && !quoted) {
+				if (previousSpace) {
+					continue;
+				}
+				previousSpace = true;
+			} else {
+				previousSpace = false;
+			}
+			i = write(value, i);
+		}
+	}
+
+	private void write(String s) {
+		for (int i = 0, length = s.length(); i < length; i++) {
+			i = write(s, i);
+		}
+	}
+
+	/**
+	 * 文字列のindex番目の文字をUTF-8で書き込み、最後に処理した文字の位置を返します。
+	 * サロゲートペアの場合は2文字分処理します
+	 */
+	private int write(String s, int index) {
+		char c = s.charAt(index);
+		if (c < 0x80) {
+			write((byte) c);
+		} else if (c < 0x800) {
+			write((byte) (0xc0 | (c >> 6)));
+			write((byte) (0x80 | (c & 0x3f)));
+		} else if (Character.isSurrogate(c)) {
+			if (Character.isHighSurrogate(c) && index + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(index + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(index + 1));
+				write((byte) (0xf0 | (cp >> 18)));
+				write((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				write((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				write((byte) (0x80 | (cp & 0x3f)));
+				return index + 1;
+			}
+			//String#getBytes(UTF-8)と同じく、不正なサロゲートは'?'に置き換える
+			write((byte) '?');
+		} else {
+			write((byte) (0xe0 | (c >> 12)));
+			write((byte) (0x80 | ((c >> 6) & 0x3f)));
+			write((byte) (0x80 | (c & 0x3f)));
+		}
+		return index;
+	}
+
+	private void write(char c) {
+		write((byte) c);
+	}
+
+	private void write(byte b) {
+		if (position == buffer.length) {
+			flush();
+		}
+		buffer[position++] = b;
+	}
+
+	private void flush() {
+		digest.update(buffer, 0, position);
+		position = 0;
+	}
+}
@@ -0,0 +1,38 @@
+package jp.tokyo.lascaux.sv4;
+
+/**
+ * <pre>
+ * {@link SignatureV4RequestParser}のパース方法を指定するオプションです。
+ * 何も指定しない場合は、従来通りボディを文字列として読み込みます
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public enum ParseOption {
+	/**
+	 * <pre>
+	 * ボディを文字列として保持せず、入力ストリームから直接ハッシュ化します。
+	 * パラメータにはペイロードのハッシュ値のみが保持され、getPayload()はnullを返します
+	 * ボディの大きさに関わらず使用するメモリは一定になります
+	 * </pre>
+	 */
+	STREAM_PAYLOAD,
+	/**
+	 * <pre>
+	 * 先にAuthorizationヘッダー（ない場合はクエリー）から署名対象のヘッダー名を取得し、
+	 * 署名対象のヘッダーと検証に必要なヘッダー（host、date、日付、有効期限、ペイロードハッシュ）のみを
+	 * HttpServletRequestから取得します
+	 * それ以外のヘッダーはgetHeaders()に含まれません。また、キーはすべて小文字になります
+	 * </pre>
+	 */
+	SIGNED_HEADERS_ONLY,
+	/**
+	 * <pre>
+	 * 正規化されたクエリー文字列を、getParameterMap()のデコード済みの値ではなく
+	 * getQueryString()の生の値から作成します
+	 * デコードと再エンコードを行わないため、長いクエリーを持つ署名付きURLで効果があります
+	 * また、フォームのボディのパラメータがクエリーとして扱われることもありません
+	 * </pre>
+	 */
+	RAW_QUERY_STRING;
+}
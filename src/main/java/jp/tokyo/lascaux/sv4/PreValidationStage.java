@@ -0,0 +1,142 @@
+package jp.tokyo.lascaux.sv4;
+
+import org.apache.commons.lang.StringUtils;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params.Credential;
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ParameterType;
+import jp.tokyo.lascaux.sv4.entity.SignatureProfile;
+import jp.tokyo.lascaux.sv4.time.Timestamps;
+
+/**
+ * <pre>
+ * ハッシュ化や署名の計算を行う前に、安価な確認だけでリクエストを拒否するための検証段階です。
+ * 定義された順番に実行し、最初に失敗した段階でSignatureV4Exceptionをスローします
+ * 古いリクエストや改ざんされたリクエストを大量に送られた場合でも、署名を計算せずに拒否できます
+ * 段階毎の拒否数は{@link PreValidationStatistics}で確認できます
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public enum PreValidationStage {
+	/** 必須パラメータの有無とフォーマット */
+	PARAMS {
+		@Override
+		void check(SignatureProfile profile, SignatureV4Params params, long now)
+				throws SignatureV4Exception {
+			SignatureV4Validator.validateParams(profile, params);
+		}
+	},
+	/** 有効期限（0秒から{@link #MAX_EXPIRE_SECONDS}秒まで） */
+	EXPIRE {
+		@Override
+		void check(SignatureProfile profile, SignatureV4Params params, long now)
+				throws SignatureV4Exception {
+			ParameterType parameterType = profile.getParameterType();
+			String expireString = params.getExpire(parameterType);
+			if (StringUtils.isEmpty(expireString)) {
+				return;
+			}
+			long expireSeconds;
+			try {
+				expireSeconds = Long.parseLong(expireString);
+			} catch (NumberFormatException e) {
+				throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, String.format(
+						"有効期限のフォーマットが間違っています。 [%s]", expireString), e);
+			}
+			if (expireSeconds < 0 || expireSeconds > MAX_EXPIRE_SECONDS) {
+				throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, String.format(
+						"有効期限は0から%d秒の間で指定してください。 [%s]", MAX_EXPIRE_SECONDS,
+						expireString));
+			}
+			long date = Timestamps.parseIso8601Basic(params.getDate(parameterType));
+			if (date + expireSeconds < now) {
+				throw new SignatureV4Exception(ErrorType.EXPIRE, String.format(
+						"有効期限が切れていました。expireDate [%s], currentDate [%s]",
+						Timestamps.formatIso8601Basic(date + expireSeconds),
+						Timestamps.formatIso8601Basic(now)));
+			}
+		}
+	},
+	/**
+	 * <pre>
+	 * リクエストの日付と現在時刻のずれ
+	 * 有効期限がある場合は、期限切れは{@link #EXPIRE}で判定するため未来の日付のみを確認します
+	 * </pre>
+	 */
+	CLOCK_SKEW {
+		@Override
+		void check(SignatureProfile profile, SignatureV4Params params, long now)
+				throws SignatureV4Exception {
+			long maxClockSkew = profile.getMaxClockSkewSeconds();
+			if (maxClockSkew <= 0) {
+				return;
+			}
+			ParameterType parameterType = profile.getParameterType();
+			long date = Timestamps.parseIso8601Basic(params.getDate(parameterType));
+			boolean tooOld = StringUtils.isEmpty(params.getExpire(parameterType))
+					&& date < now - maxClockSkew;
+			if (tooOld || date > now + maxClockSkew) {
+				throw new SignatureV4Exception(ErrorType.TIME_SKEWED, String.format(
+						"リクエストの日付と現在時刻のずれが大きすぎます。requestDate [%s], currentDate [%s]",
+						params.getDate(parameterType), Timestamps.formatIso8601Basic(now)));
+			}
+		}
+	},
+	/** 資格情報のスコープ（要求日付、地域、要求サービス、終了文字列） */
+	SCOPE {
+		@Override
+		void check(SignatureProfile profile, SignatureV4Params params, long now)
+				throws SignatureV4Exception {
+			Credential credential = params.getCredential();
+			if (!credential.getRegion().equals(profile.getRegion())) {
+				throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "資格情報の\"地域\"が間違っています。");
+			}
+			if (!credential.getRequestService().equals(profile.getService())) {
+				throw new SignatureV4Exception(ErrorType.INVALID_PARAMS,
+						"資格情報の\"要求サービス\"が間違っています。");
+			}
+			if (!credential.getConstString().equals(profile.getEndString())) {
+				throw new SignatureV4Exception(ErrorType.INVALID_PARAMS,
+						"資格情報の\"終了文字列\"が間違っています。");
+			}
+			if (!params.getDate(profile.getParameterType()).startsWith(credential.getRequestDate())) {
+				throw new SignatureV4Exception(ErrorType.WRONG_DATE,
+						"資格情報の\"要求日付\"とヘッダーあるいはクエリーの日付が違っています。");
+			}
+		}
+	},
+	/** シグネチャーの長さと文字（小文字の16進数） */
+	SIGNATURE_FORMAT {
+		@Override
+		void check(SignatureProfile profile, SignatureV4Params params, long now)
+				throws SignatureV4Exception {
+			HashType hashType = profile.getHashType(params.getAlgorithm());
+			String signature = params.getSignature();
+			boolean valid = signature.length() == hashType.getHashLength() * 2;
+			for (int i = 0; valid && i < signature.length(); i++) {
+				char c = signature.charAt(i);
+				valid = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+			}
+			if (!valid) {
+				throw new SignatureV4Exception(ErrorType.WRONG_SIGNATURE, String.format(
+						"シグネチャーのフォーマットが間違っています。 signed signature [%s]", signature));
+			}
+		}
+	};
+
+	/** 有効期限として指定できる最大の秒数（7日） */
+	static final long MAX_EXPIRE_SECONDS = 7 * 24 * 60 * 60;
+
+	/**
+	 * この段階の検証を行います。
+	 *
+	 * @param profile プロファイル
+	 * @param params SignatureVersion4パラメータ
+	 * @param now 現在時刻（エポック秒）
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	abstract void check(SignatureProfile profile, SignatureV4Params params, long now)
+			throws SignatureV4Exception;
+}
@@ -0,0 +1,52 @@
+package jp.tokyo.lascaux.sv4;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <pre>
+ * 署名の計算前の検証（{@link PreValidationStage}）で拒否されたリクエストの数を段階毎に集計するクラスです。
+ * 古いリクエストなどを大量に送られていないかの監視に使用してください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class PreValidationStatistics {
+	private final AtomicLongArray rejectedCounts = new AtomicLongArray(
+			PreValidationStage.values().length);
+
+	void incrementRejectedCount(PreValidationStage stage) {
+		rejectedCounts.incrementAndGet(stage.ordinal());
+	}
+
+	/**
+	 * 指定した段階で拒否された数を返します。
+	 *
+	 * @param stage 検証段階
+	 * @return 拒否された数
+	 */
+	public long getRejectedCount(PreValidationStage stage) {
+		return rejectedCounts.get(stage.ordinal());
+	}
+
+	/**
+	 * すべての段階で拒否された数の合計を返します。
+	 *
+	 * @return 拒否された数の合計
+	 */
+	public long getTotalRejectedCount() {
+		long total = 0;
+		for (int i = 0; i < rejectedCounts.length(); i++) {
+			total += rejectedCounts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * 集計をクリアします。
+	 */
+	public void clear() {
+		for (int i = 0; i < rejectedCounts.length(); i++) {
+			rejectedCounts.set(i, 0);
+		}
+	}
+}
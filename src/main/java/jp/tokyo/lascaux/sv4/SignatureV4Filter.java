@@ -0,0 +1,678 @@
+package jp.tokyo.lascaux.sv4;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+import jp.tokyo.lascaux.sv4.entity.SignatureType;
+import jp.tokyo.lascaux.sv4.payload.PayloadBuffer;
+import jp.tokyo.lascaux.sv4.payload.StandardPayloadHashStrategy;
+import jp.tokyo.lascaux.sv4.secret.SecretProvider;
+
+/**
+ * <pre>
+ * SignatureVersion4の検証を行うサーブレットフィルターです。
+ * 非同期処理に対応したリクエストでは、ボディを{@link ReadListener}で届いた分だけ読み込んで保持し、
+ * 読み込みを待つ間はコンテナのスレッドを使用しません
+ * 読み込みが終わると、ボディのハッシュ化から検証までをエグゼキューターで行い、成功した場合はリクエストを再ディスパッチして
+ * 後続のフィルターとサーブレットに、読み込んだボディを再度読み込める{@link VerifiedBodyRequestWrapper}を渡します
+ * ・フィルターとサーブレットは非同期処理に対応（async-supported）させ、フィルターはASYNCのディスパッチにも適用してください
+ * ・非同期処理に対応していないリクエストでは、呼び出したスレッドでボディを読み込んで検証します
+ * ・ペイロードのハッシュ値が"UNSIGNED-PAYLOAD"で宣言されている場合は、ボディを読み込まずに検証して、そのまま後続に渡します
+ * 　この場合も非同期処理に対応したリクエストでは、秘密鍵の取得と検証はエグゼキューターで行い、成功した場合に再ディスパッチします
+ * ・"STREAMING-AWS4-HMAC-SHA256-PAYLOAD"などのaws-chunked形式の場合は、後続にはデコードしたボディを渡し、
+ * 　チャンクのシグネチャーは後続が読み込む際に検証します（失敗した場合は読み込みでIOExceptionがスローされます）
+ * 　チャンクのシグネチャーがない形式（"STREAMING-UNSIGNED-PAYLOAD-TRAILER"など）は拒否します
+ * 検証結果は{@link #RESULT_ATTRIBUTE}、SV4パラメータは{@link #PARAMS_ATTRIBUTE}のリクエスト属性に設定します
+ * 検証に失敗した場合は{@link #reject}でエラーを返します
+ * 初期化パラメータ
+ * ・signature-type：シグネチャーのタイプ（{@link SignatureType}の名前）
+ * ・secret-provider：引数なしのコンストラクターを持つ{@link SecretProvider}の実装クラス名
+ * 読み込むボディの最大サイズなどは、application-sv4.confの"servlet.filter"で設定します
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class SignatureV4Filter implements Filter {
+	/** 検証結果（{@link ValidationResult}）を設定するリクエスト属性名 */
+	public static final String RESULT_ATTRIBUTE = SignatureV4Filter.class.getName() + ".result";
+	/** 検証したSV4パラメータを設定するリクエスト属性名 */
+	public static final String PARAMS_ATTRIBUTE = SignatureV4Filter.class.getName() + ".params";
+	//再ディスパッチで後続に渡すリクエスト
+	private static final String VERIFIED_REQUEST_ATTRIBUTE = SignatureV4Filter.class.getName()
+			+ ".verifiedRequest";
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final String STREAMING_PAYLOAD_PREFIX = "STREAMING-";
+	private static final String STREAMING_PAYLOAD_SUFFIX = "-PAYLOAD";
+	//ボディは自前で保持するので、ハッシュ化の際に文字列として保持しない
+	private final SignatureV4RequestParser parser = new SignatureV4RequestParser(
+			ParseOption.STREAM_PAYLOAD);
+	private SignatureType signatureType;
+	private SecretProvider secretProvider;
+	private Executor executor;
+	private boolean ownsSecretProvider;
+	private long asyncTimeoutMillis;
+	private int maxBodySize;
+
+	/**
+	 * 初期化パラメータで設定するフィルターを作成します。
+	 */
+	public SignatureV4Filter() {
+	}
+
+	/**
+	 * <pre>
+	 * シグネチャーのタイプと秘密鍵のプロバイダーを指定してフィルターを作成します。
+	 * 検証はデフォルトのエグゼキューター（{@link SignatureV4Validator#getDefaultExecutor()}）で行います
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param secretProvider 秘密鍵のプロバイダー
+	 */
+	public SignatureV4Filter(SignatureType signatureType, SecretProvider secretProvider) {
+		this(signatureType, secretProvider, null);
+	}
+
+	/**
+	 * @param signatureType シグネチャーのタイプ
+	 * @param secretProvider 秘密鍵のプロバイダー
+	 * @param executor 検証を行うエグゼキューター、nullの場合はデフォルトのエグゼキューター
+	 */
+	public SignatureV4Filter(SignatureType signatureType, SecretProvider secretProvider,
+			Executor executor) {
+		if (signatureType == null || secretProvider == null) {
+			throw new IllegalArgumentException("シグネチャーのタイプと秘密鍵のプロバイダーの指定は必ず必要です。");
+		}
+		this.signatureType = signatureType;
+		this.secretProvider = secretProvider;
+		this.executor = executor;
+	}
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		if (signatureType == null) {
+			String type = filterConfig.getInitParameter("signature-type");
+			if (StringUtils.isEmpty(type)) {
+				throw new ServletException("初期化パラメータにsignature-typeは必ず必要です。");
+			}
+			try {
+				signatureType = SignatureType.valueOf(type.trim());
+			} catch (IllegalArgumentException e) {
+				throw new ServletException("signature-typeが正しくありません。 [" + type + "]", e);
+			}
+		}
+		if (secretProvider == null) {
+			String className = filterConfig.getInitParameter("secret-provider");
+			if (StringUtils.isEmpty(className)) {
+				throw new ServletException("初期化パラメータにsecret-providerは必ず必要です。");
+			}
+			try {
+				secretProvider = (SecretProvider) Class.forName(className.trim()).newInstance();
+			} catch (Exception e) {
+				throw new ServletException("secret-providerが作成できませんでした。 [" + className + "]", e);
+			}
+			ownsSecretProvider = true;
+		}
+		Config config = ConfigFactory.load("application-sv4.conf");
+		asyncTimeoutMillis = config.hasPath("servlet.filter.async-timeout") ? config.getDuration(
+				"servlet.filter.async-timeout", TimeUnit.MILLISECONDS) : 30 * 1000;
+		maxBodySize = config.hasPath("servlet.filter.max-body-size") ? config.getBytes(
+				"servlet.filter.max-body-size").intValue() : 10 * 1024 * 1024;
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain)
+			throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+			chain.doFilter(req, res);
+			return;
+		}
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) res;
+		//検証に成功して再ディスパッチされたリクエスト
+		Object verified = request.getAttribute(VERIFIED_REQUEST_ATTRIBUTE);
+		if (verified != null && request.getDispatcherType() == DispatcherType.ASYNC) {
+			request.removeAttribute(VERIFIED_REQUEST_ATTRIBUTE);
+			chain.doFilter((ServletRequest) verified, response);
+			return;
+		}
+		SignatureV4Params params;
+		try {
+			//ボディを読み込む前に署名計算前の検証を行う
+			params = parser.parseWithoutPayload(signatureType, request);
+			String declared = params.getHeaders().getSingleByLowerKey(
+					signatureType.getParameterType().getLowerContentSha256ParamName());
+			if (!StringUtils.isEmpty(declared)
+					&& StandardPayloadHashStrategy.isSpecialPayloadHash(declared)) {
+				SignatureV4RequestParser.setPayloadHash(params, declared);
+				doFilterWithoutPayload(request, response, chain, params, declared);
+				return;
+			}
+		} catch (SignatureV4Exception e) {
+			reject(request, response, e);
+			return;
+		}
+		if (request.getContentLength() > maxBodySize) {
+			reject(request, response, createTooLargeException());
+			return;
+		}
+		PayloadBuffer body = new PayloadBuffer();
+		if (!request.isAsyncSupported()) {
+			doFilterBlocking(request, response, chain, params, body);
+			return;
+		}
+		AsyncContext async = request.startAsync(request, response);
+		async.setTimeout(asyncTimeoutMillis);
+		BodyReader reader = new BodyReader(request, response, async, params, body);
+		async.addListener(reader);
+		request.getInputStream().setReadListener(reader);
+	}
+
+	@Override
+	public void destroy() {
+		if (ownsSecretProvider && secretProvider instanceof Closeable) {
+			try {
+				((Closeable) secretProvider).close();
+			} catch (IOException e) {
+				//終了時なので無視する
+			}
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 検証に失敗したリクエストにエラーを返します。
+	 * エラーの内容を変更する場合はオーバーライドしてください
+	 * </pre>
+	 *
+	 * @param request リクエスト
+	 * @param response レスポンス
+	 * @param e 検証に失敗した理由
+	 * @throws IOException レスポンスの書き込みに失敗した場合にスローされる例外
+	 */
+	protected void reject(HttpServletRequest request, HttpServletResponse response,
+			SignatureV4Exception e) throws IOException {
+		request.setAttribute(RESULT_ATTRIBUTE, ValidationResult.failure(e));
+		if (!response.isCommitted()) {
+			response.sendError(getStatus(e.getErrorType()));
+		}
+	}
+
+	/**
+	 * エラーのタイプに対応するHTTPのステータスコードを返します。
+	 *
+	 * @param errorType エラーのタイプ
+	 * @return ステータスコード
+	 */
+	protected int getStatus(ErrorType errorType) {
+		switch (errorType) {
+		case INVALID_PARAMS:
+		case INVALID_ALGORITHM_NAME:
+		case INVALID_DATE_FORMAT:
+			return HttpServletResponse.SC_BAD_REQUEST;
+		case PAYLOAD_TOO_LARGE:
+			return HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE;
+		case SECRET_UNAVAILABLE:
+		case REPLAY_CHECK_FAILED:
+			return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+		case FAIL_HASHED:
+		case OTHER:
+			return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		default:
+			return HttpServletResponse.SC_FORBIDDEN;
+		}
+	}
+
+	/**
+	 * <pre>
+	 * ペイロードのハッシュ値が特別な値で宣言されたリクエストを、ボディを読み込まずに検証します。
+	 * aws-chunked形式の場合は、一致した秘密鍵でチャンクを検証しながらデコードするラッパーを後続に渡します
+	 * 非同期処理に対応したリクエストでは、秘密鍵の取得と検証をエグゼキューターで行い、成功した場合に再ディスパッチします
+	 * リクエストの検証は1回だけ行うので、リプレイ検出を設定していても再送とはなりません
+	 * </pre>
+	 */
+	private void doFilterWithoutPayload(HttpServletRequest request, HttpServletResponse response,
+			FilterChain chain, SignatureV4Params params, String declared)
+			throws SignatureV4Exception, IOException, ServletException {
+		boolean chunked = declared.startsWith(STREAMING_PAYLOAD_PREFIX);
+		if (chunked && !declared.equals(STREAMING_PAYLOAD_PREFIX + params.getAlgorithm()
+				+ STREAMING_PAYLOAD_SUFFIX)) {
+			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, String.format(
+					"対応していないチャンク形式です。 [%s]", declared));
+		}
+		if (request.isAsyncSupported()) {
+			AsyncContext async = request.startAsync(request, response);
+			async.setTimeout(asyncTimeoutMillis);
+			PayloadlessValidation validation = new PayloadlessValidation(request, response, async,
+					params, chunked);
+			async.addListener(validation);
+			validation.start();
+			return;
+		}
+		List<String> secrets = SignatureV4Validator.getSecrets(secretProvider, params);
+		int matched = SignatureV4Validator.validate(signatureType, params, secrets, true);
+		HttpServletRequest verified = chunked ? createChunkedRequest(request, params, secrets
+				.get(matched)) : request;
+		setResultAttributes(request, params, ValidationResult.success(matched));
+		chain.doFilter(verified, response);
+	}
+
+	private HttpServletRequest createChunkedRequest(HttpServletRequest request,
+			SignatureV4Params params, String matchedPrivateKey) throws SignatureV4Exception,
+			IOException {
+		return new ChunkedPayloadRequestWrapper(request,
+				SignatureV4Validator.openVerifiedChunkedPayloadStream(signatureType, params,
+						matchedPrivateKey, request.getInputStream()), params.getHeaders()
+						.getSingleByLowerKey(signatureType.getParameterType()
+								.getLowerDecodedContentLengthParamName()));
+	}
+
+	/**
+	 * 非同期処理に対応していないリクエストを、呼び出したスレッドでボディを読み込んで検証します。
+	 */
+	private void doFilterBlocking(HttpServletRequest request, HttpServletResponse response,
+			FilterChain chain, SignatureV4Params params, PayloadBuffer body) throws IOException,
+			ServletException {
+		try {
+			InputStream in = request.getInputStream();
+			byte[] chunk = new byte[READ_BUFFER_SIZE];
+			VerifiedBodyRequestWrapper verified = new VerifiedBodyRequestWrapper(request, body);
+			ValidationResult result;
+			try {
+				for (int n; (n = in.read(chunk)) != -1;) {
+					append(body, chunk, n);
+				}
+				body.finish();
+				//保持したボディを読み込んでハッシュ化する
+				parser.readPayload(signatureType, params, verified);
+				result = ValidationResult.success(SignatureV4Validator.validate(signatureType,
+						params, SignatureV4Validator.getSecrets(secretProvider, params), true));
+			} catch (SignatureV4Exception e) {
+				reject(request, response, e);
+				return;
+			}
+			setResultAttributes(request, params, result);
+			chain.doFilter(verified, response);
+		} finally {
+			//後続が非同期処理を開始した場合は、その完了時に解放する
+			if (request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new BodyReleaser(body));
+			} else {
+				body.close();
+			}
+		}
+	}
+
+	private void append(PayloadBuffer body, byte[] chunk, int length)
+			throws SignatureV4Exception, IOException {
+		if (body.size() + length > maxBodySize) {
+			throw createTooLargeException();
+		}
+		body.write(chunk, 0, length);
+	}
+
+	private SignatureV4Exception createTooLargeException() {
+		return new SignatureV4Exception(ErrorType.PAYLOAD_TOO_LARGE, String.format(
+				"ボディが最大サイズを超えています。 [%d]", maxBodySize));
+	}
+
+	private static void setResultAttributes(HttpServletRequest request, SignatureV4Params params,
+			ValidationResult result) {
+		request.setAttribute(RESULT_ATTRIBUTE, result);
+		request.setAttribute(PARAMS_ATTRIBUTE, params);
+	}
+
+	private Executor getValidationExecutor() {
+		return executor == null ? SignatureV4Validator.getDefaultExecutor() : executor;
+	}
+
+	/**
+	 * <pre>
+	 * 非同期処理を開始したリクエストの、検証の完了を待って再ディスパッチするリスナーです。
+	 * 読み込みのエラーやタイムアウトと検証の完了は別のスレッドで起こりうるので、最初の1つだけを処理します
+	 * </pre>
+	 */
+	private abstract class AsyncValidation implements AsyncListener,
+			BiConsumer<ValidationResult, Throwable> {
+		protected final HttpServletRequest request;
+		protected final HttpServletResponse response;
+		protected final AsyncContext async;
+		protected final SignatureV4Params params;
+		protected final AtomicBoolean done = new AtomicBoolean();
+
+		private AsyncValidation(HttpServletRequest request, HttpServletResponse response,
+				AsyncContext async, SignatureV4Params params) {
+			this.request = request;
+			this.response = response;
+			this.async = async;
+			this.params = params;
+		}
+
+		/**
+		 * 検証に成功した場合に、後続に渡すリクエストを作成します。
+		 */
+		protected abstract HttpServletRequest createVerifiedRequest(ValidationResult result)
+				throws SignatureV4Exception, IOException;
+
+		/**
+		 * 検証の結果を受け取り、成功した場合は再ディスパッチし、失敗した場合はエラーを返します。
+		 */
+		@Override
+		public void accept(ValidationResult result, Throwable error) {
+			if (error != null) {
+				fail(new SignatureV4Exception(ErrorType.OTHER,
+						"SignatureVersion4の検証中に予期しない例外が発生しました。", error));
+				return;
+			}
+			if (!result.isValid()) {
+				fail(result.getException());
+				return;
+			}
+			HttpServletRequest verified;
+			try {
+				verified = createVerifiedRequest(result);
+			} catch (SignatureV4Exception e) {
+				fail(e);
+				return;
+			} catch (IOException e) {
+				fail(new SignatureV4Exception(ErrorType.OTHER, "リクエストボディの読み込みに失敗しました。", e));
+				return;
+			}
+			if (done.compareAndSet(false, true)) {
+				setResultAttributes(request, params, result);
+				request.setAttribute(VERIFIED_REQUEST_ATTRIBUTE, verified);
+				async.dispatch();
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			if (done.compareAndSet(false, true)) {
+				try {
+					if (!response.isCommitted()) {
+						response.sendError(HttpServletResponse.SC_REQUEST_TIMEOUT);
+					}
+				} catch (IOException e) {
+					//クライアントとの接続が切れている
+				}
+				async.complete();
+			}
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			fail(new SignatureV4Exception(ErrorType.OTHER, "非同期処理中にエラーが発生しました。", event
+					.getThrowable()));
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			//後続が再度非同期処理を開始した場合も、完了を受け取る
+			event.getAsyncContext().addListener(this);
+		}
+
+		protected void fail(SignatureV4Exception e) {
+			if (!done.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				reject(request, response, e);
+			} catch (IOException ioe) {
+				//クライアントとの接続が切れている
+			}
+			async.complete();
+		}
+	}
+
+	/**
+	 * <pre>
+	 * ボディを届いた分だけ読み込んで保持し、すべて読み込んだら検証するリスナーです。
+	 * コンテナのスレッドではボディの保持だけを行い、ハッシュ化から検証まではエグゼキューターで行います
+	 * </pre>
+	 */
+	private class BodyReader extends AsyncValidation implements ReadListener {
+		private final PayloadBuffer body;
+		private final VerifiedBodyRequestWrapper verified;
+		private final byte[] chunk = new byte[READ_BUFFER_SIZE];
+
+		private BodyReader(HttpServletRequest request, HttpServletResponse response,
+				AsyncContext async, SignatureV4Params params, PayloadBuffer body) {
+			super(request, response, async, params);
+			this.body = body;
+			this.verified = new VerifiedBodyRequestWrapper(request, body);
+		}
+
+		@Override
+		public void onDataAvailable() throws IOException {
+			if (done.get()) {
+				return;
+			}
+			ServletInputStream in = request.getInputStream();
+			try {
+				for (int n; in.isReady() && (n = in.read(chunk)) != -1;) {
+					append(body, chunk, n);
+				}
+			} catch (SignatureV4Exception e) {
+				fail(e);
+			}
+		}
+
+		@Override
+		public void onAllDataRead() throws IOException {
+			if (done.get()) {
+				return;
+			}
+			body.finish();
+			//署名計算前の検証はボディを読み込む前に済んでいる
+			SignatureV4Validator.validateAsync(signatureType, params, verified, secretProvider,
+					null, true, getValidationExecutor()).whenComplete(this);
+		}
+
+		@Override
+		protected HttpServletRequest createVerifiedRequest(ValidationResult result) {
+			return verified;
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			fail(new SignatureV4Exception(ErrorType.OTHER, "リクエストボディの読み込みに失敗しました。", t));
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			onError(event.getThrowable());
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			body.close();
+		}
+	}
+
+	/**
+	 * <pre>
+	 * ボディを読み込まずに検証するリクエストの、秘密鍵の取得と検証をエグゼキューターで行うリスナーです。
+	 * aws-chunked形式の場合は、一致した秘密鍵でチャンクを検証するので、取得した秘密鍵を保持します
+	 * </pre>
+	 */
+	private class PayloadlessValidation extends AsyncValidation {
+		private final boolean chunked;
+		private volatile List<String> secrets;
+
+		private PayloadlessValidation(HttpServletRequest request, HttpServletResponse response,
+				AsyncContext async, SignatureV4Params params, boolean chunked) {
+			super(request, response, async, params);
+			this.chunked = chunked;
+		}
+
+		private void start() {
+			final Executor validationExecutor = getValidationExecutor();
+			CompletableFuture.supplyAsync(new Supplier<CompletionStage<ValidationResult>>() {
+				@Override
+				public CompletionStage<ValidationResult> get() {
+					try {
+						secrets = SignatureV4Validator.getSecrets(secretProvider, params);
+					} catch (SignatureV4Exception e) {
+						return CompletableFuture.completedFuture(ValidationResult.failure(e));
+					}
+					return SignatureV4Validator.validateAsync(signatureType, params, null, null,
+							secrets, true, validationExecutor);
+				}
+			}, validationExecutor).thenCompose(
+					new Function<CompletionStage<ValidationResult>, CompletionStage<ValidationResult>>() {
+						@Override
+						public CompletionStage<ValidationResult> apply(
+								CompletionStage<ValidationResult> stage) {
+							return stage;
+						}
+					}).whenComplete(this);
+		}
+
+		@Override
+		protected HttpServletRequest createVerifiedRequest(ValidationResult result)
+				throws SignatureV4Exception, IOException {
+			return chunked ? createChunkedRequest(request, params, secrets.get(result
+					.getMatchedIndex())) : request;
+		}
+	}
+
+	/**
+	 * <pre>
+	 * aws-chunked形式のボディを、チャンクのシグネチャーを検証しながらデコードして返すリクエストのラッパーです。
+	 * デコードは読み込みに合わせて行うので、非同期の読み込み（{@link ReadListener}）には対応していません
+	 * </pre>
+	 */
+	private static class ChunkedPayloadRequestWrapper extends HttpServletRequestWrapper {
+		private final ServletInputStream in;
+		private final long decodedLength;
+
+		private ChunkedPayloadRequestWrapper(HttpServletRequest request, final InputStream decoded,
+				String decodedLength) {
+			super(request);
+			this.decodedLength = NumberUtils.toLong(decodedLength, -1);
+			this.in = new ServletInputStream() {
+				private boolean finished;
+
+				@Override
+				public int read() throws IOException {
+					int b = decoded.read();
+					finished = b == -1;
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = decoded.read(b, off, len);
+					finished = n == -1;
+					return n;
+				}
+
+				@Override
+				public boolean isFinished() {
+					return finished;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					throw new IllegalStateException("チャンク形式のボディは非同期で読み込めません。");
+				}
+			};
+		}
+
+		@Override
+		public ServletInputStream getInputStream() {
+			return in;
+		}
+
+		@Override
+		public BufferedReader getReader() {
+			String encoding = getCharacterEncoding();
+			return new BufferedReader(new InputStreamReader(in, encoding == null
+					? StandardCharsets.ISO_8859_1 : Charset.forName(encoding)));
+		}
+
+		@Override
+		public int getContentLength() {
+			return decodedLength > Integer.MAX_VALUE ? -1 : (int) decodedLength;
+		}
+
+		@Override
+		public long getContentLengthLong() {
+			return decodedLength;
+		}
+	}
+
+	/**
+	 * 後続が開始した非同期処理の完了時に、ボディを解放するリスナーです。
+	 */
+	private static class BodyReleaser implements AsyncListener {
+		private final PayloadBuffer body;
+
+		private BodyReleaser(PayloadBuffer body) {
+			this.body = body;
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			body.close();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+			event.getAsyncContext().addListener(this);
+		}
+	}
+}
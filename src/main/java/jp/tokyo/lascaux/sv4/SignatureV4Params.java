@@ -1,7 +1,11 @@
 package jp.tokyo.lascaux.sv4;
 
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,8 +31,49 @@ public interface SignatureV4Params {
 
 	public KeyValuesMap getQueries();
 
+	/**
+	 * <pre>
+	 * パース時に生のクエリー文字列を保持した場合に、その値を返します。クエリーがない場合は空文字を返します
+	 * 保持していない場合はnullを返すので、getQueries()の値を使用してください
+	 * 既存の実装クラスとの互換性のため、デフォルトはnullを返します
+	 * </pre>
+	 *
+	 * @return 生のクエリー文字列
+	 */
+	public default String getRawQueryString() {
+		return null;
+	}
+
 	public String getPayload();
 
+	/**
+	 * <pre>
+	 * パース時にペイロードをハッシュ化した場合に、その16進数文字列を返します。
+	 * ハッシュ化していない場合はnullを返すので、getPayload()の値をハッシュ化してください
+	 * 既存の実装クラスとの互換性のため、デフォルトはnullを返します
+	 * </pre>
+	 *
+	 * @return ペイロードのハッシュ値
+	 */
+	public default String getPayloadHash() {
+		return null;
+	}
+
+	/**
+	 * <pre>
+	 * パース時にボディを読み込まなかった場合に、アプリケーションがボディを読み込むための入力ストリームを返します。
+	 * 宣言されたハッシュ値を使用した場合は、最後まで読み込んだ時点でハッシュ値を検証し、
+	 * 一致しない場合はIOExceptionをスローします
+	 * ボディを読み込んだ場合はnullを返します
+	 * 既存の実装クラスとの互換性のため、デフォルトはnullを返します
+	 * </pre>
+	 *
+	 * @return ボディの入力ストリーム
+	 */
+	public default InputStream getPayloadInputStream() {
+		return null;
+	}
+
 	//以下はAuthorizationを分解したもの
 	public String getAlgorithm();
 
@@ -131,98 +176,277 @@ public interface SignatureV4Params {
 		}
 	}
 
+	/**
+	 * <pre>
+	 * ヘッダーやクエリーのように、同じキーに複数の値を持つことができるマップです。
+	 * キーと値は追加された順番で平坦な配列に保持し、参照時にキーの順番を表すインデックスを作成します
+	 * 小文字のキーでの検索は、キーを小文字に変換せずにASCIIの大文字小文字を区別しない比較で行います
+	 * 同じキーの値は追加された順番で返します
+	 * スレッドセーフではありません
+	 * </pre>
+	 */
 	public static class KeyValuesMap {
+		private static final int INITIAL_CAPACITY = 16;
+		private String[] keys;
+		private String[] values;
+		private int size;
+		//キーの順番（大文字小文字を区別しない）に並べたインデックス、追加されるとnullに戻す
+		private int[] lowerOrder;
+		//キーの順番（大文字小文字を区別する）に並べたインデックス、追加されるとnullに戻す
+		private int[] originalOrder;
 		private Map<String, List<String>> originalMap;
 		private Map<String, List<String>> lowerKeyMap;
 
 		KeyValuesMap() {
-			originalMap = new TreeMap<>();
-			lowerKeyMap = new TreeMap<>();
+			keys = new String[INITIAL_CAPACITY];
+			values = new String[INITIAL_CAPACITY];
 		}
 
 		public void put(String key, String value) {
-			List<String> olist = originalMap.get(key);
-			if (olist == null) {
-				olist = new ArrayList<>();
-				originalMap.put(key, olist);
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
 			}
-			olist.add(value);
-			String lowerKey = key.toLowerCase();
-			List<String> llist = lowerKeyMap.get(lowerKey);
-			if (llist == null) {
-				llist = new ArrayList<>();
-				lowerKeyMap.put(lowerKey, llist);
-			}
-			llist.add(value);
+			keys[size] = key;
+			values[size] = value;
+			size++;
+			lowerOrder = null;
+			originalOrder = null;
+			originalMap = null;
+			lowerKeyMap = null;
 		}
 
 		public void put(String key, List<String> ls) {
-			List<String> ovalues = originalMap.get(key);
-			List<String> lvalues = lowerKeyMap.get(key);
-			if (ovalues == null) {
-				ovalues = new ArrayList<>();
-				originalMap.put(key, ovalues);
-			}
-			if (lvalues == null) {
-				lvalues = new ArrayList<>();
-				lowerKeyMap.put(key.toLowerCase(), lvalues);
-			}
 			for (String v : ls) {
-				ovalues.add(v);
-				lvalues.add(v);
+				put(key, v);
 			}
 		}
 
+		/**
+		 * 値の数を返します。同じキーに複数の値がある場合は、それぞれを数えます。
+		 *
+		 * @return 値の数
+		 */
+		public int size() {
+			return size;
+		}
+
 		public String getSingle(String key) {
-			List<String> values = originalMap.get(key);
-			if (values == null || values.isEmpty()) {
-				return null;
-			}
-			return values.get(0);
+			int[] order = originalOrder();
+			int i = lowerBound(order, key, false);
+			return i < size && keys[order[i]].equals(key) ? values[order[i]] : null;
 		}
 
 		public String getSingleByLowerKey(String key) {
-			List<String> values = lowerKeyMap.get(key);
-			if (values == null || values.isEmpty()) {
-				return null;
+			int[] order = lowerOrder();
+			int i = lowerBound(order, key, true);
+			return i < size && compareIgnoreAsciiCase(keys[order[i]], key) == 0 ? values[order[i]]
+					: null;
+		}
+
+		/**
+		 * 大文字小文字を区別せずにキーに一致する値を、追加された順番で新しいリストにして返します。
+		 * 一致するキーがない場合は空のリストを返します
+		 *
+		 * @param key 小文字のキー
+		 * @return 値のリスト
+		 */
+		public List<String> getValuesByLowerKey(String key) {
+			int[] order = lowerOrder();
+			List<String> list = new ArrayList<>(2);
+			for (int i = lowerBound(order, key, true); i < size
+					&& compareIgnoreAsciiCase(keys[order[i]], key) == 0; i++) {
+				list.add(values[order[i]]);
 			}
-			return values.get(0);
+			return list;
 		}
 
+		/**
+		 * 大文字小文字を区別せずにキーに一致する値の数を、リストを作成せずに返します。
+		 *
+		 * @param key 小文字のキー
+		 * @return 値の数
+		 */
+		int countByLowerKey(String key) {
+			int[] order = lowerOrder();
+			int count = 0;
+			for (int i = lowerBound(order, key, true); i < size
+					&& compareIgnoreAsciiCase(keys[order[i]], key) == 0; i++) {
+				count++;
+			}
+			return count;
+		}
+
+		/**
+		 * <pre>
+		 * 互換性のためのメソッドです。呼び出し時にマップを作成するため、頻繁に使用しないでください。
+		 * 作成したマップはキャッシュするので、変更できないマップ（値のリストも変更できない）を返します
+		 * </pre>
+		 */
 		public Map<String, List<String>> getOriginalMap() {
+			if (originalMap == null) {
+				Map<String, List<String>> map = new TreeMap<>();
+				for (int i = 0; i < size; i++) {
+					addTo(map, keys[i], values[i]);
+				}
+				originalMap = unmodifiable(map);
+			}
 			return originalMap;
 		}
 
+		/**
+		 * <pre>
+		 * 互換性のためのメソッドです。呼び出し時にマップを作成するため、頻繁に使用しないでください。
+		 * 作成したマップはキャッシュするので、変更できないマップ（値のリストも変更できない）を返します
+		 * </pre>
+		 */
 		public Map<String, List<String>> getLowerKeyMap() {
+			if (lowerKeyMap == null) {
+				Map<String, List<String>> map = new TreeMap<>();
+				for (int i = 0; i < size; i++) {
+					addTo(map, keys[i].toLowerCase(), values[i]);
+				}
+				lowerKeyMap = unmodifiable(map);
+			}
 			return lowerKeyMap;
 		}
 
+		/**
+		 * キーに一致する値を、追加された順番で変更できないリストにして返します。一致するキーがない場合はnullを返します。
+		 *
+		 * @param originalKey キー
+		 * @return 値のリスト
+		 */
 		public List<String> getOriginalValues(String originalKey) {
-			return originalMap.get(originalKey);
+			int[] order = originalOrder();
+			int i = lowerBound(order, originalKey, false);
+			if (i == size || !keys[order[i]].equals(originalKey)) {
+				return null;
+			}
+			List<String> list = new ArrayList<>(2);
+			for (; i < size && keys[order[i]].equals(originalKey); i++) {
+				list.add(values[order[i]]);
+			}
+			return Collections.unmodifiableList(list);
 		}
 
 		public Map<String, String> getSingleValueOriginalMap() {
-			return convertSingleValue(originalMap);
+			Map<String, String> returnMap = new HashMap<>();
+			for (int i = size - 1; i >= 0; i--) {
+				returnMap.put(keys[i], values[i]);
+			}
+			return returnMap;
 		}
 
 		public Map<String, String> getSingleValueLowerKeyMap() {
-			return convertSingleValue(lowerKeyMap);
+			Map<String, String> returnMap = new HashMap<>();
+			for (int i = size - 1; i >= 0; i--) {
+				returnMap.put(keys[i].toLowerCase(), values[i]);
+			}
+			return returnMap;
 		}
 
-		private Map<String, String> convertSingleValue(Map<String, List<String>> map) {
-			Map<String, String> returnMap = new HashMap<>();
+		public Set<String> sortedOriginalKeyset() {
+			int[] order = originalOrder();
+			Set<String> set = new LinkedHashSet<>();
+			for (int i = 0; i < size; i++) {
+				set.add(keys[order[i]]);
+			}
+			return set;
+		}
+
+		private static void addTo(Map<String, List<String>> map, String key, String value) {
+			List<String> list = map.get(key);
+			if (list == null) {
+				list = new ArrayList<>();
+				map.put(key, list);
+			}
+			list.add(value);
+		}
+
+		private static Map<String, List<String>> unmodifiable(Map<String, List<String>> map) {
 			for (Map.Entry<String, List<String>> e : map.entrySet()) {
-				String key = e.getKey();
-				List<String> values = map.get(key);
-				if (values != null && !values.isEmpty()) {
-					returnMap.put(key, values.get(0));
+				e.setValue(Collections.unmodifiableList(e.getValue()));
+			}
+			return Collections.unmodifiableMap(map);
+		}
+
+		private int[] lowerOrder() {
+			if (lowerOrder == null) {
+				lowerOrder = sort(true);
+			}
+			return lowerOrder;
+		}
+
+		private int[] originalOrder() {
+			if (originalOrder == null) {
+				originalOrder = sort(false);
+			}
+			return originalOrder;
+		}
+
+		/**
+		 * 二分挿入ソートでキーの順番に並べたインデックスを作成します。
+		 * 同じキーは追加された順番のままになります
+		 */
+		private int[] sort(boolean ignoreCase) {
+			int[] order = new int[size];
+			for (int i = 0; i < size; i++) {
+				int low = 0;
+				int high = i;
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					if (compare(keys[order[mid]], keys[i], ignoreCase) <= 0) {
+						low = mid + 1;
+					} else {
+						high = mid;
+					}
 				}
+				System.arraycopy(order, low, order, low + 1, i - low);
+				order[low] = i;
 			}
-			return returnMap;
+			return order;
 		}
 
-		public Set<String> sortedOriginalKeyset() {
-			return originalMap.keySet();
+		/**
+		 * キーが一致する最初の位置を返します。一致しない場合はキーより大きい最初の位置を返します。
+		 */
+		private int lowerBound(int[] order, String key, boolean ignoreCase) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (compare(keys[order[mid]], key, ignoreCase) < 0) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		private static int compare(String a, String b, boolean ignoreCase) {
+			return ignoreCase ? compareIgnoreAsciiCase(a, b) : a.compareTo(b);
+		}
+
+		private static int compareIgnoreAsciiCase(String a, String b) {
+			int length = Math.min(a.length(), b.length());
+			for (int i = 0; i < length; i++) {
+				char ca = a.charAt(i);
+				char cb = b.charAt(i);
+				if (ca != cb) {
+					if (ca >= 'A' && ca <= 'Z') {
+						ca += 'a' - 'A';
+					}
+					if (cb >= 'A' && cb <= 'Z') {
+						cb += 'a' - 'A';
+					}
+					if (ca != cb) {
+						return ca - cb;
+					}
+				}
+			}
+			return a.length() - b.length();
 		}
 	}
 
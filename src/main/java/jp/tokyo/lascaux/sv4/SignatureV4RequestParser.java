@@ -1,22 +1,18 @@
 package jp.tokyo.lascaux.sv4;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.SortedSet;
-import java.util.TimeZone;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -26,8 +22,15 @@ import org.apache.commons.lang.StringUtils;
 import jp.tokyo.lascaux.sv4.SignatureV4Params.Credential;
 import jp.tokyo.lascaux.sv4.SignatureV4Params.KeyValuesMap;
 import jp.tokyo.lascaux.sv4.entity.ErrorType;
+import jp.tokyo.lascaux.sv4.entity.HashType;
 import jp.tokyo.lascaux.sv4.entity.ParameterType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
 import jp.tokyo.lascaux.sv4.entity.SignatureType;
+import jp.tokyo.lascaux.sv4.payload.DigestVerifyingInputStream;
+import jp.tokyo.lascaux.sv4.payload.PayloadHashStrategy;
+import jp.tokyo.lascaux.sv4.payload.StandardPayloadHashStrategy;
+import jp.tokyo.lascaux.sv4.time.Timestamps;
+import jp.tokyo.lascaux.sv4.util.SignatureV4Util;
 
 /**
  * HttpServletRequestをSignatureV4のパラメータ形式に変換するクラスです。
@@ -35,10 +38,36 @@ import jp.tokyo.lascaux.sv4.entity.SignatureType;
  * @author Shunichi Todoroki
  */
 public class SignatureV4RequestParser {
-	static final Pattern HEADER_AUTHORIZATION_PATTERN = Pattern
-			.compile("\\s*(\\S+)\\s+(C|c)redential=([^,\\s]+)\\s*,\\s*(S|s)ignedHeaders=([^,\\s]+)\\s*,\\s*(S|s)ignature=([^,\\s]+)\\s*");
+	private final PayloadHashStrategy payloadHashStrategy;
+	private final EnumSet<ParseOption> options;
 
 	public SignatureV4RequestParser() {
+		this(StandardPayloadHashStrategy.COMPUTE);
+	}
+
+	/**
+	 * パース方法のオプションを指定してパーサーを作成します。
+	 *
+	 * @param options パースオプション
+	 */
+	public SignatureV4RequestParser(ParseOption... options) {
+		this(StandardPayloadHashStrategy.COMPUTE, options);
+	}
+
+	/**
+	 * ペイロードハッシュのストラテジーとパース方法のオプションを指定してパーサーを作成します。
+	 *
+	 * @param payloadHashStrategy ペイロードハッシュのストラテジー
+	 * @param options パースオプション
+	 */
+	public SignatureV4RequestParser(PayloadHashStrategy payloadHashStrategy,
+			ParseOption... options) {
+		if (payloadHashStrategy == null) {
+			throw new NullPointerException();
+		}
+		this.payloadHashStrategy = payloadHashStrategy;
+		this.options = EnumSet.noneOf(ParseOption.class);
+		this.options.addAll(Arrays.asList(options));
 	}
 
 	/**
@@ -46,6 +75,9 @@ public class SignatureV4RequestParser {
 	 * 最低限SignatureV4オブジェクトにするのに必要な解析を行い、SV4パラメータオブジェクトを作成して返します。
 	 * パラメータを扱いやすい形にパースするのが目的で、パラメータの検証などは行いません
 	 * 不正なパラメータによりパースできない場合はSignatureV4Exceptionをスローします
+	 * Content-Typeがapplication/x-www-form-urlencodedの場合は、getParameterMap()を使用せずに
+	 * クエリーは生のクエリー文字列から取得し、ボディは1回だけ読み込んでハッシュ化します
+	 * フォームのパラメータを参照する場合は、{@link VerifiedBodyRequestWrapper}を渡してください
 	 * </pre>
 	 *
 	 * @param request Httpサーブレットリクエスト
@@ -54,18 +86,96 @@ public class SignatureV4RequestParser {
 	 */
 	public SignatureV4Params parse(SignatureType signatureType, HttpServletRequest request)
 			throws SignatureV4Exception {
+		return parse(signatureType, request, false);
+	}
+
+	/*
+	 * preValidateがtrueの場合は、ボディを読み込む前に署名計算前の検証を行う。
+	 */
+	SignatureV4Params parse(SignatureType signatureType, HttpServletRequest request,
+			boolean preValidate) throws SignatureV4Exception {
+		SV4ParameterImpl ps = createParamsWithoutPayload(signatureType, request);
+		if (preValidate) {
+			SignatureV4Validator.preValidate(SignatureV4Validator.getProfile(signatureType), ps);
+		}
+		readPayload(signatureType, ps, request);
+		return ps;
+	}
+
+	/*
+	 * parseWithoutPayloadでパースしたパラメータに、リクエストボディを読み込んで設定する。
+	 * ボディの読み込みとハッシュ化を呼び出し元とは別のスレッドで行う場合に使用する。
+	 */
+	void readPayload(SignatureType signatureType, SignatureV4Params params,
+			HttpServletRequest request) throws SignatureV4Exception {
+		SV4ParameterImpl ps = (SV4ParameterImpl) params;
 		try {
-			String payload = IOUtils.toString(request.getInputStream());
-			return createSignatureV4Params(signatureType, request.getMethod(),
-					request.getRequestURI(), createHeaders(new WrappedRequest(request)),
-					request.getParameterMap(), payload);
+			String resolvedHash = payloadHashStrategy.resolvePayloadHash(ps,
+					signatureType.getParameterType());
+			if (resolvedHash != null) {
+				//ボディは読み込まずに、アプリケーションが読み込む際に検証する
+				ps.payloadHash = resolvedHash;
+				ps.payloadInputStream = openPayloadInputStream(signatureType, ps, request);
+			} else if (request.getContentLength() == 0) {
+				//ボディがないことがわかっている場合は読み込まない
+				ps.payload = "";
+			} else if (options.contains(ParseOption.STREAM_PAYLOAD)
+					|| SignatureV4Util.isFormUrlEncoded(request.getContentType())) {
+				//フォームは大きくなりうるので、文字列にせずに1回の読み込みでハッシュ化する
+				ps.payloadHash = hashPayload(signatureType, ps, request.getInputStream());
+			} else {
+				//文字列へのデコードと再エンコードでバイト列が変わらないように、読み込んだバイト列をハッシュ化する
+				byte[] payload = IOUtils.toByteArray(request.getInputStream());
+				ps.payload = new String(payload);
+				ps.payloadHash = hashPayload(signatureType, ps, new ByteArrayInputStream(payload));
+			}
 		} catch (IOException ioe) {
 			throw new SignatureV4Exception(ErrorType.OTHER, "リクエストボディの読み込みに失敗しました。", ioe);
 		}
 	}
 
+	/*
+	 * ボディを読み込まずにパースし、署名計算前の検証を行う。
+	 * ボディを非同期で読み込む場合に使用し、ペイロードのハッシュ値は読み込み後にsetPayloadHashで設定する。
+	 */
+	SignatureV4Params parseWithoutPayload(SignatureType signatureType, HttpServletRequest request)
+			throws SignatureV4Exception {
+		SV4ParameterImpl ps = createParamsWithoutPayload(signatureType, request);
+		SignatureV4Validator.preValidate(SignatureV4Validator.getProfile(signatureType), ps);
+		return ps;
+	}
+
+	/*
+	 * parseWithoutPayloadでパースしたパラメータに、ペイロードのハッシュ値を設定する。
+	 */
+	static void setPayloadHash(SignatureV4Params params, String payloadHash) {
+		((SV4ParameterImpl) params).payloadHash = payloadHash;
+	}
+
+	private SV4ParameterImpl createParamsWithoutPayload(SignatureType signatureType,
+			HttpServletRequest request) throws SignatureV4Exception {
+		//フォームの場合、getParameterMap()はボディを読み込んでしまい、ボディのパラメータもクエリーとして返すので使用しない
+		boolean form = SignatureV4Util.isFormUrlEncoded(request.getContentType());
+		Map<String, String[]> queryMap = form ? decodeQueryString(request.getQueryString())
+				: request.getParameterMap();
+		SV4ParameterImpl ps;
+		if (options.contains(ParseOption.SIGNED_HEADERS_ONLY)) {
+			ps = createSignedHeadersOnlyParams(signatureType, request, queryMap);
+		} else {
+			ps = createSignatureV4Params(signatureType, request.getMethod(),
+					request.getRequestURI(), createHeaders(new WrappedRequest(request)), queryMap,
+					null);
+		}
+		if (form || options.contains(ParseOption.RAW_QUERY_STRING)) {
+			String queryString = request.getQueryString();
+			ps.rawQueryString = queryString == null ? "" : queryString;
+		}
+		return ps;
+	}
+
 	/*
 	 * テスト用のメソッドのためパッケージプライベート。
+	 * RAW_QUERY_STRINGが指定されている場合のみ、生のクエリー文字列から正規化する。
 	 */
 	SignatureV4Params createSignatureV4Params(SignatureType signatureType, String method,
 			String requestUri, Headers headers, String queryString, String payload)
@@ -90,11 +200,48 @@ public class SignatureV4RequestParser {
 				}
 			}
 		}
-		return createSignatureV4Params(signatureType, method, requestUri, createHeaders(headers),
-				queryMap, payload);
+		SV4ParameterImpl ps = createSignatureV4Params(signatureType, method, requestUri,
+				createHeaders(headers), queryMap, payload);
+		if (options.contains(ParseOption.RAW_QUERY_STRING)) {
+			ps.rawQueryString = queryString == null ? "" : queryString;
+		}
+		return ps;
+	}
+
+	/**
+	 * <pre>
+	 * リクエストボディを入力ストリームから直接ハッシュ化します。
+	 * アルゴリズム名が取得できない場合は、検証時にエラーとなるためボディは読み込みません
+	 * </pre>
+	 */
+	private String hashPayload(SignatureType signatureType, SV4ParameterImpl ps, InputStream in)
+			throws SignatureV4Exception, IOException {
+		if (StringUtils.isEmpty(ps.algorithm)) {
+			return null;
+		}
+		HashType hashType = SignatureV4Validator.getProfile(signatureType).getHashType(
+				ps.algorithm);
+		return ReusableSHAAlgorithm.getInstance(hashType).hashedStream(in);
+	}
+
+	/**
+	 * <pre>
+	 * ペイロードのハッシュ値を宣言された値から決定した場合に、アプリケーションが読み込むための入力ストリームを返します。
+	 * 実際のハッシュ値の場合は、読み込みながらその値と一致するかを検証するストリームを返します
+	 * </pre>
+	 */
+	private InputStream openPayloadInputStream(SignatureType signatureType, SV4ParameterImpl ps,
+			HttpServletRequest request) throws SignatureV4Exception, IOException {
+		if (StringUtils.isEmpty(ps.algorithm)
+				|| StandardPayloadHashStrategy.isSpecialPayloadHash(ps.payloadHash)) {
+			return request.getInputStream();
+		}
+		HashType hashType = SignatureV4Validator.getProfile(signatureType).getHashType(
+				ps.algorithm);
+		return new DigestVerifyingInputStream(request.getInputStream(), hashType, ps.payloadHash);
 	}
 
-	private SignatureV4Params createSignatureV4Params(SignatureType signatureType, String method,
+	private SV4ParameterImpl createSignatureV4Params(SignatureType signatureType, String method,
 			String requestUri, KeyValuesMap headers, Map<String, String[]> queryMap, String payload)
 			throws SignatureV4Exception {
 		ParameterType parameterType = signatureType.getParameterType();
@@ -103,21 +250,89 @@ public class SignatureV4RequestParser {
 		ps.requestUri = requestUri;
 		ps.headers = headers;
 		ps.queries = createQueries(queryMap);
-		String authorizationString = headers.getSingleByLowerKey("authorization");
-		if (!StringUtils.isEmpty(authorizationString)) {
-			Matcher m = HEADER_AUTHORIZATION_PATTERN.matcher(authorizationString);
-			if (m.matches()) {
-				ps.algorithm = m.group(1);
-				String credentialString = m.group(3);
-				Credential credential = createCredential(credentialString);
-				ps.credential = credential;
-				String signedHeaders = m.group(5);
-				if (!StringUtils.isEmpty(signedHeaders)) {
-					ps.lowerSignedHeaders = new TreeSet<>(Arrays.asList(signedHeaders.toLowerCase()
-							.split(";")));
+		parseAuthorization(ps, headers.getSingleByLowerKey("authorization"), parameterType);
+		ps.payload = payload;
+		return ps;
+	}
+
+	/**
+	 * <pre>
+	 * 署名対象のヘッダーと検証に必要なヘッダーのみを取得して、SV4パラメータオブジェクトを作成します。
+	 * 署名対象のヘッダー名を知るために、先にAuthorizationヘッダーまたはクエリーを解析します
+	 * </pre>
+	 */
+	private SV4ParameterImpl createSignedHeadersOnlyParams(SignatureType signatureType,
+			HttpServletRequest request, Map<String, String[]> queryMap)
+			throws SignatureV4Exception {
+		ParameterType parameterType = signatureType.getParameterType();
+		SV4ParameterImpl ps = new SV4ParameterImpl();
+		ps.method = request.getMethod();
+		ps.requestUri = request.getRequestURI();
+		ps.queries = createQueries(queryMap);
+		KeyValuesMap headers = new KeyValuesMap();
+		parseAuthorization(ps, copyHeader(request, "authorization", headers), parameterType);
+		SortedSet<String> lowerSignedHeaders = ps.getLowerSignedHeaders(parameterType);
+		for (String lowerName : lowerSignedHeaders) {
+			if (!"authorization".equals(lowerName)) {
+				copyHeader(request, lowerName, headers);
+			}
+		}
+		for (String lowerName : new String[] { "host", "date",
+				parameterType.getLowerDateParamName(), parameterType.getLowerExpiresParamName(),
+				parameterType.getLowerContentSha256ParamName(),
+				parameterType.getLowerDecodedContentLengthParamName() }) {
+			if (!lowerSignedHeaders.contains(lowerName)) {
+				copyHeader(request, lowerName, headers);
+			}
+		}
+		ps.headers = headers;
+		return ps;
+	}
+
+	/**
+	 * 生のクエリー文字列をデコードして、getParameterMap()と同じ形式のマップを作成します。
+	 */
+	private static Map<String, String[]> decodeQueryString(String queryString)
+			throws SignatureV4Exception {
+		try {
+			return SignatureV4Util.decodeUrlEncoded(queryString, StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, String.format(
+					"クエリー文字列のフォーマットが間違っています。 [%s]", queryString), e);
+		}
+	}
+
+	/**
+	 * ヘッダーの値をトリムして小文字のキーで追加し、最初の値を返します。ヘッダーがない場合はnullを返します。
+	 */
+	private static String copyHeader(HttpServletRequest request, String lowerName,
+			KeyValuesMap headers) {
+		Enumeration<String> values = request.getHeaders(lowerName);
+		String first = null;
+		if (values != null) {
+			for (; values.hasMoreElements();) {
+				String value = values.nextElement().trim();
+				headers.put(lowerName, value);
+				if (first == null) {
+					first = value;
 				}
-				ps.signature = m.group(7);
 			}
+		}
+		return first;
+	}
+
+	/**
+	 * Authorizationヘッダーがある場合はヘッダーから、ない場合はクエリーから署名情報を取得します。
+	 */
+	private void parseAuthorization(SV4ParameterImpl ps, String authorizationString,
+			ParameterType parameterType) throws SignatureV4Exception {
+		if (!StringUtils.isEmpty(authorizationString)) {
+			AuthorizationHeaderTokenizer tokenizer = new AuthorizationHeaderTokenizer();
+			tokenizer.tokenize(authorizationString);
+			ps.algorithm = tokenizer.getAlgorithm();
+			ps.credential = tokenizer.getCredential();
+			ps.lowerSignedHeaders = tokenizer.getLowerSignedHeaders();
+			ps.signature = tokenizer.getSignature();
 		} else {
 			ps.algorithm = ps.queries.getSingleByLowerKey(parameterType
 					.getLowerAlgorithmParamName());
@@ -128,14 +343,12 @@ public class SignatureV4RequestParser {
 			String signedHeaders = ps.queries.getSingleByLowerKey(parameterType
 					.getLowerSignedHeadersParamName());
 			if (!StringUtils.isEmpty(signedHeaders)) {
-				ps.lowerSignedHeaders = new TreeSet<>(Arrays.asList(signedHeaders.toLowerCase()
-						.split(";")));
+				ps.lowerSignedHeaders = AuthorizationHeaderTokenizer.parseLowerSignedHeaders(
+						signedHeaders, 0, signedHeaders.length());
 			}
 			ps.signature = ps.queries.getSingleByLowerKey(parameterType
 					.getLowerSignatureParamName());
 		}
-		ps.payload = payload;
-		return ps;
 	}
 
 	private static class WrappedRequest implements Headers {
@@ -210,13 +423,8 @@ public class SignatureV4RequestParser {
 		if (StringUtils.isEmpty(credentialString)) {
 			return null;
 		}
-		String[] credentials = credentialString.split("/");
-		if (credentials.length != 5) {
-			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS,
-					"credentialは/で区切られた5つの値である必要があります。 [" + credentialString + "]");
-		}
-		return new Credential(credentials[0], credentials[1], credentials[2], credentials[3],
-				credentials[4]);
+		return AuthorizationHeaderTokenizer.parseCredential(credentialString, 0,
+				credentialString.length());
 	}
 
 	private static class SV4ParameterImpl implements SignatureV4Params {
@@ -225,7 +433,10 @@ public class SignatureV4RequestParser {
 		private String requestUri;
 		private KeyValuesMap headers;
 		private KeyValuesMap queries;
+		private String rawQueryString;
 		private String payload;
+		private String payloadHash;
+		private InputStream payloadInputStream;
 		private String algorithm;
 		private Credential credential;
 		private SortedSet<String> lowerSignedHeaders;
@@ -255,11 +466,26 @@ public class SignatureV4RequestParser {
 			return queries;
 		}
 
+		@Override
+		public String getRawQueryString() {
+			return rawQueryString;
+		}
+
 		@Override
 		public String getPayload() {
 			return payload;
 		}
 
+		@Override
+		public String getPayloadHash() {
+			return payloadHash;
+		}
+
+		@Override
+		public InputStream getPayloadInputStream() {
+			return payloadInputStream;
+		}
+
 		@Override
 		public String getAlgorithm() {
 			return algorithm;
@@ -272,9 +498,8 @@ public class SignatureV4RequestParser {
 
 		@Override
 		public String getCredentialScopes() {
-			return String.format("%s/%s/%s/%s", credential.getRequestDate(),
-					credential.getRegion(), credential.getRequestService(),
-					credential.getConstString());
+			return credential.getRequestDate() + "/" + credential.getRegion() + "/"
+					+ credential.getRequestService() + "/" + credential.getConstString();
 		}
 
 		@Override
@@ -287,27 +512,21 @@ public class SignatureV4RequestParser {
 			if (cachedDateString != null) {
 				return cachedDateString;
 			}
-			DateFormat iso8601f = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
-			iso8601f.setTimeZone(TimeZone.getTimeZone("GMT"));
 			String lowerDateParamName = parameterType.getLowerDateParamName();
 			String date = headers.getSingleByLowerKey(lowerDateParamName);
 			if (date != null) {
-				try {
-					iso8601f.parse(date);
-				} catch (ParseException e) {
+				if (Timestamps.parseIso8601Basic(date) == Timestamps.INVALID) {
 					throw new SignatureV4Exception(ErrorType.INVALID_DATE_FORMAT, String.format(
-							"\"%s\"ヘッダーのフォーマットが間違っています。 [%s]", lowerDateParamName, date), e);
+							"\"%s\"ヘッダーのフォーマットが間違っています。 [%s]", lowerDateParamName, date));
 				}
 				cachedDateString = date;
 				return date;
 			}
 			date = queries.getSingleByLowerKey(lowerDateParamName);
 			if (date != null) {
-				try {
-					iso8601f.parse(date);
-				} catch (ParseException e) {
+				if (Timestamps.parseIso8601Basic(date) == Timestamps.INVALID) {
 					throw new SignatureV4Exception(ErrorType.INVALID_DATE_FORMAT, String.format(
-							"\"%s\"クエリーのフォーマットが間違っています。 [%s]", lowerDateParamName, date), e);
+							"\"%s\"クエリーのフォーマットが間違っています。 [%s]", lowerDateParamName, date));
 				}
 				cachedDateString = date;
 				return date;
@@ -317,15 +536,12 @@ public class SignatureV4RequestParser {
 				throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, String.format(
 						"\"date\"あるいは\"%s\"パラメータが最低でも１つは必要です。", lowerDateParamName));
 			}
-			DateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
-			Date d;
-			try {
-				d = df.parse(dateString);
-			} catch (ParseException e) {
+			long epochSeconds = Timestamps.parseRfc1123(dateString);
+			if (epochSeconds == Timestamps.INVALID) {
 				throw new SignatureV4Exception(ErrorType.INVALID_DATE_FORMAT, String.format(
-						"\"date\"ヘッダーのフォーマットが間違っています。 [%s]", dateString), e);
+						"\"date\"ヘッダーのフォーマットが間違っています。 [%s]", dateString));
 			}
-			cachedDateString = iso8601f.format(d);
+			cachedDateString = Timestamps.formatIso8601Basic(epochSeconds);
 			return cachedDateString;
 		}
 
@@ -349,8 +565,9 @@ public class SignatureV4RequestParser {
 			}
 			String lowerSignedHeaderParamName = parameterType.getLowerSignedHeadersParamName();
 			String signedHeadersString = queries.getSingleByLowerKey(lowerSignedHeaderParamName);
-			return StringUtils.isEmpty(signedHeadersString) ? EMPTY_SET : new TreeSet<>(
-					Arrays.asList(signedHeadersString.toLowerCase().split(";")));
+			return StringUtils.isEmpty(signedHeadersString) ? EMPTY_SET
+					: AuthorizationHeaderTokenizer.parseLowerSignedHeaders(signedHeadersString, 0,
+							signedHeadersString.length());
 		}
 	}
 }
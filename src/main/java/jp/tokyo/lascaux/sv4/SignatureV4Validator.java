@@ -1,21 +1,34 @@
 package jp.tokyo.lascaux.sv4;
 
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang.StringUtils;
 
 import com.typesafe.config.Config;
@@ -23,12 +36,25 @@ import com.typesafe.config.ConfigFactory;
 
 import jp.tokyo.lascaux.sv4.SignatureV4Params.Credential;
 import jp.tokyo.lascaux.sv4.SignatureV4Params.KeyValuesMap;
+import jp.tokyo.lascaux.sv4.cache.SigningKey;
+import jp.tokyo.lascaux.sv4.cache.SigningKeyCache;
 import jp.tokyo.lascaux.sv4.entity.ErrorType;
+import jp.tokyo.lascaux.sv4.entity.Hash;
 import jp.tokyo.lascaux.sv4.entity.HashType;
 import jp.tokyo.lascaux.sv4.entity.ParameterType;
-import jp.tokyo.lascaux.sv4.entity.SHAAlgorithm;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+import jp.tokyo.lascaux.sv4.entity.SignatureProfile;
 import jp.tokyo.lascaux.sv4.entity.SignatureType;
+import jp.tokyo.lascaux.sv4.payload.ChunkedPayloadInputStream;
+import jp.tokyo.lascaux.sv4.replay.ReplayDetector;
+import jp.tokyo.lascaux.sv4.replay.ReplayResult;
+import jp.tokyo.lascaux.sv4.replay.ReplayStore;
+import jp.tokyo.lascaux.sv4.secret.SecretList;
+import jp.tokyo.lascaux.sv4.secret.SecretProvider;
+import jp.tokyo.lascaux.sv4.time.EpochClock;
+import jp.tokyo.lascaux.sv4.time.Timestamps;
 import jp.tokyo.lascaux.sv4.util.SignatureV4Util;
+import jp.tokyo.lascaux.sv4.util.UriPathNormalizer;
 
 /**
  * Signature Version4 を検証するクラスです。
@@ -37,11 +63,131 @@ import jp.tokyo.lascaux.sv4.util.SignatureV4Util;
  */
 public class SignatureV4Validator {
 	private static final SignatureV4RequestParser REQUEST_PARSER = new SignatureV4RequestParser();
+	//非同期の検証ではボディを文字列として保持せず、エグゼキューターで読み込みながらハッシュ化する
+	private static final SignatureV4RequestParser STREAM_REQUEST_PARSER = new SignatureV4RequestParser(
+			ParseOption.STREAM_PAYLOAD);
 	private static final Config CONFIG = ConfigFactory.load("application-sv4.conf");
+	//最新の日付の上限は、検証と同じ時計で決める
+	private static final SigningKeyCache SIGNING_KEY_CACHE = new SigningKeyCache(
+			CONFIG.hasPath("cache.signing-key.max-size") ? CONFIG
+					.getInt("cache.signing-key.max-size") : 10000, new EpochClock() {
+				@Override
+				public long currentTimeSeconds() {
+					return clock.currentTimeSeconds();
+				}
+			});
+	private static final int MAX_CHUNK_SIZE = CONFIG.hasPath("payload.chunked.max-chunk-size") ? CONFIG
+			.getBytes("payload.chunked.max-chunk-size").intValue() : 1024 * 1024;
+	private static final String STREAMING_PAYLOAD_PREFIX = "STREAMING-";
+	private static final Set<String> S3_STYLE_URI_SERVICES = new HashSet<>(
+			CONFIG.hasPath("canonical-uri.s3-style-services") ? CONFIG
+					.getStringList("canonical-uri.s3-style-services") : Arrays.asList("s3"));
+	//シグネチャータイプ毎のプロファイル、使用されるタイプのものだけを最初の使用時に作成する
+	private static final SignatureProfile[] PROFILES = new SignatureProfile[SignatureType
+			.values().length];
+	private static final PreValidationStage[] PRE_VALIDATION_STAGES = PreValidationStage.values();
+	private static final PreValidationStatistics PRE_VALIDATION_STATISTICS = new PreValidationStatistics();
+	//有効期限と時刻のずれの判定で使用する時計
+	private static volatile EpochClock clock = EpochClock.SYSTEM;
+	private static final long REPLAY_WINDOW_SECONDS = CONFIG.hasPath("replay.window") ? CONFIG
+			.getDuration("replay.window", TimeUnit.SECONDS) : 15 * 60;
+	private static final boolean REPLAY_ACCEPT_ON_OVERFLOW = CONFIG
+			.hasPath("replay.accept-on-overflow") && CONFIG.getBoolean("replay.accept-on-overflow");
+	private static final long REPLAY_STORE_TIMEOUT_MILLIS = CONFIG.hasPath("replay.store-timeout") ? CONFIG
+			.getDuration("replay.store-timeout", TimeUnit.MILLISECONDS) : 1000;
+	//nullの場合はリプレイの検出を行わない
+	private static volatile ReplayStore replayStore;
+	//非同期の検証でエグゼキューターを指定しなかった場合に使用する
+	private static volatile Executor defaultExecutor = createDefaultExecutor();
 
 	private SignatureV4Validator() {
 	}
 
+	/**
+	 * <pre>
+	 * 有効期限と時刻のずれの判定で使用する時計を設定します。
+	 * 高負荷時には{@link jp.tokyo.lascaux.sv4.time.CachedEpochClock}を、テストでは固定の時計を指定できます
+	 * </pre>
+	 *
+	 * @param epochClock 時計
+	 */
+	public static void setClock(EpochClock epochClock) {
+		if (epochClock == null) {
+			throw new IllegalArgumentException("時計の指定は必ず必要です。");
+		}
+		clock = epochClock;
+	}
+
+	/**
+	 * 有効期限と時刻のずれの判定で使用している時計を返します。
+	 *
+	 * @return 時計
+	 */
+	public static EpochClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * <pre>
+	 * 検証に成功したリクエストの再送を検出するためのストアを設定します。
+	 * 1台のサーバーでは{@link ReplayDetector}を、複数のサーバーで共有する場合は
+	 * 共有のストアを{@link jp.tokyo.lascaux.sv4.replay.BatchingReplayStore}でラップして設定してください
+	 * nullの場合は検出を行いません（デフォルト）
+	 * </pre>
+	 *
+	 * @param store リプレイ検出のストア
+	 */
+	public static void setReplayStore(ReplayStore store) {
+		replayStore = store;
+	}
+
+	/**
+	 * 設定されているリプレイ検出のストアを返します。
+	 *
+	 * @return リプレイ検出のストア、設定されていない場合はnull
+	 */
+	public static ReplayStore getReplayStore() {
+		return replayStore;
+	}
+
+	/**
+	 * 検証で使用している署名キーのキャッシュを返します。
+	 * ヒット数などの統計情報の参照に使用してください
+	 *
+	 * @return 署名キーのキャッシュ
+	 */
+	public static SigningKeyCache getSigningKeyCache() {
+		return SIGNING_KEY_CACHE;
+	}
+
+	/**
+	 * 署名の計算前の検証で拒否したリクエストの集計を返します。
+	 *
+	 * @return 署名の計算前の検証の集計
+	 */
+	public static PreValidationStatistics getPreValidationStatistics() {
+		return PRE_VALIDATION_STATISTICS;
+	}
+
+	/**
+	 * <pre>
+	 * シグネチャータイプに対応する、設定を反映済みのプロファイルを返します。
+	 * プロファイルは最初の使用時に作成し、以降は同じものを使用します
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャータイプ
+	 * @return プロファイル
+	 */
+	public static SignatureProfile getProfile(SignatureType signatureType) {
+		SignatureProfile profile = PROFILES[signatureType.ordinal()];
+		if (profile == null) {
+			//同時に作成されても同じ内容の不変オブジェクトなので問題ない
+			profile = SignatureProfile.create(signatureType, CONFIG);
+			PROFILES[signatureType.ordinal()] = profile;
+		}
+		return profile;
+	}
+
 	/**
 	 * HttpServletRequestを引数にとりSignatureVersion4の検証を行います。
 	 *
@@ -52,7 +198,9 @@ public class SignatureV4Validator {
 	 */
 	public static void validate(SignatureType signatureType, HttpServletRequest request,
 			String privateKey) throws SignatureV4Exception {
-		validate(signatureType, REQUEST_PARSER.parse(signatureType, request), privateKey);
+		//ボディを読み込む前に署名計算前の検証を行う
+		validate(signatureType, REQUEST_PARSER.parse(signatureType, request, true),
+				Collections.singletonList(privateKey), true);
 	}
 
 	/**
@@ -65,61 +213,342 @@ public class SignatureV4Validator {
 	 */
 	public static void validate(SignatureType signatureType, SignatureV4Params params,
 			String privateKey) throws SignatureV4Exception {
+		validate(signatureType, params, Collections.singletonList(privateKey), false);
+	}
+
+	/**
+	 * <pre>
+	 * HttpServletRequestを引数にとり、複数の秘密鍵の候補でSignatureVersion4の検証を行います。
+	 * 詳細は{@link #validateCandidates(SignatureType, SignatureV4Params, List)}を参照してください
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param request サーブレットリクエスト
+	 * @param privateKeys 秘密鍵の候補
+	 * @return 一致した秘密鍵のインデックス
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	public static int validateCandidates(SignatureType signatureType, HttpServletRequest request,
+			List<String> privateKeys) throws SignatureV4Exception {
+		return validate(signatureType, REQUEST_PARSER.parse(signatureType, request, true),
+				privateKeys, true);
+	}
+
+	/**
+	 * <pre>
+	 * 複数の秘密鍵の候補でSignatureVersion4の検証を行います。
+	 * 秘密鍵のローテーション中など、どの秘密鍵で署名されたか分からない場合に使用してください
+	 * 正規化リクエストのハッシュ化と署名文字列の作成は1回だけ行い、候補毎には署名の計算だけを行います
+	 * 候補はリストの順番に試し、最初に一致した候補のインデックスを返します
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params SignatureVersion4パラメータ
+	 * @param privateKeys 秘密鍵の候補
+	 * @return 一致した秘密鍵のインデックス
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	public static int validateCandidates(SignatureType signatureType, SignatureV4Params params,
+			List<String> privateKeys) throws SignatureV4Exception {
+		return validate(signatureType, params, privateKeys, false);
+	}
+
+	/**
+	 * <pre>
+	 * HttpServletRequestを引数にとり、プロバイダーから取得した秘密鍵でSignatureVersion4の検証を行います。
+	 * 詳細は{@link #validate(SignatureType, SignatureV4Params, SecretProvider)}を参照してください
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param request サーブレットリクエスト
+	 * @param secretProvider 秘密鍵のプロバイダー
+	 * @return 一致した秘密鍵のインデックス
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	public static int validate(SignatureType signatureType, HttpServletRequest request,
+			SecretProvider secretProvider) throws SignatureV4Exception {
+		SignatureV4Params params = REQUEST_PARSER.parse(signatureType, request, true);
+		return validate(signatureType, params, getSecrets(secretProvider, params), true);
+	}
+
+	/**
+	 * <pre>
+	 * 資格情報のアクセスキーでプロバイダーから秘密鍵を取得して、SignatureVersion4の検証を行います。
+	 * 秘密鍵の取得は署名計算前の検証の後に行うので、不正なリクエストではプロバイダーを呼び出しません
+	 * プロバイダーが複数の秘密鍵を返した場合は{@link #validateCandidates}と同じく順番に検証します
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params SignatureVersion4パラメータ
+	 * @param secretProvider 秘密鍵のプロバイダー
+	 * @return 一致した秘密鍵のインデックス
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	public static int validate(SignatureType signatureType, SignatureV4Params params,
+			SecretProvider secretProvider) throws SignatureV4Exception {
+		preValidate(getProfile(signatureType), params);
+		return validate(signatureType, params, getSecrets(secretProvider, params), true);
+	}
+
+	/**
+	 * 資格情報のアクセスキーに対応する秘密鍵をプロバイダーから取得します。
+	 */
+	static List<String> getSecrets(SecretProvider secretProvider, SignatureV4Params params)
+			throws SignatureV4Exception {
+		String accessKey = params.getCredential().getAccessKey();
+		List<String> secrets;
+		try {
+			secrets = secretProvider.getSecrets(accessKey);
+		} catch (Exception e) {
+			throw new SignatureV4Exception(ErrorType.SECRET_UNAVAILABLE, String.format(
+					"秘密鍵の取得に失敗しました。 accessKey [%s]", accessKey), e);
+		}
+		if (secrets == null || secrets.isEmpty()) {
+			throw new SignatureV4Exception(ErrorType.UNKNOWN_ACCESS_KEY, String.format(
+					"アクセスキーに対応する秘密鍵が見つかりませんでした。 accessKey [%s]", accessKey));
+		}
+		return secrets;
+	}
+
+	static int validate(SignatureType signatureType, SignatureV4Params params,
+			List<String> privateKeys, boolean preValidated) throws SignatureV4Exception {
+		int matched = matchSignature(signatureType, params, privateKeys, preValidated);
+		checkReplay(getProfile(signatureType), params);
+		return matched;
+	}
+
+	/**
+	 * <pre>
+	 * HttpServletRequestを引数にとり、非同期でSignatureVersion4の検証を行います。
+	 * ヘッダーとクエリーのパースと署名計算前の検証は呼び出したスレッドで行い、
+	 * ボディの読み込みとハッシュ化は指定したエグゼキューターで行います
+	 * ボディは文字列として保持しないので、パラメータのgetPayload()はnullになります
+	 * エグゼキューターでボディを読み込むので、結果が完了するまではリクエストを有効にしておく必要があります
+	 * （{@link javax.servlet.ServletRequest#startAsync()}で非同期処理を開始するか、結果を待ってください）
+	 * 詳細は{@link #validateAsync(SignatureType, SignatureV4Params, SecretProvider, Executor)}を参照してください
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param request サーブレットリクエスト
+	 * @param secretProvider 秘密鍵のプロバイダー
+	 * @param executor 検証を行うエグゼキューター
+	 * @return 検証結果
+	 */
+	public static CompletionStage<ValidationResult> validateAsync(SignatureType signatureType,
+			HttpServletRequest request, SecretProvider secretProvider, Executor executor) {
+		SignatureV4Params params;
 		try {
-			//まずパラメータのチェック
-			validateParams(signatureType, params);
-			if (StringUtils.isEmpty(privateKey)) {
+			params = STREAM_REQUEST_PARSER.parseWithoutPayload(signatureType, request);
+		} catch (SignatureV4Exception e) {
+			return CompletableFuture.completedFuture(ValidationResult.failure(e));
+		}
+		return validateAsync(signatureType, params, request, secretProvider, null, true, executor);
+	}
+
+	/**
+	 * デフォルトのエグゼキューターで、非同期でSignatureVersion4の検証を行います。
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params SignatureVersion4パラメータ
+	 * @param secretProvider 秘密鍵のプロバイダー
+	 * @return 検証結果
+	 * @see #setDefaultExecutor(Executor)
+	 */
+	public static CompletionStage<ValidationResult> validateAsync(SignatureType signatureType,
+			SignatureV4Params params, SecretProvider secretProvider) {
+		return validateAsync(signatureType, params, secretProvider, defaultExecutor);
+	}
+
+	/**
+	 * <pre>
+	 * 非同期でSignatureVersion4の検証を行います。
+	 * 署名計算前の検証は呼び出したスレッドで行い、
+	 * 秘密鍵の取得、正規化リクエストのハッシュ化、署名の計算は指定したエグゼキューターで行います
+	 * リプレイ検出のストアが設定されている場合は、ストアの結果もブロックせずに待ちます
+	 * 検証の失敗は例外ではなく失敗の結果として返し、予期しない例外の場合のみ例外で完了します
+	 * ストアの結果を待った後の処理は、ストアの結果を設定したスレッドで行われることがあるので、
+	 * 時間のかかる処理を続ける場合は*Asyncのメソッドを使用してください
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params SignatureVersion4パラメータ
+	 * @param secretProvider 秘密鍵のプロバイダー
+	 * @param executor 検証を行うエグゼキューター
+	 * @return 検証結果
+	 */
+	public static CompletionStage<ValidationResult> validateAsync(SignatureType signatureType,
+			SignatureV4Params params, SecretProvider secretProvider, Executor executor) {
+		if (secretProvider == null) {
+			throw new IllegalArgumentException("秘密鍵のプロバイダーの指定は必ず必要です。");
+		}
+		return validateAsync(signatureType, params, null, secretProvider, null, false, executor);
+	}
+
+	/**
+	 * デフォルトのエグゼキューターで、非同期で複数の秘密鍵の候補でSignatureVersion4の検証を行います。
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params SignatureVersion4パラメータ
+	 * @param privateKeys 秘密鍵の候補
+	 * @return 検証結果
+	 * @see #setDefaultExecutor(Executor)
+	 */
+	public static CompletionStage<ValidationResult> validateCandidatesAsync(
+			SignatureType signatureType, SignatureV4Params params, List<String> privateKeys) {
+		return validateCandidatesAsync(signatureType, params, privateKeys, defaultExecutor);
+	}
+
+	/**
+	 * <pre>
+	 * 非同期で複数の秘密鍵の候補でSignatureVersion4の検証を行います。
+	 * 詳細は{@link #validateAsync(SignatureType, SignatureV4Params, SecretProvider, Executor)}を参照してください
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params SignatureVersion4パラメータ
+	 * @param privateKeys 秘密鍵の候補
+	 * @param executor 検証を行うエグゼキューター
+	 * @return 検証結果
+	 */
+	public static CompletionStage<ValidationResult> validateCandidatesAsync(
+			SignatureType signatureType, SignatureV4Params params, List<String> privateKeys,
+			Executor executor) {
+		return validateAsync(signatureType, params, null, null, privateKeys, false, executor);
+	}
+
+	/**
+	 * <pre>
+	 * 秘密鍵のプロバイダーが指定されている場合はプロバイダーの秘密鍵で、ない場合は秘密鍵の候補で検証します。
+	 * payloadRequestが指定されている場合は、エグゼキューターでそのボディを読み込んでから検証します
+	 * </pre>
+	 */
+	static CompletableFuture<ValidationResult> validateAsync(
+			final SignatureType signatureType, final SignatureV4Params params,
+			final HttpServletRequest payloadRequest, final SecretProvider secretProvider,
+			final List<String> privateKeys, final boolean preValidated, Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("エグゼキューターの指定は必ず必要です。");
+		}
+		//署名計算前の検証は軽いので呼び出したスレッドで行い、拒否する場合はエグゼキューターを使用しない
+		if (!preValidated) {
+			try {
+				preValidate(getProfile(signatureType), params);
+			} catch (SignatureV4Exception e) {
+				return CompletableFuture.completedFuture(ValidationResult.failure(e));
+			}
+		}
+		return CompletableFuture.supplyAsync(new Supplier<ValidationResult>() {
+			@Override
+			public ValidationResult get() {
+				try {
+					if (payloadRequest != null) {
+						STREAM_REQUEST_PARSER.readPayload(signatureType, params, payloadRequest);
+					}
+					List<String> keys = secretProvider == null ? privateKeys : getSecrets(
+							secretProvider, params);
+					return ValidationResult.success(matchSignature(signatureType, params, keys,
+							true));
+				} catch (SignatureV4Exception e) {
+					return ValidationResult.failure(e);
+				}
+			}
+		}, executor).thenCompose(new Function<ValidationResult, CompletionStage<ValidationResult>>() {
+			@Override
+			public CompletionStage<ValidationResult> apply(ValidationResult result) {
+				ReplayStore store = replayStore;
+				if (!result.isValid() || store == null) {
+					return CompletableFuture.completedFuture(result);
+				}
+				return checkReplayAsync(store, getProfile(signatureType), params, result);
+			}
+		});
+	}
+
+	/**
+	 * <pre>
+	 * 非同期の検証で、エグゼキューターを指定しなかった場合に使用するエグゼキューターを設定します。
+	 * デフォルトは、仮想スレッドが使用できる実行環境（Java 21以降）ではタスク毎に仮想スレッドを作成するエグゼキューター、
+	 * 使用できない場合は{@link ForkJoinPool#commonPool()}です
+	 * </pre>
+	 *
+	 * @param executor エグゼキューター
+	 */
+	public static void setDefaultExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("エグゼキューターの指定は必ず必要です。");
+		}
+		defaultExecutor = executor;
+	}
+
+	/**
+	 * 非同期の検証で、エグゼキューターを指定しなかった場合に使用するエグゼキューターを返します。
+	 *
+	 * @return エグゼキューター
+	 */
+	public static Executor getDefaultExecutor() {
+		return defaultExecutor;
+	}
+
+	/**
+	 * 仮想スレッドのエグゼキューターを作成します。Java 21より前の実行環境ではcommonPoolを返します。
+	 */
+	private static Executor createDefaultExecutor() {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(
+					null);
+		} catch (ReflectiveOperationException e) {
+			return ForkJoinPool.commonPool();
+		}
+	}
+
+	/**
+	 * 署名計算前の検証から署名の一致の確認までを行い、一致した秘密鍵のインデックスを返します。
+	 */
+	private static int matchSignature(SignatureType signatureType, SignatureV4Params params,
+			List<String> privateKeys, boolean preValidated) throws SignatureV4Exception {
+		try {
+			SignatureProfile profile = getProfile(signatureType);
+			//まず署名の計算が不要な検証を行う
+			if (!preValidated) {
+				preValidate(profile, params);
+			}
+			if (privateKeys == null || privateKeys.isEmpty()) {
 				throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "秘密鍵の指定は必ず必要です。");
 			}
+			for (String privateKey : privateKeys) {
+				if (StringUtils.isEmpty(privateKey)) {
+					throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "秘密鍵の指定は必ず必要です。");
+				}
+			}
 			//アルゴリズム名からアルゴリズムコンポーネント抽出
-			HashType hashType = HashType.getHashType(signatureType, params.getAlgorithm());
-			ParameterType parameterType = signatureType.getParameterType();
-			SHAAlgorithm shaAlgorithm = new SHAAlgorithm(hashType);
-			//CanonicalRequest作成
-			String canonicalRequest = createCanonicalRequest(params, shaAlgorithm, parameterType);
-			//CanonicalRequestのハッシュ化
-			String hashedCanonicalRequest = shaAlgorithm.hashedString(canonicalRequest);
-			//署名文字列作成
-			String stringToSign = createStringToSign(parameterType, params, hashedCanonicalRequest);
-			//シークレットアクセスキーを取り出す
-			byte[] kSecret = (signatureType.getPrefix() + privateKey).getBytes("UTF8");
-			//  署名計算
-			Credential credential = params.getCredential();
-			byte[] kDate = shaAlgorithm.hashHmac(credential.getRequestDate(), kSecret);
-			byte[] kRegion = shaAlgorithm.hashHmac(credential.getRegion(), kDate);
-			byte[] kService = shaAlgorithm.hashHmac(credential.getRequestService(), kRegion);
-			byte[] kSigning = shaAlgorithm.hashHmac(credential.getConstString(), kService);
-			byte[] bytes = shaAlgorithm.hashHmac(stringToSign, kSigning);
-			bytes = new Hex().encode(bytes);
-			String signatureKey = new String(bytes, "UTF-8");
-			if (!signatureKey.equals(params.getSignature())) {
+			HashType hashType = profile.getHashType(params.getAlgorithm());
+			ParameterType parameterType = profile.getParameterType();
+			//フォーマットは事前検証で確認済み
+			byte[] signature = SignatureV4Util.decodeHexSignature(params.getSignature(),
+					hashType.getHashLength());
+			if (signature == null) {
 				throw new SignatureV4Exception(ErrorType.WRONG_SIGNATURE, String.format(
-						"シグネチャーが一致しませんでした。 signed signature [%s], calculated signature [%s]",
-						params.getSignature(), signatureKey));
+						"シグネチャーのフォーマットが間違っています。 signed signature [%s]",
+						params.getSignature()));
 			}
-			String expireString = params.getExpire(parameterType);
-			if (!StringUtils.isEmpty(expireString)) {
-				//ここに来たときには、日付文字列は必ずあるはず
-				Calendar cal = Calendar.getInstance();
-				Date currentTime = cal.getTime();
-				String dateString = params.getDate(parameterType);
-				DateFormat iso8601f = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
-				Date date;
-				try {
-					date = iso8601f.parse(dateString);
-				} catch (ParseException e) {
-					throw new SignatureV4Exception(ErrorType.INVALID_DATE_FORMAT, String.format(
-							"日付文字列のパースに失敗しました。 [%s]", dateString));
-				}
-				cal.setTime(date);
-				cal.add(Calendar.SECOND, Integer.valueOf(expireString));
-				Date expireTime = cal.getTime();
-				if (expireTime.getTime() < currentTime.getTime()) {
-					throw new SignatureV4Exception(ErrorType.EXPIRE, String.format(
-							"有効期限が切れていました。expireDate [%s], currentDate [%s]", expireTime,
-							currentTime));
+			//CanonicalRequestを作成しながらハッシュ化
+			String hashedCanonicalRequest = CanonicalRequestWriter.getInstance()
+					.hashCanonicalRequest(params, hashType, parameterType);
+			//署名文字列作成
+			String stringToSign = createStringToSign(profile, params, hashedCanonicalRequest);
+			//  候補毎に署名計算
+			Credential credential = params.getCredential();
+			//ローテーション中に古い秘密鍵で署名されても再計算しないように、一致しない候補もキャッシュする
+			//日付のずれとスコープは事前検証で確認済みで、キャッシュの最新の日付は現在時刻の翌日までに制限される
+			for (int i = 0; i < privateKeys.size(); i++) {
+				SigningKey kSigning = getSigningKey(signatureType, hashType, credential,
+						privateKeys.get(i), SecretList.fingerprint(privateKeys, i));
+				if (SignatureV4Util.constantTimeEquals(kSigning.sign(stringToSign), signature)) {
+					return i;
 				}
 			}
+			throw new SignatureV4Exception(ErrorType.WRONG_SIGNATURE, String.format(
+					"シグネチャーが一致しませんでした。 signed signature [%s]", params.getSignature()));
 		} catch (SignatureV4Exception e) {
 			throw e;
 		} catch (UnsupportedEncodingException e) {
@@ -138,15 +567,320 @@ public class SignatureV4Validator {
 	}
 
 	/**
-	 * SignatureVersion4検証で必要なパラメータチェックを行います。
+	 * <pre>
+	 * aws-chunked形式でアップロードされたリクエストの検証を行い、
+	 * チャンク毎のシグネチャーを検証しながらボディを読み込むための入力ストリームを返します。
+	 * ペイロードのハッシュ値が"STREAMING-"で始まる値で宣言されている必要があるので、
+	 * パースは{@link jp.tokyo.lascaux.sv4.payload.StandardPayloadHashStrategy#DECLARED}で行ってください
+	 * リクエスト自体の検証に失敗した場合はこのメソッドでSignatureV4Exceptionがスローされ、
+	 * チャンクの検証に失敗した場合は返したストリームの読み込みでIOExceptionがスローされます
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params SignatureVersion4パラメータ
+	 * @param privateKey 秘密鍵
+	 * @param in aws-chunked形式のボディ
+	 * @return デコードされたボディの入力ストリーム
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	public static InputStream openChunkedPayloadStream(SignatureType signatureType,
+			SignatureV4Params params, String privateKey, InputStream in)
+			throws SignatureV4Exception {
+		return openChunkedPayloadStream(signatureType, params,
+				Collections.singletonList(privateKey), in);
+	}
+
+	/**
+	 * <pre>
+	 * 複数の秘密鍵の候補でaws-chunked形式のリクエストの検証を行い、ボディを読み込むための入力ストリームを返します。
+	 * チャンクのシグネチャーは、リクエストの検証で一致した秘密鍵で検証します
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params SignatureVersion4パラメータ
+	 * @param privateKeys 秘密鍵の候補
+	 * @param in aws-chunked形式のボディ
+	 * @return デコードされたボディの入力ストリーム
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	public static InputStream openChunkedPayloadStream(SignatureType signatureType,
+			SignatureV4Params params, List<String> privateKeys, InputStream in)
+			throws SignatureV4Exception {
+		checkStreamingPayloadHash(params);
+		int matched = validateCandidates(signatureType, params, privateKeys);
+		return openVerifiedChunkedPayloadStream(signatureType, params, privateKeys.get(matched), in);
+	}
+
+	/**
+	 * <pre>
+	 * 検証済みのaws-chunked形式のリクエストの、ボディを読み込むための入力ストリームを返します。
+	 * リクエストの検証は行わないので、{@link #validateCandidates}などで検証に成功した後に、
+	 * 一致した秘密鍵を指定して呼び出してください（リプレイ検出の確認も2回行いません）
+	 * チャンクの検証に失敗した場合は、返したストリームの読み込みでIOExceptionがスローされます
+	 * </pre>
+	 *
+	 * @param signatureType シグネチャーのタイプ
+	 * @param params 検証済みのSignatureVersion4パラメータ
+	 * @param matchedPrivateKey リクエストの検証で一致した秘密鍵
+	 * @param in aws-chunked形式のボディ
+	 * @return デコードされたボディの入力ストリーム
+	 * @throws SignatureV4Exception チャンク形式のパラメータが不正な場合にスローされる例外
+	 */
+	public static InputStream openVerifiedChunkedPayloadStream(SignatureType signatureType,
+			SignatureV4Params params, String matchedPrivateKey, InputStream in)
+			throws SignatureV4Exception {
+		checkStreamingPayloadHash(params);
+		if (StringUtils.isEmpty(matchedPrivateKey)) {
+			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "秘密鍵の指定は必ず必要です。");
+		}
+		SignatureProfile profile = getProfile(signatureType);
+		ParameterType parameterType = profile.getParameterType();
+		String decodedLength = params.getHeaders().getSingleByLowerKey(
+				parameterType.getLowerDecodedContentLengthParamName());
+		long expectedDecodedLength = -1;
+		if (!StringUtils.isEmpty(decodedLength)) {
+			try {
+				expectedDecodedLength = Long.parseLong(decodedLength);
+			} catch (NumberFormatException e) {
+				throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, String.format(
+						"\"%s\"ヘッダーのフォーマットが間違っています。 [%s]",
+						parameterType.getLowerDecodedContentLengthParamName(), decodedLength), e);
+			}
+		}
+		HashType hashType = profile.getHashType(params.getAlgorithm());
+		SigningKey kSigning;
+		try {
+			kSigning = getSigningKey(signatureType, hashType, params.getCredential(),
+					matchedPrivateKey, SecretList.fingerprint(matchedPrivateKey));
+		} catch (Exception e) {
+			throw new SignatureV4Exception(ErrorType.FAIL_HASHED,
+					"SignatureVersion4の検証中ハッシュ化処理で例外が発生しました。", e);
+		}
+		return new ChunkedPayloadInputStream(in, hashType, kSigning.getKey(), params.getAlgorithm(),
+				params.getDate(parameterType), profile.createScope(params.getCredential()
+						.getRequestDate()), params.getSignature(),
+				MAX_CHUNK_SIZE, expectedDecodedLength);
+	}
+
+	private static void checkStreamingPayloadHash(SignatureV4Params params)
+			throws SignatureV4Exception {
+		String payloadHash = params.getPayloadHash();
+		if (payloadHash == null || !payloadHash.startsWith(STREAMING_PAYLOAD_PREFIX)) {
+			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, String.format(
+					"ペイロードのハッシュ値がチャンク形式ではありません。 [%s]", payloadHash));
+		}
+	}
+
+	/**
+	 * 署名キーをキャッシュから取得し、キャッシュにない場合は計算してキャッシュします。
+	 *
+	 * @param signatureType シグネチャータイプ
+	 * @param hashType ハッシュアルゴリズムタイプ
+	 * @param credential 資格情報
+	 * @param privateKey 秘密鍵
+	 * @param secretFingerprint 秘密鍵のフィンガープリント
+	 * @return 署名キー
+	 * @throws Exception
+	 */
+	private static SigningKey getSigningKey(SignatureType signatureType, HashType hashType,
+			Credential credential, String privateKey, String secretFingerprint) throws Exception {
+		SigningKey kSigning = SIGNING_KEY_CACHE.get(signatureType, hashType, credential,
+				secretFingerprint);
+		if (kSigning == null) {
+			kSigning = new SigningKey(hashType, createSigningKey(signatureType,
+					ReusableSHAAlgorithm.getInstance(hashType), credential, privateKey));
+			SIGNING_KEY_CACHE.put(signatureType, hashType, credential, secretFingerprint, kSigning);
+		}
+		return kSigning;
+	}
+
+	/**
+	 * 秘密鍵と資格情報から署名キー(kSigning)を計算して返します。
 	 *
 	 * @param signatureType シグネチャータイプ
+	 * @param shaAlgorithm SHAアルゴリズム
+	 * @param credential 資格情報
+	 * @param privateKey 秘密鍵
+	 * @return 署名キー
+	 * @throws Exception
+	 */
+	static byte[] createSigningKey(SignatureType signatureType, Hash shaAlgorithm,
+			Credential credential, String privateKey) throws Exception {
+		//シークレットアクセスキーを取り出す
+		byte[] kSecret = (signatureType.getPrefix() + privateKey).getBytes("UTF8");
+		byte[] kDate = shaAlgorithm.hashHmac(credential.getRequestDate(), kSecret);
+		byte[] kRegion = shaAlgorithm.hashHmac(credential.getRegion(), kDate);
+		byte[] kService = shaAlgorithm.hashHmac(credential.getRequestService(), kRegion);
+		return shaAlgorithm.hashHmac(credential.getConstString(), kService);
+	}
+
+	/**
+	 * <pre>
+	 * ハッシュ化や署名の計算を行わずに確認できる検証を、{@link PreValidationStage}の順番に行います。
+	 * 拒否した場合は段階毎の拒否数を集計します
+	 * </pre>
+	 *
+	 * @param profile シグネチャーのプロファイル
+	 * @param params SV4パラメータ
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	static void preValidate(SignatureProfile profile, SignatureV4Params params)
+			throws SignatureV4Exception {
+		long now = clock.currentTimeSeconds();
+		for (PreValidationStage stage : PRE_VALIDATION_STAGES) {
+			try {
+				stage.check(profile, params, now);
+			} catch (SignatureV4Exception e) {
+				PRE_VALIDATION_STATISTICS.incrementRejectedCount(stage);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * <pre>
+	 * シグネチャーが一致したリクエストを記録し、記録済みの場合は再送として拒否します。
+	 * ストアが応答しない場合や失敗した場合も拒否します
+	 * ストアの容量を超えて記録できなかった場合は、"replay.accept-on-overflow"がfalseなら
+	 * 再送ではなく、再送の確認に失敗したとして拒否します
+	 * </pre>
+	 *
+	 * @param profile シグネチャーのプロファイル
+	 * @param params SV4パラメータ
+	 * @throws SignatureV4Exception 再送されたリクエストの場合にスローされる例外
+	 */
+	private static void checkReplay(SignatureProfile profile, SignatureV4Params params)
+			throws SignatureV4Exception {
+		ReplayStore store = replayStore;
+		if (store == null) {
+			return;
+		}
+		ReplayResult[] results;
+		try {
+			results = checkAndSetReplay(store, profile, params).get(REPLAY_STORE_TIMEOUT_MILLIS,
+					TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SignatureV4Exception(ErrorType.REPLAY_CHECK_FAILED, "再送の確認中に割り込まれました。", e);
+		} catch (ExecutionException e) {
+			throw new SignatureV4Exception(ErrorType.REPLAY_CHECK_FAILED, "再送の確認に失敗しました。",
+					e.getCause());
+		} catch (TimeoutException e) {
+			throw new SignatureV4Exception(ErrorType.REPLAY_CHECK_FAILED, "再送の確認がタイムアウトしました。", e);
+		}
+		SignatureV4Exception e = createReplayException(results[0], params);
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * <pre>
+	 * {@link #checkReplay}の非同期版です。ストアの結果はブロックせずに待ちます
+	 * タイムアウトした場合やストアが失敗した場合は、失敗の結果で完了します
+	 * </pre>
+	 *
+	 * @param store リプレイ検出のストア
+	 * @param profile シグネチャーのプロファイル
+	 * @param params SV4パラメータ
+	 * @param matched シグネチャーが一致した結果
+	 * @return 検証結果
+	 */
+	private static CompletableFuture<ValidationResult> checkReplayAsync(ReplayStore store,
+			SignatureProfile profile, final SignatureV4Params params, final ValidationResult matched) {
+		final CompletableFuture<ValidationResult> future = new CompletableFuture<>();
+		CompletableFuture<ReplayResult[]> replay;
+		try {
+			replay = checkAndSetReplay(store, profile, params);
+		} catch (SignatureV4Exception e) {
+			return CompletableFuture.completedFuture(ValidationResult.failure(e));
+		} catch (RuntimeException e) {
+			replay = new CompletableFuture<>();
+			replay.completeExceptionally(e);
+		}
+		final ScheduledFuture<?> timeout = ReplayTimeoutScheduler.INSTANCE.schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.complete(ValidationResult.failure(new SignatureV4Exception(
+						ErrorType.REPLAY_CHECK_FAILED, "再送の確認がタイムアウトしました。")));
+			}
+		}, REPLAY_STORE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		replay.whenComplete(new BiConsumer<ReplayResult[], Throwable>() {
+			@Override
+			public void accept(ReplayResult[] results, Throwable error) {
+				timeout.cancel(false);
+				if (error != null) {
+					Throwable cause = error instanceof CompletionException
+							&& error.getCause() != null ? error.getCause() : error;
+					future.complete(ValidationResult.failure(new SignatureV4Exception(
+							ErrorType.REPLAY_CHECK_FAILED, "再送の確認に失敗しました。", cause)));
+				} else {
+					SignatureV4Exception e = createReplayException(results[0], params);
+					future.complete(e != null ? ValidationResult.failure(e) : matched);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * ストアの結果から、拒否する場合の例外を作成します。
+	 *
+	 * @param result ストアの結果
+	 * @param params SV4パラメータ
+	 * @return 拒否する場合は例外、受け入れる場合はnull
+	 */
+	private static SignatureV4Exception createReplayException(ReplayResult result,
+			SignatureV4Params params) {
+		if (result == ReplayResult.REPLAYED) {
+			return new SignatureV4Exception(ErrorType.REPLAYED, String.format(
+					"検証済みのリクエストが再送されました。 signed signature [%s]", params
+							.getSignature()));
+		}
+		if (result == ReplayResult.OVERFLOW && !REPLAY_ACCEPT_ON_OVERFLOW) {
+			return new SignatureV4Exception(ErrorType.REPLAY_CHECK_FAILED,
+					"再送を記録できる数を超えたため、再送を確認できませんでした。");
+		}
+		return null;
+	}
+
+	/**
+	 * <pre>
+	 * シグネチャーをストアに記録します。
+	 * リクエストの有効期限は、有効期限がある場合は日付に有効期限を、ない場合は許容する時刻のずれを足した時刻です
+	 * どちらもない場合や記録期間（"replay.window"）より先の場合は、現在時刻に記録期間を足した時刻にします
+	 * </pre>
+	 */
+	private static CompletableFuture<ReplayResult[]> checkAndSetReplay(ReplayStore store,
+			SignatureProfile profile, SignatureV4Params params) throws SignatureV4Exception {
+		ParameterType parameterType = profile.getParameterType();
+		long date = Timestamps.parseIso8601Basic(params.getDate(parameterType));
+		long now = clock.currentTimeSeconds();
+		long windowEnd = now + REPLAY_WINDOW_SECONDS;
+		String expireString = params.getExpire(parameterType);
+		long expireAt;
+		if (!StringUtils.isEmpty(expireString)) {
+			//フォーマットは事前検証で確認済み
+			expireAt = Math.min(date + Long.parseLong(expireString), windowEnd);
+		} else if (profile.getMaxClockSkewSeconds() > 0) {
+			expireAt = Math.min(date + profile.getMaxClockSkewSeconds(), windowEnd);
+		} else {
+			expireAt = windowEnd;
+		}
+		return store.checkAndSet(new long[] { ReplayDetector.fingerprint(params.getSignature()) },
+				new long[] { expireAt }, now);
+	}
+
+	/**
+	 * SignatureVersion4検証で必要なパラメータチェックを行います。
+	 *
+	 * @param profile シグネチャーのプロファイル
 	 * @param params SV4パラメータ
 	 * @throws SignatureV4Exception SV4例外
 	 */
-	static void validateParams(SignatureType signatureType, SignatureV4Params params)
+	static void validateParams(SignatureProfile profile, SignatureV4Params params)
 			throws SignatureV4Exception {
-		ParameterType parameterType = signatureType.getParameterType();
+		ParameterType parameterType = profile.getParameterType();
 		if (StringUtils.isEmpty(params.getMethod())) {
 			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "メソッドは必ず必要です。");
 		}
@@ -176,15 +910,6 @@ public class SignatureV4Validator {
 		if (StringUtils.isEmpty(credential.getConstString())) {
 			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "資格情報から\"終了文字列\"が取得できませんでした。");
 		}
-		if (!credential.getRegion().equals(signatureType.getCredentialRegion(CONFIG))) {
-			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "資格情報の\"地域\"が間違っています。");
-		}
-		if (!credential.getRequestService().equals(signatureType.getCredentialService(CONFIG))) {
-			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "資格情報の\"要求サービス\"が間違っています。");
-		}
-		if (!credential.getConstString().equals(signatureType.getCredentialEndString())) {
-			throw new SignatureV4Exception(ErrorType.INVALID_PARAMS, "資格情報の\"終了文字列\"が間違っています。");
-		}
 		SortedSet<String> lowerSignedHeaders = params.getLowerSignedHeaders(parameterType);
 		//nullはない
 		if (lowerSignedHeaders.isEmpty()) {
@@ -212,36 +937,28 @@ public class SignatureV4Validator {
 		if (StringUtils.isEmpty(params.getSignature())) {
 			throw new SignatureV4Exception(ErrorType.WRONG_SIGNATURE, "シグネチャーが取得できませんでした。");
 		}
-		//スコープの日付とリクエストの日付が一致しているか
-		String requestDate = credential.getRequestDate();
-		DateFormat df = new SimpleDateFormat("yyyyMMdd");
-		try {
-			df.parse(requestDate);
-		} catch (ParseException e) {
+		if (Timestamps.parseBasicDate(credential.getRequestDate()) == Timestamps.INVALID) {
 			throw new SignatureV4Exception(ErrorType.INVALID_DATE_FORMAT,
-					"資格情報の\"要求日付\"のフォーマットが間違っています。", e);
-		}
-		if (!dateString.startsWith(requestDate)) {
-			throw new SignatureV4Exception(ErrorType.WRONG_DATE,
-					"資格情報の\"要求日付\"とヘッダーあるいはクエリーの日付が違っています。");
+					"資格情報の\"要求日付\"のフォーマットが間違っています。");
 		}
 	}
 
 	/**
 	 * <pre>
 	 * 正規化されたリクエスト文字列を作成して返します。
-	 * テスト用にも使える用のパッケージプライベートメソッド
+	 * 検証では{@link CanonicalRequestWriter}で直接ハッシュ化するため、このメソッドは使用しません
+	 * テストやデバッグ用にも使える用のパッケージプライベートメソッド
 	 * </pre>
 	 *
 	 * @param params SV4パラメータ
-	 * @param shaAlgorithm SHAアルゴリズム
+	 * @param hashType ハッシュアルゴリズムタイプ
 	 * @param parameterType ヘッダータイプ
 	 * @return 正規化されたリクエスト文字列
-	 * @throws SignatureV4Exception
+	 * @throws Exception
 	 * @see http://docs.aws.amazon.com/ja_jp/general/latest/gr/sigv4-create-canonical-request.html
 	 */
-	static String createCanonicalRequest(SignatureV4Params params, SHAAlgorithm shaAlgorithm,
-			ParameterType parameterType) throws SignatureV4Exception {
+	static String createCanonicalRequest(SignatureV4Params params, HashType hashType,
+			ParameterType parameterType) throws Exception {
 		//  メソッド抽出
 		//  URI抽出と正規化
 		//  クエリ抽出と正規化
@@ -250,10 +967,11 @@ public class SignatureV4Validator {
 		//  ペイロードのハッシュ化
 		StringBuilder sb = new StringBuilder();
 		sb.append(params.getMethod()).append(SignatureV4Util.LINE_SEPARATOR);
-		sb.append(SignatureV4Util.normalizeUri(params.getRequestUri())).append(
+		sb.append(SignatureV4Util.normalizeUri(params.getRequestUri(),
+				getUriNormalizationRule(params))).append(
 				SignatureV4Util.LINE_SEPARATOR);
-		String encodedKeySortedQueries = SignatureV4Util.createCanonicalQueries(
-				params.getQueries(), parameterType);
+		String encodedKeySortedQueries = SignatureV4Util.createCanonicalQueries(params,
+				parameterType);
 		if (!StringUtils.isEmpty(encodedKeySortedQueries)) {
 			sb.append(encodedKeySortedQueries);
 		}
@@ -271,24 +989,57 @@ public class SignatureV4Validator {
 			notFirst = true;
 		}
 		sb.append(SignatureV4Util.LINE_SEPARATOR);
-		sb.append(shaAlgorithm.hashedString(params.getPayload() == null ? "" : params.getPayload()));
+		sb.append(resolvePayloadHash(params, hashType));
 		return sb.toString();
 	}
 
+	/**
+	 * <pre>
+	 * 正規化されたリクエストに使用するペイロードのハッシュ値を返します。
+	 * パース時にハッシュ値が決まっている場合はその値を、決まっていない場合はペイロードをハッシュ化します
+	 * </pre>
+	 *
+	 * @param params SV4パラメータ
+	 * @param hashType ハッシュアルゴリズムタイプ
+	 * @return ペイロードのハッシュ値
+	 */
+	static String resolvePayloadHash(SignatureV4Params params, HashType hashType) {
+		String payloadHash = params.getPayloadHash();
+		if (payloadHash != null) {
+			return payloadHash;
+		}
+		String payload = params.getPayload();
+		return StringUtils.isEmpty(payload) ? hashType.getEmptyPayloadHash() : ReusableSHAAlgorithm
+				.getInstance(hashType).hashedString(payload);
+	}
+
+	/**
+	 * <pre>
+	 * 資格情報のサービス名からURIの正規化のルールを決定します。
+	 * 設定のcanonical-uri.s3-style-servicesに含まれるサービスの場合はS3のルールになります
+	 * </pre>
+	 */
+	static UriPathNormalizer.Rule getUriNormalizationRule(SignatureV4Params params) {
+		Credential credential = params.getCredential();
+		if (credential != null && S3_STYLE_URI_SERVICES.contains(credential.getRequestService())) {
+			return UriPathNormalizer.Rule.S3;
+		}
+		return UriPathNormalizer.Rule.GENERIC;
+	}
+
 	static String createCanonicalHeaders(SignatureV4Params params,
 			SortedSet<String> lowerSignedHeaders) {
 		KeyValuesMap headers = params.getHeaders();
 		StringBuilder canonicalHeaders = new StringBuilder();
-		for (Map.Entry<String, List<String>> e : headers.getLowerKeyMap().entrySet()) {
-			String key = e.getKey();
+		for (String key : lowerSignedHeaders) {
 			if ("authorization".equals(key)) {
 				continue;
 			}
-			if (!lowerSignedHeaders.contains(key)) {
+			List<String> values = headers.getValuesByLowerKey(key);
+			if (values.isEmpty()) {
 				continue;
 			}
 			canonicalHeaders.append(key).append(":");
-			List<String> values = e.getValue();
 			Collections.sort(values);
 			boolean b = false;
 			for (String s : values) {
@@ -303,16 +1054,39 @@ public class SignatureV4Validator {
 		return canonicalHeaders.substring(0, canonicalHeaders.length() - 1);
 	}
 
-	static String createStringToSign(ParameterType parameterType, SignatureV4Params params,
+	static String createStringToSign(SignatureProfile profile, SignatureV4Params params,
 			String hashedCanonicalRequest) throws SignatureV4Exception {
 		StringBuilder br = new StringBuilder();
 		br.append(params.getAlgorithm());
 		br.append(SignatureV4Util.LINE_SEPARATOR);
-		br.append(params.getDate(parameterType));
+		br.append(params.getDate(profile.getParameterType()));
 		br.append(SignatureV4Util.LINE_SEPARATOR);
-		br.append(params.getCredentialScopes());
+		//地域、要求サービス、終了文字列は検証済みなので、プロファイルの値を使用する
+		br.append(params.getCredential().getRequestDate()).append(profile.getScopeSuffix());
 		br.append(SignatureV4Util.LINE_SEPARATOR);
 		br.append(hashedCanonicalRequest);
 		return br.toString();
 	}
+
+	/**
+	 * 非同期の検証で、リプレイ検出のストアのタイムアウトを判定するスケジューラーです。最初の使用時に作成します。
+	 */
+	private static class ReplayTimeoutScheduler {
+		private static final ScheduledExecutorService INSTANCE = create();
+
+		private static ScheduledExecutorService create() {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "sv4-replay-timeout");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			//完了した確認のタイムアウトはキューに残さない
+			executor.setRemoveOnCancelPolicy(true);
+			return executor;
+		}
+	}
 }
@@ -0,0 +1,94 @@
+package jp.tokyo.lascaux.sv4;
+
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+
+/**
+ * <pre>
+ * 非同期の検証（{@link SignatureV4Validator#validateAsync}）の結果を表すクラスです。
+ * 検証の失敗は例外ではなく、失敗の結果として返します
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public final class ValidationResult {
+	private final int matchedIndex;
+	private final SignatureV4Exception exception;
+
+	private ValidationResult(int matchedIndex, SignatureV4Exception exception) {
+		this.matchedIndex = matchedIndex;
+		this.exception = exception;
+	}
+
+	/**
+	 * 検証に成功した結果を作成します。
+	 *
+	 * @param matchedIndex 一致した秘密鍵のインデックス
+	 * @return 検証結果
+	 */
+	public static ValidationResult success(int matchedIndex) {
+		return new ValidationResult(matchedIndex, null);
+	}
+
+	/**
+	 * 検証に失敗した結果を作成します。
+	 *
+	 * @param exception 検証に失敗した理由
+	 * @return 検証結果
+	 */
+	public static ValidationResult failure(SignatureV4Exception exception) {
+		if (exception == null) {
+			throw new IllegalArgumentException("失敗の理由の指定は必ず必要です。");
+		}
+		return new ValidationResult(-1, exception);
+	}
+
+	public boolean isValid() {
+		return exception == null;
+	}
+
+	/**
+	 * 一致した秘密鍵のインデックスを返します。
+	 *
+	 * @return 一致した秘密鍵のインデックス、検証に失敗した場合は-1
+	 */
+	public int getMatchedIndex() {
+		return matchedIndex;
+	}
+
+	/**
+	 * 検証に失敗した理由のエラータイプを返します。
+	 *
+	 * @return エラータイプ、検証に成功した場合はnull
+	 */
+	public ErrorType getErrorType() {
+		return exception == null ? null : exception.getErrorType();
+	}
+
+	/**
+	 * 検証に失敗した理由の例外を返します。
+	 *
+	 * @return 例外、検証に成功した場合はnull
+	 */
+	public SignatureV4Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * 検証に失敗した場合は、失敗した理由の例外をスローします。
+	 *
+	 * @return 一致した秘密鍵のインデックス
+	 * @throws SignatureV4Exception 検証に失敗した時にスローされる例外
+	 */
+	public int getOrThrow() throws SignatureV4Exception {
+		if (exception != null) {
+			throw exception;
+		}
+		return matchedIndex;
+	}
+
+	@Override
+	public String toString() {
+		return exception == null ? "ValidationResult[valid, matchedIndex=" + matchedIndex + "]"
+				: "ValidationResult[" + exception.getErrorType() + ", " + exception.getMessage() + "]";
+	}
+}
@@ -0,0 +1,285 @@
+package jp.tokyo.lascaux.sv4;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.apache.commons.io.IOUtils;
+
+import jp.tokyo.lascaux.sv4.payload.PayloadBuffer;
+import jp.tokyo.lascaux.sv4.util.SignatureV4Util;
+
+/**
+ * <pre>
+ * 検証時に読み込んだボディを、アプリケーションが再度読み込めるようにするリクエストのラッパーです。
+ * 最初の{@link #getInputStream()}は元のリクエストのボディを読み込みながら{@link PayloadBuffer}に保持し、
+ * 以降の{@link #getInputStream()}と{@link #getReader()}は、保持したボディを先頭から返します
+ * パーサーにこのラッパーを渡すと、ハッシュ化のための読み込みでボディが保持されるので、ボディを2回コピーせずに済みます
+ * ただし、デフォルトのパーサーはボディをbyte[]とStringとしても保持するので、
+ * {@link ParseOption#STREAM_PAYLOAD}を指定したパーサーを使用してください
+ * <code>
+ * SignatureV4RequestParser parser = new SignatureV4RequestParser(ParseOption.STREAM_PAYLOAD);
+ * VerifiedBodyRequestWrapper wrapper = new VerifiedBodyRequestWrapper(request);
+ * try {
+ *     SignatureV4Validator.validate(signatureType, parser.parse(signatureType, wrapper), privateKey);
+ *     chain.doFilter(wrapper, response);
+ * } finally {
+ *     wrapper.close();
+ * }
+ * </code>
+ * 最初の読み込みが途中の状態で再度{@link #getInputStream()}を呼び出した場合は、残りを読み込んでから先頭から返します
+ * リクエストの処理が終わったら、close()でバッファを解放してください
+ * フォーム（application/x-www-form-urlencoded）の場合、パラメータは元のリクエストではなく
+ * 生のクエリー文字列と保持したボディから作成します（元のリクエストのボディは読み込み済みのため）
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class VerifiedBodyRequestWrapper extends HttpServletRequestWrapper implements Closeable {
+	private final PayloadBuffer body;
+	//最初の読み込み中の、元のボディを保持しながら読み込むストリーム
+	private CapturingInputStream capturing;
+	//フォームのパラメータ、最初に参照した時に作成する
+	private Map<String, String[]> formParameters;
+
+	/**
+	 * 最初の読み込みでボディを保持するラッパーを作成します。
+	 *
+	 * @param request 元のリクエスト
+	 */
+	public VerifiedBodyRequestWrapper(HttpServletRequest request) {
+		this(request, new PayloadBuffer());
+	}
+
+	/**
+	 * 読み込み済みのボディを返すラッパーを作成します。書き込みが終了していない場合は、最初の読み込みで続きを保持します。
+	 *
+	 * @param request 元のリクエスト
+	 * @param body ボディ
+	 */
+	public VerifiedBodyRequestWrapper(HttpServletRequest request, PayloadBuffer body) {
+		super(request);
+		this.body = body;
+	}
+
+	@Override
+	public ServletInputStream getInputStream() throws IOException {
+		if (!body.isFinished()) {
+			if (capturing == null) {
+				capturing = new CapturingInputStream(super.getInputStream());
+				return capturing;
+			}
+			//途中まで読み込まれているので、残りを保持する
+			byte[] skip = new byte[8192];
+			while (capturing.read(skip, 0, skip.length) != -1) {
+			}
+		}
+		return new BufferedServletInputStream(body.openInputStream());
+	}
+
+	@Override
+	public BufferedReader getReader() throws IOException {
+		String encoding = getCharacterEncoding();
+		Charset charset = encoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(encoding);
+		return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+	}
+
+	@Override
+	public int getContentLength() {
+		return body.isFinished() ? (int) Math.min(body.size(), Integer.MAX_VALUE) : super
+				.getContentLength();
+	}
+
+	@Override
+	public long getContentLengthLong() {
+		return body.isFinished() ? body.size() : super.getContentLengthLong();
+	}
+
+	@Override
+	public String getParameter(String name) {
+		String[] values = getParameterValues(name);
+		return values == null || values.length == 0 ? null : values[0];
+	}
+
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		return isForm() ? getFormParameters() : super.getParameterMap();
+	}
+
+	@Override
+	public Enumeration<String> getParameterNames() {
+		return isForm() ? Collections.enumeration(getFormParameters().keySet()) : super
+				.getParameterNames();
+	}
+
+	@Override
+	public String[] getParameterValues(String name) {
+		if (!isForm()) {
+			return super.getParameterValues(name);
+		}
+		String[] values = getFormParameters().get(name);
+		return values == null ? null : values.clone();
+	}
+
+	/**
+	 * 保持しているボディのバッファを解放します。
+	 */
+	@Override
+	public void close() throws IOException {
+		body.close();
+	}
+
+	private boolean isForm() {
+		return SignatureV4Util.isFormUrlEncoded(getContentType());
+	}
+
+	/**
+	 * <pre>
+	 * クエリー文字列とボディのパラメータをまとめたマップを返します。
+	 * 同じ名前のパラメータは、クエリー文字列の値の後にボディの値が続きます
+	 * </pre>
+	 */
+	private Map<String, String[]> getFormParameters() {
+		if (formParameters == null) {
+			String encoding = getCharacterEncoding();
+			Charset charset = encoding == null ? StandardCharsets.ISO_8859_1 : Charset
+					.forName(encoding);
+			String form;
+			try {
+				//URLエンコードされているのでASCIIの範囲で読み込み、デコード時に文字コードを適用する
+				form = IOUtils.toString(getInputStream(), StandardCharsets.ISO_8859_1);
+			} catch (IOException e) {
+				throw new IllegalStateException("リクエストボディの読み込みに失敗しました。", e);
+			}
+			Map<String, String[]> parameters = new LinkedHashMap<>(SignatureV4Util
+					.decodeUrlEncoded(getQueryString(), StandardCharsets.UTF_8));
+			for (Map.Entry<String, String[]> entry : SignatureV4Util.decodeUrlEncoded(form,
+					charset).entrySet()) {
+				String[] current = parameters.get(entry.getKey());
+				if (current == null) {
+					parameters.put(entry.getKey(), entry.getValue());
+				} else {
+					List<String> values = new ArrayList<>(Arrays.asList(current));
+					values.addAll(Arrays.asList(entry.getValue()));
+					parameters.put(entry.getKey(), values.toArray(new String[values.size()]));
+				}
+			}
+			formParameters = Collections.unmodifiableMap(parameters);
+		}
+		return formParameters;
+	}
+
+	/**
+	 * 元のボディを読み込みながら、読み込んだバイト列をバッファに保持するストリームです。
+	 */
+	private class CapturingInputStream extends ServletInputStream {
+		private final ServletInputStream in;
+
+		private CapturingInputStream(ServletInputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n;
+			while ((n = read(b, 0, 1)) == 0) {
+			}
+			return n == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n == -1) {
+				body.finish();
+			} else if (n > 0) {
+				body.write(b, off, n);
+			}
+			return n;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return in.isFinished();
+		}
+
+		@Override
+		public boolean isReady() {
+			return in.isReady();
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			in.setReadListener(readListener);
+		}
+	}
+
+	/**
+	 * 保持したボディを読み込むストリームです。
+	 */
+	private static class BufferedServletInputStream extends ServletInputStream {
+		private final InputStream in;
+		private boolean finished;
+
+		private BufferedServletInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			finished = b == -1;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			finished = n == -1;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
+
+		@Override
+		public boolean isFinished() {
+			return finished;
+		}
+
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+
+		@Override
+		public void setReadListener(ReadListener readListener) {
+			//保持したボディなので、すぐにすべて読み込める
+			try {
+				readListener.onDataAvailable();
+				readListener.onAllDataRead();
+			} catch (IOException e) {
+				readListener.onError(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package jp.tokyo.lascaux.sv4.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import jp.tokyo.lascaux.sv4.entity.HashType;
+
+/**
+ * <pre>
+ * 署名キー(kSigning)と、そのキーで初期化済みのMacを保持するクラスです。
+ * Macの初期化（ipad/opadの計算）はインスタンスの作成時に1回だけ行い、
+ * 署名時は初期化済みのMacを使い回すか、初期化済みの状態を複製して使用します
+ * 複数のスレッドから同時に使用できます
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public final class SigningKey {
+	private final HashType hashType;
+	private final byte[] key;
+	private final Mac prototype;
+	private final AtomicReference<Mac> idle;
+
+	/**
+	 * @param hashType ハッシュアルゴリズムタイプ
+	 * @param key 署名キー(kSigning)
+	 */
+	public SigningKey(HashType hashType, byte[] key) {
+		this.hashType = hashType;
+		this.key = key.clone();
+		try {
+			this.prototype = Mac.getInstance(hashType.getHmacAlgorithmName());
+			this.prototype.init(new SecretKeySpec(this.key, hashType.getHmacAlgorithmName()));
+		} catch (GeneralSecurityException e) {
+			//HashTypeで定義された名前のものしか使用しないので無視
+			throw new RuntimeException(e);
+		}
+		this.idle = new AtomicReference<>(newMac());
+	}
+
+	public HashType getHashType() {
+		return hashType;
+	}
+
+	/**
+	 * 署名キーのバイト配列のコピーを返します。
+	 *
+	 * @return 署名キー
+	 */
+	public byte[] getKey() {
+		return key.clone();
+	}
+
+	/**
+	 * 引数の文字列をUTF-8でバイト配列にして署名（HMAC）します。
+	 *
+	 * @param data 署名する文字列
+	 * @return HMACの値
+	 */
+	public byte[] sign(String data) {
+		return sign(data.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * 引数のバイト配列を署名（HMAC）します。
+	 *
+	 * @param data 署名するバイト配列
+	 * @return HMACの値
+	 */
+	public byte[] sign(byte[] data) {
+		//使用中でなければ保持しているMacを借り、使用中の場合は初期化済みの状態を複製する
+		Mac mac = idle.getAndSet(null);
+		if (mac == null) {
+			mac = newMac();
+		}
+		byte[] bytes = mac.doFinal(data);
+		//doFinal後は初期化直後の状態に戻っているので、そのまま返却できる
+		idle.compareAndSet(null, mac);
+		return bytes;
+	}
+
+	private Mac newMac() {
+		try {
+			return (Mac) prototype.clone();
+		} catch (CloneNotSupportedException e) {
+			//複製できないプロバイダの場合は初期化し直す
+			try {
+				Mac mac = Mac.getInstance(hashType.getHmacAlgorithmName());
+				mac.init(new SecretKeySpec(key, hashType.getHmacAlgorithmName()));
+				return mac;
+			} catch (GeneralSecurityException gse) {
+				throw new RuntimeException(gse);
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package jp.tokyo.lascaux.sv4.cache;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params.Credential;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.SignatureType;
+import jp.tokyo.lascaux.sv4.secret.SecretList;
+import jp.tokyo.lascaux.sv4.time.EpochClock;
+
+/**
+ * <pre>
+ * 署名キー(kSigning)を初期化済みのMacと共にキャッシュするクラスです。
+ * kSigningは秘密鍵、要求日付、地域、サービス、終了文字列から決まるため
+ * 同じアクセスキーからのリクエストであればUTC日付が変わるまで同じ値になります
+ * キャッシュは以下の条件で削除されます
+ * ・要求日付が、キャッシュ中の最新の日付の前日より古くなった場合
+ * ・エントリ数が最大数を超えた場合
+ * 最新の日付は現在時刻の翌日までしか進めないので、未来の日付のリクエストでキャッシュ全体が削除されることはありません
+ * キャッシュへの追加は、日付のずれとスコープの事前検証を通ったリクエストに対してのみ行ってください
+ * 秘密鍵そのものは保持せず、キーには秘密鍵のフィンガープリント（{@link SecretList#fingerprint(String)}）を使用します
+ * フィンガープリントは秘密鍵毎に一度だけ計算するように、{@link SecretList}で持ち回ってください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class SigningKeyCache {
+	private static final DateTimeFormatter REQUEST_DATE_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+	private final int maxSize;
+	private final EpochClock clock;
+	private final ConcurrentMap<Key, SigningKey> cache;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	private volatile String latestDate = "";
+
+	/**
+	 * システム時刻で最新の日付の上限を決めるキャッシュを作成します。
+	 *
+	 * @param maxSize キャッシュする最大エントリ数、0の場合はキャッシュしない
+	 */
+	public SigningKeyCache(int maxSize) {
+		this(maxSize, EpochClock.SYSTEM);
+	}
+
+	/**
+	 * @param maxSize キャッシュする最大エントリ数、0の場合はキャッシュしない
+	 * @param clock 最新の日付の上限（現在時刻の翌日）を決める時計
+	 */
+	public SigningKeyCache(int maxSize, EpochClock clock) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSizeは0以上である必要があります。 [" + maxSize + "]");
+		}
+		if (clock == null) {
+			throw new IllegalArgumentException("時計の指定は必ず必要です。");
+		}
+		this.maxSize = maxSize;
+		this.clock = clock;
+		this.cache = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * キャッシュされた署名キーを返します。見つからない場合はnullを返します。
+	 *
+	 * @param signatureType シグネチャータイプ
+	 * @param hashType ハッシュアルゴリズムタイプ
+	 * @param credential 資格情報
+	 * @param secretFingerprint 秘密鍵のフィンガープリント
+	 * @return 署名キー
+	 */
+	public SigningKey get(SignatureType signatureType, HashType hashType, Credential credential,
+			String secretFingerprint) {
+		SigningKey signingKey = maxSize == 0 ? null : cache.get(new Key(signatureType, hashType,
+				credential, secretFingerprint));
+		if (signingKey == null) {
+			missCount.incrementAndGet();
+		} else {
+			hitCount.incrementAndGet();
+		}
+		return signingKey;
+	}
+
+	/**
+	 * 署名キーをキャッシュします。
+	 *
+	 * @param signatureType シグネチャータイプ
+	 * @param hashType ハッシュアルゴリズムタイプ
+	 * @param credential 資格情報
+	 * @param secretFingerprint 秘密鍵のフィンガープリント
+	 * @param signingKey 署名キー
+	 */
+	public void put(SignatureType signatureType, HashType hashType, Credential credential,
+			String secretFingerprint, SigningKey signingKey) {
+		if (maxSize == 0) {
+			return;
+		}
+		String requestDate = credential.getRequestDate();
+		//現在時刻の翌日より先には進めない
+		String limitDate = LocalDate.ofEpochDay(
+				Math.floorDiv(clock.currentTimeSeconds(), SECONDS_PER_DAY) + 1).format(
+				REQUEST_DATE_FORMAT);
+		String newestDate = requestDate.compareTo(limitDate) > 0 ? limitDate : requestDate;
+		if (newestDate.compareTo(latestDate) > 0) {
+			latestDate = newestDate;
+			evictOldDates(newestDate);
+		}
+		cache.put(new Key(signatureType, hashType, credential, secretFingerprint), signingKey);
+		if (cache.size() > maxSize) {
+			evictOverflow();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * 最新の要求日付の前日より古いエントリを削除します。
+	 * タイムゾーン差を考慮して前日分までは残します
+	 */
+	private void evictOldDates(String newestDate) {
+		String oldestDate;
+		try {
+			oldestDate = LocalDate.parse(newestDate, REQUEST_DATE_FORMAT).minusDays(1)
+					.format(REQUEST_DATE_FORMAT);
+		} catch (DateTimeParseException e) {
+			//要求日付のフォーマットは検証済みのはずなので、ここでは何もしない
+			return;
+		}
+		for (Iterator<Key> it = cache.keySet().iterator(); it.hasNext();) {
+			if (it.next().requestDate.compareTo(oldestDate) < 0) {
+				it.remove();
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 最大数を超えた分のエントリを削除します。
+	 * どのエントリを削除するかは特に決めていません
+	 */
+	private void evictOverflow() {
+		for (Iterator<Key> it = cache.keySet().iterator(); it.hasNext() && cache.size() > maxSize;) {
+			it.next();
+			it.remove();
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	private static class Key {
+		private final SignatureType signatureType;
+		private final HashType hashType;
+		private final String accessKey;
+		//秘密鍵のフィンガープリント（秘密鍵そのものはメモリに残さない）
+		private final String secretFingerprint;
+		private final String requestDate;
+		private final String region;
+		private final String requestService;
+		private final String constString;
+		private final int hashCode;
+
+		private Key(SignatureType signatureType, HashType hashType, Credential credential,
+				String secretFingerprint) {
+			this.signatureType = signatureType;
+			this.hashType = hashType;
+			this.accessKey = credential.getAccessKey();
+			this.secretFingerprint = secretFingerprint;
+			this.requestDate = credential.getRequestDate();
+			this.region = credential.getRegion();
+			this.requestService = credential.getRequestService();
+			this.constString = credential.getConstString();
+			int h = signatureType.hashCode();
+			h = 31 * h + hashType.hashCode();
+			h = 31 * h + accessKey.hashCode();
+			h = 31 * h + secretFingerprint.hashCode();
+			h = 31 * h + requestDate.hashCode();
+			h = 31 * h + region.hashCode();
+			h = 31 * h + requestService.hashCode();
+			h = 31 * h + constString.hashCode();
+			this.hashCode = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hashCode == other.hashCode && signatureType == other.signatureType
+					&& hashType == other.hashType && accessKey.equals(other.accessKey)
+					&& secretFingerprint.equals(other.secretFingerprint)
+					&& requestDate.equals(other.requestDate) && region.equals(other.region)
+					&& requestService.equals(other.requestService)
+					&& constString.equals(other.constString);
+		}
+	}
+}
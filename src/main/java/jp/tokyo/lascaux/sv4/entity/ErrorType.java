@@ -22,8 +22,22 @@ public enum ErrorType {
 	WRONG_DATE,
 	/** 期限切れ */
 	EXPIRE,
+	/** リクエストの日付と現在時刻のずれが許容範囲外 */
+	TIME_SKEWED,
 	/** シグネチャーが間違っている */
 	WRONG_SIGNATURE,
+	/** ペイロードが宣言されたハッシュ値と一致しない */
+	WRONG_PAYLOAD_HASH,
+	/** ボディが許容するサイズを超えている */
+	PAYLOAD_TOO_LARGE,
+	/** 検証済みのリクエストの再送 */
+	REPLAYED,
+	/** 再送の確認に失敗 */
+	REPLAY_CHECK_FAILED,
+	/** 秘密鍵が見つからないアクセスキー */
+	UNKNOWN_ACCESS_KEY,
+	/** 秘密鍵の取得に失敗 */
+	SECRET_UNAVAILABLE,
 	/** それ以外 */
 	OTHER;
 }
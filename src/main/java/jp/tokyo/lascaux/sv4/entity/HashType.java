@@ -1,5 +1,13 @@
 package jp.tokyo.lascaux.sv4.entity;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+
 import jp.tokyo.lascaux.sv4.SignatureV4Exception;
 
 /**
@@ -15,11 +23,21 @@ public enum HashType {
 	private String algorithmName;
 	private String shaAlgorithmName;
 	private String hmacAlgorithmName;
+	private String emptyPayloadHash;
+	private int hashLength;
 
 	private HashType(String algorithmName, String shaAlgorithmName, String hmacAlgorithmName) {
 		this.algorithmName = algorithmName;
 		this.shaAlgorithmName = shaAlgorithmName;
 		this.hmacAlgorithmName = hmacAlgorithmName;
+		try {
+			MessageDigest md = MessageDigest.getInstance(shaAlgorithmName);
+			this.hashLength = md.getDigestLength();
+			this.emptyPayloadHash = new String(Hex.encodeHex(md.digest()));
+		} catch (NoSuchAlgorithmException e) {
+			//環境移行などでしか起こりえない、起きた場合はアプリで対応はしない
+			throw new RuntimeException(e);
+		}
 	}
 
 	public String getAlgorithmName() {
@@ -34,6 +52,24 @@ public enum HashType {
 		return hmacAlgorithmName;
 	}
 
+	/**
+	 * ハッシュ値（HMACの値も同じ）のバイト数を返します。
+	 *
+	 * @return ハッシュ値のバイト数
+	 */
+	public int getHashLength() {
+		return hashLength;
+	}
+
+	/**
+	 * 空のペイロードをハッシュ化した16進数文字列を返します。あらかじめ計算済みの値です。
+	 *
+	 * @return 空のペイロードのハッシュ値
+	 */
+	public String getEmptyPayloadHash() {
+		return emptyPayloadHash;
+	}
+
 	/**
 	 * 引数のSignatureTypeとシステムで使用するアルゴリズム名から
 	 * 検証に使用するハッシュアルゴリズムのタイプを決定して返します。
@@ -45,14 +81,38 @@ public enum HashType {
 	 */
 	public static HashType getHashType(SignatureType signatureType, String systemAlgorithmName)
 			throws SignatureV4Exception {
-		String prefix = signatureType.getPrefix();
-		for (HashType h : values()) {
-			String name = String.format("%s-HMAC-%s", prefix, h.getAlgorithmName());
-			if (name.equals(systemAlgorithmName)) {
-				return h;
+		HashType hashType = SystemAlgorithmNames.NAMES.get(signatureType).get(systemAlgorithmName);
+		if (hashType == null) {
+			throw new SignatureV4Exception(ErrorType.INVALID_ALGORITHM_NAME, String.format(
+					"アルゴリズム名に間違いがあります。[%s]", systemAlgorithmName));
+		}
+		return hashType;
+	}
+
+	/**
+	 * 引数のプレフィックスを付けたシステムで使用するアルゴリズム名（例：AWS4-HMAC-SHA256）を返します。
+	 *
+	 * @param prefix シグネチャータイプのプレフィックス
+	 * @return システムアルゴリズム名
+	 */
+	public String getSystemAlgorithmName(String prefix) {
+		return prefix + "-HMAC-" + algorithmName;
+	}
+
+	/**
+	 * シグネチャータイプ毎のシステムアルゴリズム名とハッシュアルゴリズムタイプの対応です。
+	 */
+	private static final class SystemAlgorithmNames {
+		private static final Map<SignatureType, Map<String, HashType>> NAMES = new EnumMap<>(
+				SignatureType.class);
+		static {
+			for (SignatureType signatureType : SignatureType.values()) {
+				Map<String, HashType> map = new HashMap<>();
+				for (HashType h : HashType.values()) {
+					map.put(h.getSystemAlgorithmName(signatureType.getPrefix()), h);
+				}
+				NAMES.put(signatureType, map);
 			}
 		}
-		throw new SignatureV4Exception(ErrorType.INVALID_ALGORITHM_NAME, String.format(
-				"アルゴリズム名に間違いがあります。[%s]", systemAlgorithmName));
 	}
 }
@@ -1,7 +1,10 @@
 package jp.tokyo.lascaux.sv4.entity;
 
 /**
+ * <pre>
  * リクエストパラメータ名のタイプを表す列挙型です。
+ * パラメータ名は作成時に組み立てて保持しておき、リクエスト毎にはフォーマットしません
+ * </pre>
  *
  * @author Shunichi Todoroki
  */
@@ -10,57 +13,109 @@ public enum ParameterType {
 	AMAZON("Amz"),
 	/** Lascaux */
 	LASCAUX("Lascaux");
-	private String typeName;
+	private final String typeName;
+	private final String algorithmParamName;
+	private final String lowerAlgorithmParamName;
+	private final String credentialParamName;
+	private final String lowerCredentialParamName;
+	private final String signedHeadersParamName;
+	private final String lowerSignedHeadersParamName;
+	private final String signatureParamName;
+	private final String lowerSignatureParamName;
+	private final String dateParamName;
+	private final String lowerDateParamName;
+	private final String expiresParamName;
+	private final String lowerExpiresParamName;
+	private final String contentSha256ParamName;
+	private final String lowerContentSha256ParamName;
+	private final String decodedContentLengthParamName;
+	private final String lowerDecodedContentLengthParamName;
 
 	private ParameterType(String typeName) {
 		this.typeName = typeName;
+		this.algorithmParamName = ("X-" + typeName + "-Algorithm").intern();
+		this.lowerAlgorithmParamName = algorithmParamName.toLowerCase().intern();
+		this.credentialParamName = ("X-" + typeName + "-Credential").intern();
+		this.lowerCredentialParamName = credentialParamName.toLowerCase().intern();
+		this.signedHeadersParamName = ("X-" + typeName + "-SignedHeaders").intern();
+		this.lowerSignedHeadersParamName = signedHeadersParamName.toLowerCase().intern();
+		this.signatureParamName = ("X-" + typeName + "-Signature").intern();
+		this.lowerSignatureParamName = signatureParamName.toLowerCase().intern();
+		this.dateParamName = ("X-" + typeName + "-Date").intern();
+		this.lowerDateParamName = dateParamName.toLowerCase().intern();
+		this.expiresParamName = ("X-" + typeName + "-Expires").intern();
+		this.lowerExpiresParamName = expiresParamName.toLowerCase().intern();
+		this.contentSha256ParamName = ("X-" + typeName + "-Content-Sha256").intern();
+		this.lowerContentSha256ParamName = contentSha256ParamName.toLowerCase().intern();
+		this.decodedContentLengthParamName = ("X-" + typeName + "-Decoded-Content-Length").intern();
+		this.lowerDecodedContentLengthParamName = decodedContentLengthParamName.toLowerCase().intern();
+	}
+
+	public String getTypeName() {
+		return typeName;
 	}
 
 	public String getAlgorithmParamName() {
-		return String.format("X-%s-Algorithm", typeName);
+		return algorithmParamName;
 	}
 
 	public String getLowerAlgorithmParamName() {
-		return getAlgorithmParamName().toLowerCase();
+		return lowerAlgorithmParamName;
 	}
 
 	public String getCredentialParamName() {
-		return String.format("X-%s-Credential", typeName);
+		return credentialParamName;
 	}
 
 	public String getLowerCredentialParamName() {
-		return getCredentialParamName().toLowerCase();
+		return lowerCredentialParamName;
 	}
 
 	public String getSignedHeadersParamName() {
-		return String.format("X-%s-SignedHeaders", typeName);
+		return signedHeadersParamName;
 	}
 
 	public String getLowerSignedHeadersParamName() {
-		return getSignedHeadersParamName().toLowerCase();
+		return lowerSignedHeadersParamName;
 	}
 
 	public String getSignatureParamName() {
-		return String.format("X-%s-Signature", typeName);
+		return signatureParamName;
 	}
 
 	public String getLowerSignatureParamName() {
-		return getSignatureParamName().toLowerCase();
+		return lowerSignatureParamName;
 	}
 
 	public String getDateParamName() {
-		return String.format("X-%s-Date", typeName);
+		return dateParamName;
 	}
 
 	public String getLowerDateParamName() {
-		return getDateParamName().toLowerCase();
+		return lowerDateParamName;
 	}
 
 	public String getExpiresParamName() {
-		return String.format("X-%s-Expires", typeName);
+		return expiresParamName;
 	}
 
 	public String getLowerExpiresParamName() {
-		return getExpiresParamName().toLowerCase();
+		return lowerExpiresParamName;
+	}
+
+	public String getContentSha256ParamName() {
+		return contentSha256ParamName;
+	}
+
+	public String getLowerContentSha256ParamName() {
+		return lowerContentSha256ParamName;
+	}
+
+	public String getDecodedContentLengthParamName() {
+		return decodedContentLengthParamName;
+	}
+
+	public String getLowerDecodedContentLengthParamName() {
+		return lowerDecodedContentLengthParamName;
 	}
 }
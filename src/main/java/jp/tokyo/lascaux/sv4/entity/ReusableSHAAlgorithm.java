@@ -0,0 +1,162 @@
+package jp.tokyo.lascaux.sv4.entity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * <pre>
+ * MessageDigest、Macのインスタンスをスレッド毎に保持して使い回すハッシュクラスです。
+ * {@link SHAAlgorithm}は呼び出しの度にプロバイダの検索(getInstance)を行いますが、
+ * このクラスはスレッド毎に一度だけ生成したインスタンスをリセットして再利用します
+ * インスタンスは{@link #getInstance(HashType)}でHashType毎に取得してください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class ReusableSHAAlgorithm implements Hash {
+	private static final Map<HashType, ReusableSHAAlgorithm> INSTANCES;
+	static {
+		INSTANCES = new EnumMap<>(HashType.class);
+		for (HashType type : HashType.values()) {
+			INSTANCES.put(type, new ReusableSHAAlgorithm(type));
+		}
+	}
+
+	private final HashType type;
+	private final ThreadLocal<Engine> engines;
+
+	private ReusableSHAAlgorithm(final HashType type) {
+		this.type = type;
+		this.engines = new ThreadLocal<Engine>() {
+			@Override
+			protected Engine initialValue() {
+				return new Engine(type);
+			}
+		};
+	}
+
+	/**
+	 * 引数のHashTypeに対応するインスタンスを返します。
+	 *
+	 * @param type ハッシュアルゴリズムタイプ
+	 * @return HashType毎に共有されるインスタンス
+	 */
+	public static ReusableSHAAlgorithm getInstance(HashType type) {
+		return INSTANCES.get(type);
+	}
+
+	public HashType getType() {
+		return type;
+	}
+
+	@Override
+	public String hashedString(String value) {
+		if (value == null) {
+			throw new RuntimeException("valueはnullではなく空文字に変換してからこのメソッドを使用してください。");
+		}
+		MessageDigest md = engines.get().digest;
+		md.reset();
+		return new String(Hex.encodeHex(md.digest(value.getBytes(StandardCharsets.UTF_8))));
+	}
+
+	/**
+	 * <pre>
+	 * 入力ストリームの内容を最後まで読み込み、ハッシュ化した16進数文字列を返します。
+	 * 読み込みはスレッド毎に保持する固定サイズのバッファ単位で行うため、
+	 * ストリームの大きさに関わらず使用するメモリは一定です
+	 * ストリームのクローズは行いません
+	 * </pre>
+	 *
+	 * @param in 入力ストリーム
+	 * @return ハッシュ化された16進数文字列
+	 * @throws IOException 読み込みに失敗した場合
+	 */
+	public String hashedStream(InputStream in) throws IOException {
+		Engine engine = engines.get();
+		MessageDigest md = engine.digest;
+		md.reset();
+		byte[] buffer = engine.buffer;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			md.update(buffer, 0, n);
+		}
+		return new String(Hex.encodeHex(md.digest()));
+	}
+
+	/**
+	 * <pre>
+	 * 呼び出したスレッド用の、リセット済みのMessageDigestを返します。
+	 * このクラスの他のメソッドと同じインスタンスなので、呼び出したスレッド内で
+	 * ハッシュ値を取得するまでの間だけ使用し、その間はこのクラスの他のメソッドを呼び出さないでください
+	 * </pre>
+	 *
+	 * @return このスレッド用のMessageDigest
+	 */
+	public MessageDigest getDigest() {
+		MessageDigest md = engines.get().digest;
+		md.reset();
+		return md;
+	}
+
+	/**
+	 * <pre>
+	 * 呼び出したスレッド用のMessageDigestを複製した、新しいMessageDigestを返します。
+	 * ストリームの読み込みのように、複数の呼び出しやスレッドにまたがってハッシュ化する場合に使用してください
+	 * 複製はプロバイダの検索を行わないので、MessageDigest.getInstanceより軽量です
+	 * </pre>
+	 *
+	 * @return 新しいMessageDigest
+	 */
+	public MessageDigest newDigest() {
+		MessageDigest md = getDigest();
+		try {
+			return (MessageDigest) md.clone();
+		} catch (CloneNotSupportedException e) {
+			//複製できないプロバイダの場合のみ
+			try {
+				return MessageDigest.getInstance(type.getShaAlgorithmName());
+			} catch (NoSuchAlgorithmException nsae) {
+				//HashTypeで定義された名前のものしか使用しないので無視
+				throw new RuntimeException(nsae);
+			}
+		}
+	}
+
+	@Override
+	public byte[] hashHmac(String data, byte[] key) throws InvalidKeyException {
+		Mac mac = engines.get().mac;
+		mac.init(new SecretKeySpec(key, type.getHmacAlgorithmName()));
+		return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * スレッド毎に保持するMessageDigestとMacの組です。
+	 */
+	private static class Engine {
+		private static final int BUFFER_SIZE = 8192;
+		private final MessageDigest digest;
+		private final Mac mac;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		private Engine(HashType type) {
+			try {
+				digest = MessageDigest.getInstance(type.getShaAlgorithmName());
+				mac = Mac.getInstance(type.getHmacAlgorithmName());
+			} catch (NoSuchAlgorithmException e) {
+				//HashTypeで定義された名前のものしか使用しないので無視
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
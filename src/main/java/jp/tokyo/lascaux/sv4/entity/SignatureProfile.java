@@ -0,0 +1,110 @@
+package jp.tokyo.lascaux.sv4.entity;
+
+import java.util.concurrent.TimeUnit;
+
+import com.typesafe.config.Config;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Exception;
+
+/**
+ * <pre>
+ * シグネチャータイプと設定から、検証で使用する値をあらかじめ組み立てておく不変クラスです。
+ * ・パラメータ名（{@link ParameterType}）
+ * ・資格情報の地域、要求サービス、終了文字列と、スコープの日付以降の文字列（/地域/サービス/終了文字列）
+ * ・リクエストの日付と現在時刻の許容するずれ（秒）
+ * 設定の読み込みや文字列のフォーマットは作成時にだけ行い、リクエスト毎には行いません
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public final class SignatureProfile {
+	private final SignatureType signatureType;
+	private final ParameterType parameterType;
+	private final String region;
+	private final String service;
+	private final String endString;
+	private final String scopeSuffix;
+	private final long maxClockSkewSeconds;
+
+	private SignatureProfile(SignatureType signatureType, Config config) {
+		this.signatureType = signatureType;
+		this.parameterType = signatureType.getParameterType();
+		this.region = signatureType.getCredentialRegion(config);
+		this.service = signatureType.getCredentialService(config);
+		this.endString = signatureType.getCredentialEndString();
+		this.scopeSuffix = "/" + region + "/" + service + "/" + endString;
+		this.maxClockSkewSeconds = config.hasPath("request-date.max-clock-skew") ? config
+				.getDuration("request-date.max-clock-skew", TimeUnit.SECONDS) : 15 * 60;
+	}
+
+	/**
+	 * シグネチャータイプと設定からプロファイルを作成します。
+	 *
+	 * @param signatureType シグネチャータイプ
+	 * @param config 設定
+	 * @return プロファイル
+	 */
+	public static SignatureProfile create(SignatureType signatureType, Config config) {
+		return new SignatureProfile(signatureType, config);
+	}
+
+	public SignatureType getSignatureType() {
+		return signatureType;
+	}
+
+	public ParameterType getParameterType() {
+		return parameterType;
+	}
+
+	/**
+	 * システムアルゴリズム名からハッシュアルゴリズムタイプを返します。
+	 * 対応は{@link HashType#getHashType(SignatureType, String)}と同じです
+	 *
+	 * @param systemAlgorithmName システムアルゴリズム名
+	 * @return ハッシュアルゴリズムタイプ
+	 * @throws SignatureV4Exception 使用可能なアルゴリズム名が見つからない時にスローされる
+	 */
+	public HashType getHashType(String systemAlgorithmName) throws SignatureV4Exception {
+		return HashType.getHashType(signatureType, systemAlgorithmName);
+	}
+
+	public String getRegion() {
+		return region;
+	}
+
+	public String getService() {
+		return service;
+	}
+
+	public String getEndString() {
+		return endString;
+	}
+
+	/**
+	 * スコープの日付以降の文字列（"/地域/サービス/終了文字列"）を返します。
+	 *
+	 * @return スコープの日付以降の文字列
+	 */
+	public String getScopeSuffix() {
+		return scopeSuffix;
+	}
+
+	/**
+	 * リクエストの日付と現在時刻の許容するずれを返します。0以下の場合は確認しません。
+	 *
+	 * @return 許容するずれ（秒）
+	 */
+	public long getMaxClockSkewSeconds() {
+		return maxClockSkewSeconds;
+	}
+
+	/**
+	 * 要求日付からスコープ文字列を作成します。
+	 *
+	 * @param requestDate 要求日付
+	 * @return スコープ文字列
+	 */
+	public String createScope(String requestDate) {
+		return requestDate.concat(scopeSuffix);
+	}
+}
@@ -0,0 +1,217 @@
+package jp.tokyo.lascaux.sv4.payload;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Exception;
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+import jp.tokyo.lascaux.sv4.util.SignatureV4Util;
+
+/**
+ * <pre>
+ * aws-chunked形式（STREAMING-AWS4-HMAC-SHA256-PAYLOAD）でエンコードされたボディをデコードしながら、
+ * チャンク毎のシグネチャーを検証する入力ストリームです。
+ * チャンクのシグネチャーは、直前のチャンクのシグネチャー（最初のチャンクはリクエストのシグネチャー）を
+ * 含めて計算されるため、チャンクの順番の入れ替えや削除も検出できます
+ * 1チャンク分だけをバッファし、検証が済んだチャンクのデータのみを返します
+ * 検証に失敗した場合はIOExceptionをスローし、原因の例外にはSignatureV4Exceptionが設定されます
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ * @see http://docs.aws.amazon.com/AmazonS3/latest/API/sigv4-streaming.html
+ */
+public class ChunkedPayloadInputStream extends InputStream {
+	private static final String CHUNK_SIGNATURE = "chunk-signature=";
+	private static final int MAX_HEADER_LENGTH = 256;
+	private final InputStream in;
+	private final ReusableSHAAlgorithm sha;
+	private final Mac mac;
+	private final String emptyHash;
+	private final String stringToSignPrefix;
+	private final int maxChunkSize;
+	private final long expectedDecodedLength;
+	private final StringBuilder header = new StringBuilder();
+	private String previousSignature;
+	private byte[] buffer = new byte[0];
+	private int position;
+	private int limit;
+	private long decodedLength;
+	private boolean finished;
+
+	/**
+	 * @param in aws-chunked形式のボディ
+	 * @param hashType ハッシュアルゴリズムタイプ
+	 * @param signingKey 署名キー(kSigning)
+	 * @param algorithm リクエストのアルゴリズム名（例: AWS4-HMAC-SHA256）
+	 * @param date リクエストの日付（iso8601形式）
+	 * @param credentialScope CredentialScope文字列
+	 * @param seedSignature リクエストのシグネチャー
+	 * @param maxChunkSize 許容する1チャンクの最大バイト数
+	 * @param expectedDecodedLength デコード後のボディの長さ、わからない場合は-1
+	 */
+	public ChunkedPayloadInputStream(InputStream in, HashType hashType, byte[] signingKey,
+			String algorithm, String date, String credentialScope, String seedSignature,
+			int maxChunkSize, long expectedDecodedLength) {
+		this.in = new BufferedInputStream(in);
+		this.sha = ReusableSHAAlgorithm.getInstance(hashType);
+		try {
+			//署名キーはストリーム毎に固定なので、初期化済みのMacを保持する
+			this.mac = Mac.getInstance(hashType.getHmacAlgorithmName());
+			this.mac.init(new SecretKeySpec(signingKey, hashType.getHmacAlgorithmName()));
+		} catch (GeneralSecurityException e) {
+			//HashTypeで定義された名前のものしか使用しないので無視
+			throw new RuntimeException(e);
+		}
+		this.emptyHash = hashType.getEmptyPayloadHash();
+		this.stringToSignPrefix = algorithm + "-PAYLOAD" + SignatureV4Util.LINE_SEPARATOR + date
+				+ SignatureV4Util.LINE_SEPARATOR + credentialScope + SignatureV4Util.LINE_SEPARATOR;
+		this.previousSignature = seedSignature;
+		this.maxChunkSize = maxChunkSize;
+		this.expectedDecodedLength = expectedDecodedLength;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return limit - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * バッファが空の場合は次のチャンクを読み込んで検証します。
+	 *
+	 * @return 読み込めるデータがある場合はtrue
+	 */
+	private boolean fill() throws IOException {
+		while (position >= limit) {
+			if (finished) {
+				return false;
+			}
+			readChunk();
+		}
+		return true;
+	}
+
+	private void readChunk() throws IOException {
+		String line = readLine();
+		int index = line.indexOf(';');
+		if (index <= 0 || !line.startsWith(CHUNK_SIGNATURE, index + 1)) {
+			throw error(ErrorType.INVALID_PARAMS, String.format("チャンクのヘッダーが不正です。 [%s]", line));
+		}
+		String signature = line.substring(index + 1 + CHUNK_SIGNATURE.length());
+		int size;
+		try {
+			size = Integer.parseInt(line.substring(0, index), 16);
+		} catch (NumberFormatException e) {
+			throw error(ErrorType.INVALID_PARAMS, String.format("チャンクのサイズが不正です。 [%s]", line));
+		}
+		if (size < 0 || size > maxChunkSize) {
+			throw error(ErrorType.INVALID_PARAMS, String.format(
+					"チャンクのサイズが上限を超えています。 size [%d], max [%d]", size, maxChunkSize));
+		}
+		if (buffer.length < size) {
+			buffer = new byte[size];
+		}
+		readFully(size);
+		if (in.read() != '\r' || in.read() != '\n') {
+			throw error(ErrorType.INVALID_PARAMS, "チャンクのデータの後に改行がありません。");
+		}
+		//チャンクは読み込み済みなので、スレッド毎のダイジェストで1回の呼び出しの中でハッシュ化する
+		MessageDigest digest = sha.getDigest();
+		digest.update(buffer, 0, size);
+		String stringToSign = stringToSignPrefix + previousSignature
+				+ SignatureV4Util.LINE_SEPARATOR + emptyHash + SignatureV4Util.LINE_SEPARATOR
+				+ new String(Hex.encodeHex(digest.digest()));
+		String calculated = new String(Hex.encodeHex(mac.doFinal(stringToSign
+				.getBytes(StandardCharsets.UTF_8))));
+		if (!MessageDigest.isEqual(calculated.getBytes(StandardCharsets.US_ASCII),
+				signature.getBytes(StandardCharsets.US_ASCII))) {
+			throw error(ErrorType.WRONG_SIGNATURE, String.format(
+					"チャンクのシグネチャーが一致しませんでした。 signed signature [%s]", signature));
+		}
+		previousSignature = signature;
+		decodedLength += size;
+		position = 0;
+		limit = size;
+		if (size == 0) {
+			finished = true;
+			if (expectedDecodedLength >= 0 && decodedLength != expectedDecodedLength) {
+				throw error(ErrorType.INVALID_PARAMS, String.format(
+						"デコード後のボディの長さが一致しませんでした。 expected [%d], actual [%d]",
+						expectedDecodedLength, decodedLength));
+			}
+		}
+	}
+
+	private String readLine() throws IOException {
+		header.setLength(0);
+		for (;;) {
+			int c = in.read();
+			if (c == -1) {
+				throw error(ErrorType.INVALID_PARAMS, "最後のチャンクの前にボディが終了しました。");
+			}
+			if (c == '\r') {
+				if (in.read() != '\n') {
+					throw error(ErrorType.INVALID_PARAMS, "チャンクのヘッダーの改行が不正です。");
+				}
+				return header.toString();
+			}
+			if (header.length() >= MAX_HEADER_LENGTH) {
+				throw error(ErrorType.INVALID_PARAMS, "チャンクのヘッダーが長すぎます。");
+			}
+			header.append((char) c);
+		}
+	}
+
+	private void readFully(int size) throws IOException {
+		int read = 0;
+		while (read < size) {
+			int n = in.read(buffer, read, size - read);
+			if (n == -1) {
+				throw error(ErrorType.INVALID_PARAMS, "チャンクのデータの途中でボディが終了しました。");
+			}
+			read += n;
+		}
+	}
+
+	private static IOException error(ErrorType errorType, String message) {
+		SignatureV4Exception cause = new SignatureV4Exception(errorType, message);
+		return new IOException(message, cause);
+	}
+}
@@ -0,0 +1,128 @@
+package jp.tokyo.lascaux.sv4.payload;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Exception;
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+
+/**
+ * <pre>
+ * 読み込みながらハッシュ化し、最後まで読み込んだ時点で宣言されたハッシュ値と比較する入力ストリームです。
+ * 一致しなかった場合は最後の読み込みでIOExceptionをスローします
+ * 最後まで読み込まずにクローズした場合は、残りを読み込んで比較し、一致しなかった場合はclose()でスローします
+ * 原因の例外にはErrorType.WRONG_PAYLOAD_HASHのSignatureV4Exceptionが設定されます
+ * 比較するまでに返したデータは検証されていないので、最後まで読み込むかクローズするまでは使用しないでください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class DigestVerifyingInputStream extends FilterInputStream {
+	private final MessageDigest digest;
+	private final String declaredHash;
+	private boolean verified;
+
+	public DigestVerifyingInputStream(InputStream in, HashType hashType, String declaredHash) {
+		super(in);
+		//読み込みは複数の呼び出しにまたがるので、スレッド毎のダイジェストの複製を使用する
+		this.digest = ReusableSHAAlgorithm.getInstance(hashType).newDigest();
+		this.declaredHash = declaredHash;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b == -1) {
+			verify();
+		} else {
+			digest.update((byte) b);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if (n == -1) {
+			verify();
+		} else {
+			digest.update(b, off, n);
+		}
+		return n;
+	}
+
+	/**
+	 * 読み飛ばした部分もハッシュ化する必要があるので、実際に読み込みます。
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		byte[] buffer = new byte[(int) Math.min(n, 4096)];
+		long skipped = 0;
+		while (skipped < n) {
+			int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (r == -1) {
+				break;
+			}
+			skipped += r;
+		}
+		return skipped;
+	}
+
+	/**
+	 * 途中で読み込みをやめた場合も改ざんを検出できるように、残りを読み込んで比較してからクローズします。
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!verified) {
+				byte[] buffer = new byte[4096];
+				while (read(buffer, 0, buffer.length) != -1) {
+				}
+			}
+		} finally {
+			super.close();
+		}
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/resetはサポートしていません。");
+	}
+
+	private void verify() throws IOException {
+		if (verified) {
+			return;
+		}
+		verified = true;
+		byte[] expected;
+		try {
+			expected = Hex.decodeHex(declaredHash.toCharArray());
+		} catch (DecoderException e) {
+			expected = null;
+		}
+		if (expected == null || !MessageDigest.isEqual(expected, digest.digest())) {
+			SignatureV4Exception cause = new SignatureV4Exception(ErrorType.WRONG_PAYLOAD_HASH,
+					String.format("ペイロードが宣言されたハッシュ値と一致しませんでした。 [%s]", declaredHash));
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+}
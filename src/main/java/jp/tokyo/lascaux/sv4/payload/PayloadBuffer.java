@@ -0,0 +1,287 @@
+package jp.tokyo.lascaux.sv4.payload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * <pre>
+ * 読み込んだボディを保持し、何度でも先頭から読み込めるようにするバッファです。
+ * ・しきい値までのボディは、固定サイズのバイト配列（チャンク）をつないで保持します
+ * 　チャンクはプールから取得し、close()でプールに戻すので、リクエスト毎にヒープを確保しません
+ * ・しきい値を超えたボディは一時ファイルに書き出し、書き込みが終わった後はファイルチャネルから位置を指定して読み込みます
+ * 　ヒープの使用量はボディの大きさに関わらず、しきい値までになります
+ * 　メモリマップしないので、close()の時点でファイルを削除できます（削除に失敗した場合はJVMの終了時に削除します）
+ * ・プールが保持するチャンクは最大で"payload.buffer.pool-size"までで、超えた分は返却せずにGCに任せます
+ * 書き込みは1つのスレッドで行い、{@link #finish()}の後に{@link #openInputStream()}で読み込んでください
+ * リクエストの処理が終わったら、必ずclose()してください（チャンクの返却と一時ファイルの削除を行います）
+ * しきい値などは、application-sv4.confの"payload.buffer"で設定します
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class PayloadBuffer implements Closeable {
+	private static final Config CONFIG = ConfigFactory.load("application-sv4.conf");
+	private static final int CHUNK_SIZE = CONFIG.hasPath("payload.buffer.chunk-size") ? CONFIG
+			.getBytes("payload.buffer.chunk-size").intValue() : 16 * 1024;
+	private static final long MEMORY_THRESHOLD = CONFIG.hasPath("payload.buffer.memory-threshold") ? CONFIG
+			.getBytes("payload.buffer.memory-threshold") : 1024 * 1024;
+	private static final Path SPILL_DIRECTORY = Paths.get(CONFIG
+			.hasPath("payload.buffer.spill-directory") ? CONFIG
+			.getString("payload.buffer.spill-directory") : System.getProperty("java.io.tmpdir"));
+	private static final BlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(Math.max(
+			(int) ((CONFIG.hasPath("payload.buffer.pool-size") ? CONFIG
+					.getBytes("payload.buffer.pool-size") : 64L * 1024 * 1024) / CHUNK_SIZE), 1));
+	private final List<byte[]> chunks = new ArrayList<>();
+	private final long memoryThreshold;
+	private long size;
+	private Path spillFile;
+	private FileChannel spillChannel;
+	private boolean finished;
+	private volatile boolean closed;
+
+	/**
+	 * 設定のしきい値でバッファを作成します。
+	 */
+	public PayloadBuffer() {
+		this(MEMORY_THRESHOLD);
+	}
+
+	/**
+	 * @param memoryThreshold メモリに保持する最大サイズ、超えた場合は一時ファイルに書き出す
+	 */
+	public PayloadBuffer(long memoryThreshold) {
+		this.memoryThreshold = memoryThreshold;
+	}
+
+	/**
+	 * バイト列を追加します。
+	 *
+	 * @param b バイト列
+	 * @param off 開始位置
+	 * @param len 長さ
+	 * @throws IOException 一時ファイルへの書き込みに失敗した場合にスローされる例外
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (finished || closed) {
+			throw new IllegalStateException("書き込みは終了しています。");
+		}
+		if (spillChannel == null && size + len > memoryThreshold) {
+			spill();
+		}
+		if (spillChannel != null) {
+			writeFully(ByteBuffer.wrap(b, off, len));
+			size += len;
+			return;
+		}
+		for (int written = 0; written < len;) {
+			int offset = (int) (size % CHUNK_SIZE);
+			if (offset == 0) {
+				chunks.add(acquireChunk());
+			}
+			int n = Math.min(len - written, CHUNK_SIZE - offset);
+			System.arraycopy(b, off + written, chunks.get(chunks.size() - 1), offset, n);
+			written += n;
+			size += n;
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 書き込みを終了します。
+	 * 一時ファイルに書き出している場合、ファイルチャネルは読み込みのためにclose()まで開いたままにします
+	 * </pre>
+	 */
+	public void finish() {
+		finished = true;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * 保持しているボディの長さを返します。
+	 *
+	 * @return ボディの長さ
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * 一時ファイルに書き出しているかどうかを返します。
+	 *
+	 * @return 一時ファイルに書き出している場合はtrue
+	 */
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * <pre>
+	 * ボディを先頭から読み込む入力ストリームを返します。
+	 * 返したストリーム毎に読み込み位置を持つので、何度でも読み込めます
+	 * </pre>
+	 *
+	 * @return 入力ストリーム
+	 */
+	public InputStream openInputStream() {
+		if (!finished) {
+			throw new IllegalStateException("書き込みが終了していません。");
+		}
+		if (spillChannel != null) {
+			return new SpillInputStream();
+		}
+		return new ChunkInputStream();
+	}
+
+	/**
+	 * <pre>
+	 * チャンクをプールに戻し、一時ファイルを削除します。
+	 * 一時ファイルの削除に失敗した場合は、JVMの終了時に削除するように登録してから例外をスローします
+	 * </pre>
+	 *
+	 * @throws IOException 一時ファイルのクローズや削除に失敗した場合にスローされる例外
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (byte[] chunk : chunks) {
+			POOL.offer(chunk);
+		}
+		chunks.clear();
+		try {
+			if (spillChannel != null) {
+				spillChannel.close();
+			}
+		} finally {
+			if (spillFile != null) {
+				deleteSpillFile();
+			}
+		}
+	}
+
+	private void deleteSpillFile() throws IOException {
+		try {
+			Files.deleteIfExists(spillFile);
+		} catch (IOException e) {
+			spillFile.toFile().deleteOnExit();
+			throw e;
+		}
+	}
+
+	/**
+	 * しきい値を超えたので、一時ファイルを作成してメモリに保持している分を書き出します。
+	 */
+	private void spill() throws IOException {
+		spillFile = Files.createTempFile(SPILL_DIRECTORY, "sv4-payload", ".tmp");
+		spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		for (int i = 0; i < chunks.size(); i++) {
+			int length = (int) Math.min(CHUNK_SIZE, size - (long) i * CHUNK_SIZE);
+			writeFully(ByteBuffer.wrap(chunks.get(i), 0, length));
+			POOL.offer(chunks.get(i));
+		}
+		chunks.clear();
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			spillChannel.write(buffer);
+		}
+	}
+
+	private static byte[] acquireChunk() {
+		byte[] chunk = POOL.poll();
+		return chunk == null ? new byte[CHUNK_SIZE] : chunk;
+	}
+
+	/**
+	 * チャンクをつないで読み込む入力ストリームです。
+	 */
+	private class ChunkInputStream extends InputStream {
+		private long position;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("バッファはクローズされています。");
+			}
+			if (position >= size) {
+				return -1;
+			}
+			int offset = (int) (position % CHUNK_SIZE);
+			int n = (int) Math.min(Math.min(len, CHUNK_SIZE - offset), size - position);
+			System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), offset, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(size - position, Integer.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * 一時ファイルを位置を指定して読み込む入力ストリームです。
+	 */
+	private class SpillInputStream extends InputStream {
+		private long position;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("バッファはクローズされています。");
+			}
+			if (position >= size) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			//位置を指定した読み込みはチャネルの位置を変えないので、複数のストリームから並行して読み込める
+			int n = spillChannel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, size - position)),
+					position);
+			if (n <= 0) {
+				throw new IOException("一時ファイルが途中で終わっています。");
+			}
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(size - position, Integer.MAX_VALUE);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package jp.tokyo.lascaux.sv4.payload;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params;
+import jp.tokyo.lascaux.sv4.entity.ParameterType;
+
+/**
+ * <pre>
+ * 正規化されたリクエストに使用するペイロードのハッシュ値を決定するストラテジーです。
+ * 標準的な実装は{@link StandardPayloadHashStrategy}を参照してください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public interface PayloadHashStrategy {
+	/**
+	 * <pre>
+	 * ボディを読み込まずにペイロードのハッシュ値を決定できる場合は、その値を返します。
+	 * nullを返した場合は、ボディを読み込んでハッシュ化します
+	 * </pre>
+	 *
+	 * @param params ボディ以外をパースしたSV4パラメータ
+	 * @param parameterType パラメータタイプ
+	 * @return ペイロードのハッシュ値、あるいはnull
+	 */
+	public String resolvePayloadHash(SignatureV4Params params, ParameterType parameterType);
+}
@@ -0,0 +1,69 @@
+package jp.tokyo.lascaux.sv4.payload;
+
+import org.apache.commons.lang.StringUtils;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params;
+import jp.tokyo.lascaux.sv4.entity.ParameterType;
+
+/**
+ * 標準で用意しているペイロードハッシュのストラテジーです。
+ *
+ * @author Shunichi Todoroki
+ */
+public enum StandardPayloadHashStrategy implements PayloadHashStrategy {
+	/** 常にボディを読み込んでハッシュ化します（空のボディは計算済みの値を使用します） */
+	COMPUTE {
+		@Override
+		public String resolvePayloadHash(SignatureV4Params params, ParameterType parameterType) {
+			return null;
+		}
+	},
+	/**
+	 * <pre>
+	 * "X-Amz-Content-Sha256"ヘッダーがある場合は、その値を信頼してペイロードのハッシュ値とします。
+	 * ボディは検証時には読み込まず、{@link SignatureV4Params#getPayloadInputStream()}で
+	 * アプリケーションが読み込む際に宣言された値と一致するかを検証します
+	 * 比較は最後まで読み込んだ時点か、ストリームをクローズした時点で行うので、
+	 * アプリケーションはそれまでに読み込んだデータを使用しないでください
+	 * また、request.getInputStream()から直接読み込んだ場合は検証されません
+	 * ヘッダーがない場合はボディを読み込んでハッシュ化します
+	 * ※Amz部分はSignatureタイプにより変わる
+	 * </pre>
+	 */
+	DECLARED {
+		@Override
+		public String resolvePayloadHash(SignatureV4Params params, ParameterType parameterType) {
+			String declared = params.getHeaders().getSingleByLowerKey(
+					parameterType.getLowerContentSha256ParamName());
+			return StringUtils.isEmpty(declared) ? null : declared;
+		}
+	},
+	/**
+	 * <pre>
+	 * クエリーで署名された（署名付きURLの）リクエストの場合は"UNSIGNED-PAYLOAD"とします。
+	 * ヘッダーで署名されたリクエストの場合は{@link #DECLARED}と同じです
+	 * </pre>
+	 */
+	UNSIGNED_FOR_PRESIGNED {
+		@Override
+		public String resolvePayloadHash(SignatureV4Params params, ParameterType parameterType) {
+			if (StringUtils.isEmpty(params.getHeaders().getSingleByLowerKey("authorization"))) {
+				return UNSIGNED_PAYLOAD;
+			}
+			return DECLARED.resolvePayloadHash(params, parameterType);
+		}
+	};
+
+	/** ペイロードを署名に含めない場合のハッシュ値の代わりの文字列 */
+	public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+	/**
+	 * 引数のハッシュ値が、実際のペイロードのハッシュ値ではない特別な値かどうかを返します。
+	 *
+	 * @param payloadHash ペイロードのハッシュ値
+	 * @return "UNSIGNED-PAYLOAD"や"STREAMING-"で始まる値の場合はtrue
+	 */
+	public static boolean isSpecialPayloadHash(String payloadHash) {
+		return UNSIGNED_PAYLOAD.equals(payloadHash) || payloadHash.startsWith("STREAMING-");
+	}
+}
@@ -0,0 +1,216 @@
+package jp.tokyo.lascaux.sv4.replay;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * <pre>
+ * 呼び出しをまとめて、元のストアへの1回の呼び出しで確認するストアです。
+ * ・元のストアへの呼び出しは最大max-in-flight個まで同時に行い、結果を待たずに次の呼び出しを行います
+ * ・呼び出し中の数が最大になっている間に来た呼び出しは、次の呼び出しにまとめます（最大max-batch-size件）
+ * ・lingerを指定した場合は、まとめる呼び出しが来るのを最大でその時間だけ待ちます
+ * 元のストアへの呼び出し回数はリクエスト数ではなく、元のストアの応答時間と同時呼び出し数で決まります
+ * まとめる処理はデーモンスレッドで行うので、不要になったらclose()してください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class BatchingReplayStore implements ReplayStore, Closeable {
+	private final ReplayStore delegate;
+	private final int maxBatchSize;
+	private final long lingerNanos;
+	private final Semaphore inFlight;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+	private final Thread flusher;
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private volatile boolean closed;
+
+	/**
+	 * <pre>
+	 * application-sv4.confの"replay.batch"の設定で作成します。
+	 * </pre>
+	 *
+	 * @param delegate 元になるストア
+	 * @return まとめて呼び出すストア
+	 */
+	public static BatchingReplayStore create(ReplayStore delegate) {
+		Config config = ConfigFactory.load("application-sv4.conf");
+		return new BatchingReplayStore(delegate,
+				config.hasPath("replay.batch.max-batch-size") ? config
+						.getInt("replay.batch.max-batch-size") : 512,
+				config.hasPath("replay.batch.linger") ? config.getDuration("replay.batch.linger",
+						TimeUnit.MICROSECONDS) : 0,
+				config.hasPath("replay.batch.max-in-flight") ? config
+						.getInt("replay.batch.max-in-flight") : 8);
+	}
+
+	/**
+	 * @param delegate 元になるストア
+	 * @param maxBatchSize 1回の呼び出しでまとめる最大のシグネチャー数
+	 * @param lingerMicros まとめる呼び出しを待つ時間（マイクロ秒）
+	 * @param maxInFlight 元のストアを同時に呼び出す最大数
+	 */
+	public BatchingReplayStore(ReplayStore delegate, int maxBatchSize, long lingerMicros,
+			int maxInFlight) {
+		if (maxBatchSize < 1 || lingerMicros < 0 || maxInFlight < 1) {
+			throw new IllegalArgumentException(String.format(
+					"maxBatchSize、maxInFlightは1以上、lingerMicrosは0以上である必要があります。 [%d, %d, %d]",
+					maxBatchSize, lingerMicros, maxInFlight));
+		}
+		this.delegate = delegate;
+		this.maxBatchSize = maxBatchSize;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		this.inFlight = new Semaphore(maxInFlight);
+		this.flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "sv4-replay-batch");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	@Override
+	public CompletableFuture<ReplayResult[]> checkAndSet(long[] fingerprints, long[] expireAts,
+			long now) {
+		Pending pending = new Pending(fingerprints, expireAts, now);
+		requestCount.incrementAndGet();
+		queue.add(pending);
+		if (closed && queue.remove(pending)) {
+			pending.future.completeExceptionally(new IllegalStateException(
+					"BatchingReplayStoreはクローズされています。"));
+		}
+		return pending.future;
+	}
+
+	/**
+	 * 受け付けた呼び出しの数を返します。
+	 *
+	 * @return 受け付けた呼び出しの数
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * 元のストアを呼び出した回数を返します。
+	 *
+	 * @return 元のストアを呼び出した回数
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		flusher.interrupt();
+		Pending pending;
+		while ((pending = queue.poll()) != null) {
+			pending.future.completeExceptionally(new IllegalStateException(
+					"BatchingReplayStoreはクローズされています。"));
+		}
+	}
+
+	private void flushLoop() {
+		List<Pending> batch = new ArrayList<>();
+		try {
+			while (!closed) {
+				Pending first = queue.take();
+				batch.add(first);
+				//呼び出し中の数が最大の間は、その間に来た呼び出しを次にまとめる
+				inFlight.acquire();
+				int size = first.fingerprints.length;
+				long deadline = System.nanoTime() + lingerNanos;
+				while (size < maxBatchSize) {
+					Pending next = queue.poll();
+					if (next == null) {
+						long wait = deadline - System.nanoTime();
+						if (wait <= 0 || (next = queue.poll(wait, TimeUnit.NANOSECONDS)) == null) {
+							break;
+						}
+					}
+					batch.add(next);
+					size += next.fingerprints.length;
+				}
+				send(batch, size);
+				batch = new ArrayList<>();
+			}
+		} catch (InterruptedException e) {
+			//close()で終了する
+			for (Pending pending : batch) {
+				pending.future.completeExceptionally(new IllegalStateException(
+						"BatchingReplayStoreはクローズされています。"));
+			}
+		}
+	}
+
+	private void send(final List<Pending> batch, final int size) {
+		long[] fingerprints = new long[size];
+		long[] expireAts = new long[size];
+		long now = Long.MIN_VALUE;
+		int offset = 0;
+		for (Pending pending : batch) {
+			int length = pending.fingerprints.length;
+			System.arraycopy(pending.fingerprints, 0, fingerprints, offset, length);
+			System.arraycopy(pending.expireAts, 0, expireAts, offset, length);
+			now = Math.max(now, pending.now);
+			offset += length;
+		}
+		batchCount.incrementAndGet();
+		CompletableFuture<ReplayResult[]> future;
+		try {
+			future = delegate.checkAndSet(fingerprints, expireAts, now);
+		} catch (RuntimeException e) {
+			future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+		}
+		future.whenComplete(new BiConsumer<ReplayResult[], Throwable>() {
+			@Override
+			public void accept(ReplayResult[] results, Throwable error) {
+				inFlight.release();
+				if (error == null && (results == null || results.length != size)) {
+					error = new IllegalStateException("ReplayStoreの結果の数が正しくありません。");
+				}
+				int offset = 0;
+				for (Pending pending : batch) {
+					int length = pending.fingerprints.length;
+					if (error != null) {
+						pending.future.completeExceptionally(error);
+					} else {
+						ReplayResult[] r = new ReplayResult[length];
+						System.arraycopy(results, offset, r, 0, length);
+						pending.future.complete(r);
+					}
+					offset += length;
+				}
+			}
+		});
+	}
+
+	private static class Pending {
+		private final long[] fingerprints;
+		private final long[] expireAts;
+		private final long now;
+		private final CompletableFuture<ReplayResult[]> future = new CompletableFuture<>();
+
+		private Pending(long[] fingerprints, long[] expireAts, long now) {
+			this.fingerprints = fingerprints;
+			this.expireAts = expireAts;
+			this.now = now;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package jp.tokyo.lascaux.sv4.replay;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * <pre>
+ * 検証に成功したシグネチャーを記録し、有効期間内に同じシグネチャーのリクエストが再送されたことを検出するクラスです。
+ * シグネチャーは先頭64ビットだけを記録します（HMACの出力なので、偶然一致することは実質ありません）
+ * 記録はリクエストの有効期限が切れる時刻毎のバケットに分けて保持し、期限が切れたバケットはまとめて削除します
+ * ・バケットはリング状に配置し、削除はそのバケットを次に使用する時に行います
+ * ・ロックはシグネチャーのハッシュ値で分割したストライプ毎に行うので、別のストライプへの記録は並行して行えます
+ * ・各ストライプのバケットは固定サイズの配列で、バケットの容量を超えて記録することはありません
+ * バケットの容量は、想定する最大の記録数（毎秒）でバケットの時間に届く数から決めます
+ * 有効期限のないリクエストはすべて記録期間の終わりのバケットに入るので、
+ * 記録期間の最大エントリ数を各バケットに分けるのではなく、どのバケットも1つで最大の記録数を受けられる大きさにします
+ * メモリの使用量は、おおよそ 最大の記録数 × (記録期間 + バケットの時間) × 35バイト です（毎秒2000件、15分で約64MB）
+ * 容量を超えた場合は記録できないので、再送とは区別して{@link ReplayResult#OVERFLOW}を返します
+ * 受け入れるかどうかは、application-sv4.confの"replay.accept-on-overflow"で設定します
+ * 数は{@link #getOverflowCount()}で確認できます
+ * 有効期限が記録期間（window）より長いリクエストは、記録期間が過ぎると再送を検出できなくなります
+ * {@link ReplayStore}としては、呼び出したスレッドで記録して完了済みの結果を返します
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class ReplayDetector implements ReplayStore {
+	private static final int STRIPES = 64;
+	//ストライプ毎の偏りを吸収するための余裕
+	private static final double STRIPE_HEADROOM = 1.25;
+	private static final int MIN_STRIPE_CAPACITY = 16;
+	private final long windowSeconds;
+	private final long bucketSeconds;
+	private final int ringSize;
+	private final int maxRatePerSecond;
+	private final Object[] locks = new Object[STRIPES];
+	//[リングの位置][ストライプ]
+	private final LongSet[][] sets;
+	private final AtomicLong recordedCount = new AtomicLong();
+	private final AtomicLong replayedCount = new AtomicLong();
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	/**
+	 * <pre>
+	 * application-sv4.confの"replay"の設定で作成します。
+	 * </pre>
+	 *
+	 * @return リプレイ検出
+	 */
+	public static ReplayDetector create() {
+		Config config = ConfigFactory.load("application-sv4.conf");
+		return new ReplayDetector(config.hasPath("replay.window") ? config.getDuration(
+				"replay.window", TimeUnit.SECONDS) : 15 * 60,
+				config.hasPath("replay.bucket-size") ? config.getDuration("replay.bucket-size",
+						TimeUnit.SECONDS) : 60,
+				config.hasPath("replay.max-rate") ? config.getInt("replay.max-rate") : 2000);
+	}
+
+	/**
+	 * @param windowSeconds 記録しておく最大の時間（秒）
+	 * @param bucketSeconds バケット毎の時間（秒）
+	 * @param maxRatePerSecond 想定する最大の記録数（毎秒）
+	 */
+	public ReplayDetector(long windowSeconds, long bucketSeconds, int maxRatePerSecond) {
+		if (windowSeconds < 1 || bucketSeconds < 1 || maxRatePerSecond < 1) {
+			throw new IllegalArgumentException(String.format(
+					"window、bucketSeconds、maxRatePerSecondは1以上である必要があります。 [%d, %d, %d]",
+					windowSeconds, bucketSeconds, maxRatePerSecond));
+		}
+		this.windowSeconds = windowSeconds;
+		this.bucketSeconds = bucketSeconds;
+		this.maxRatePerSecond = maxRatePerSecond;
+		//現在のバケットから記録期間の終わりのバケットまで
+		this.ringSize = (int) ((windowSeconds + bucketSeconds - 1) / bucketSeconds) + 1;
+		int capacity = stripeCapacity(maxRatePerSecond, bucketSeconds);
+		this.sets = new LongSet[ringSize][STRIPES];
+		for (int i = 0; i < ringSize; i++) {
+			for (int j = 0; j < STRIPES; j++) {
+				sets[i][j] = new LongSet(capacity);
+			}
+		}
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * <pre>
+	 * シグネチャーを記録します。記録済みの場合は記録せずに{@link ReplayResult#REPLAYED}を返します。
+	 * 有効期限がすでに過ぎている場合は記録しません
+	 * バケットの容量を超えて記録できない場合は{@link ReplayResult#OVERFLOW}を返します
+	 * </pre>
+	 *
+	 * @param fingerprint シグネチャーの先頭64ビット
+	 * @param expireAt リクエストの有効期限（エポック秒）
+	 * @param now 現在時刻（エポック秒）
+	 * @return 確認の結果
+	 */
+	public ReplayResult register(long fingerprint, long expireAt, long now) {
+		if (expireAt < now) {
+			return ReplayResult.ACCEPTED;
+		}
+		long currentBucket = now / bucketSeconds;
+		//有効期限が記録期間より先の場合は、記録期間の終わりのバケットに記録する
+		boolean clamped = expireAt > now + windowSeconds;
+		long targetBucket = (clamped ? now + windowSeconds : expireAt) / bucketSeconds;
+		int stripe = stripe(fingerprint);
+		synchronized (locks[stripe]) {
+			LongSet target = sets[(int) (targetBucket % ringSize)][stripe];
+			//同じシグネチャーは有効期限も同じなので、同じバケットにあるか、記録期間の終わりに寄せたバケットにある
+			for (int i = 0; i < ringSize; i++) {
+				LongSet set = sets[i][stripe];
+				if (set.bucket < currentBucket) {
+					set.reset(-1);
+				} else if ((set == target || set.clamped) && set.size > 0
+						&& set.contains(fingerprint)) {
+					replayedCount.incrementAndGet();
+					return ReplayResult.REPLAYED;
+				}
+			}
+			if (target.bucket != targetBucket) {
+				target.reset(targetBucket);
+			}
+			if (target.add(fingerprint)) {
+				target.clamped |= clamped;
+				recordedCount.incrementAndGet();
+			} else {
+				overflowCount.incrementAndGet();
+				return ReplayResult.OVERFLOW;
+			}
+		}
+		return ReplayResult.ACCEPTED;
+	}
+
+	@Override
+	public CompletableFuture<ReplayResult[]> checkAndSet(long[] fingerprints, long[] expireAts,
+			long now) {
+		ReplayResult[] results = new ReplayResult[fingerprints.length];
+		for (int i = 0; i < fingerprints.length; i++) {
+			results[i] = register(fingerprints[i], expireAts[i], now);
+		}
+		return CompletableFuture.completedFuture(results);
+	}
+
+	/**
+	 * 16進数のシグネチャーの先頭64ビットを返します。16文字未満の場合は全体から計算します。
+	 *
+	 * @param signature 16進数のシグネチャー
+	 * @return シグネチャーの先頭64ビット
+	 */
+	public static long fingerprint(String signature) {
+		long value = 0;
+		int length = Math.min(signature.length(), 16);
+		for (int i = 0; i < length; i++) {
+			value = (value << 4) | Character.digit(signature.charAt(i), 16) & 0xf;
+		}
+		return value;
+	}
+
+	public int getMaxRatePerSecond() {
+		return maxRatePerSecond;
+	}
+
+	public long getRecordedCount() {
+		return recordedCount.get();
+	}
+
+	public long getReplayedCount() {
+		return replayedCount.get();
+	}
+
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	/**
+	 * 1つのバケットの時間に最大の記録数で届くエントリを、余裕を持たせてストライプ数で分けた数を返します。
+	 */
+	private static int stripeCapacity(int maxRatePerSecond, long bucketSeconds) {
+		double perStripe = (double) maxRatePerSecond * bucketSeconds / STRIPES;
+		double capacity = perStripe * STRIPE_HEADROOM + MIN_STRIPE_CAPACITY;
+		if (capacity > 1 << 28) {
+			throw new IllegalArgumentException(String.format(
+					"maxRatePerSecondとbucketSecondsが大きすぎます。 [%d, %d]", maxRatePerSecond,
+					bucketSeconds));
+		}
+		return (int) capacity;
+	}
+
+	private static int stripe(long fingerprint) {
+		long h = fingerprint * 0x9e3779b97f4a7c15L;
+		return (int) (h >>> 58);
+	}
+
+	/**
+	 * <pre>
+	 * 固定サイズのlongのハッシュセットです（オープンアドレス法、線形探索）。
+	 * 0は空きを表すので、0のシグネチャーは1として扱います
+	 * ストライプのロック内でのみ使用します
+	 * </pre>
+	 */
+	private static class LongSet {
+		private final long[] table;
+		private final int maxSize;
+		private int size;
+		private long bucket = -1;
+		//記録期間の終わりに寄せたシグネチャーを含むか
+		private boolean clamped;
+
+		private LongSet(int maxSize) {
+			this.maxSize = maxSize;
+			//負荷率を0.5以下にする
+			this.table = new long[Integer.highestOneBit(maxSize * 2 - 1) << 1];
+		}
+
+		private boolean contains(long value) {
+			long v = value == 0 ? 1 : value;
+			int mask = table.length - 1;
+			for (int i = index(v, mask);; i = (i + 1) & mask) {
+				if (table[i] == v) {
+					return true;
+				}
+				if (table[i] == 0) {
+					return false;
+				}
+			}
+		}
+
+		private boolean add(long value) {
+			if (size >= maxSize) {
+				return false;
+			}
+			long v = value == 0 ? 1 : value;
+			int mask = table.length - 1;
+			int i = index(v, mask);
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = v;
+			size++;
+			return true;
+		}
+
+		private void reset(long newBucket) {
+			if (size > 0) {
+				Arrays.fill(table, 0);
+				size = 0;
+			}
+			bucket = newBucket;
+			clamped = false;
+		}
+
+		private static int index(long v, int mask) {
+			return (int) (v ^ (v >>> 32)) & mask;
+		}
+	}
+}
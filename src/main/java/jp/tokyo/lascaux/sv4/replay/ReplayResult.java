@@ -0,0 +1,18 @@
+package jp.tokyo.lascaux.sv4.replay;
+
+/**
+ * <pre>
+ * {@link ReplayStore}がシグネチャー毎に返す確認の結果です。
+ * 記録できなかった場合は再送とは区別して返し、受け入れるかどうかは検証側の設定で決めます
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public enum ReplayResult {
+	/** 初めてのシグネチャー（有効期限が過ぎていて記録する必要がない場合を含む） */
+	ACCEPTED,
+	/** 記録済みのシグネチャー（再送） */
+	REPLAYED,
+	/** 記録できるエントリ数を超えたため、記録も確認もできなかった */
+	OVERFLOW
+}
@@ -0,0 +1,25 @@
+package jp.tokyo.lascaux.sv4.replay;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <pre>
+ * 検証に成功したシグネチャーを記録し、再送を検出するストアのインターフェースです。
+ * 複数のサーバーで再送を検出する場合は、共有のストアを実装して{@link BatchingReplayStore}でラップしてください
+ * 1回の呼び出しで複数のシグネチャーをまとめて確認し、結果は非同期に返します
+ * 同じ呼び出しの中に同じシグネチャーがある場合は、先のものだけを初めてのシグネチャーとして扱ってください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public interface ReplayStore {
+	/**
+	 * シグネチャーが記録済みかを確認し、記録されていなければ記録します。
+	 *
+	 * @param fingerprints シグネチャーの先頭64ビット
+	 * @param expireAts リクエストの有効期限（エポック秒）
+	 * @param now 現在時刻（エポック秒）
+	 * @return シグネチャー毎の結果、記録できなかった場合は再送ではなく{@link ReplayResult#OVERFLOW}
+	 */
+	CompletableFuture<ReplayResult[]> checkAndSet(long[] fingerprints, long[] expireAts, long now);
+}
@@ -0,0 +1,375 @@
+package jp.tokyo.lascaux.sv4.secret;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import jp.tokyo.lascaux.sv4.time.EpochClock;
+
+/**
+ * <pre>
+ * 他のプロバイダーから取得した秘密鍵をキャッシュするプロバイダーです。
+ * ・更新時間を過ぎたエントリは、キャッシュした値を返しつつバックグラウンドで再取得します
+ * ・有効時間を過ぎたエントリは、呼び出したスレッドで再取得します
+ * ・存在しないアクセスキーも、否定キャッシュの有効時間の間はキャッシュします
+ * 　否定キャッシュは存在するアクセスキーとは別の、より小さい最大数のマップに保持するので、
+ * 　ランダムなアクセスキーのリクエストを大量に送られても、よく使われるアクセスキーは削除されません
+ * ・同じアクセスキーの取得が同時に発生した場合、元のプロバイダーの呼び出しは1回だけ行います
+ * ・エントリ数が最大数を超えた場合は、最後に使われたのが最も古いエントリから削除します
+ * よく使われるアクセスキーであれば、元のプロバイダーの呼び出しはリクエストの処理時間に含まれません
+ * 再取得はデーモンスレッドで行うので、不要になったらclose()してください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class CachingSecretProvider implements SecretProvider, Closeable {
+	private final SecretProvider delegate;
+	private final int maxSize;
+	private final int maxNegativeSize;
+	private final long refreshAfterSeconds;
+	private final long expireAfterSeconds;
+	private final long negativeTtlSeconds;
+	private final EpochClock clock;
+	private final ExecutorService refreshExecutor;
+	private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+	//存在しないアクセスキーの否定キャッシュ
+	private final ConcurrentMap<String, Entry> negativeCache = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong loadFailureCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * <pre>
+	 * application-sv4.confの"secret.cache"の設定でキャッシュを作成します。
+	 * </pre>
+	 *
+	 * @param delegate 元になるプロバイダー
+	 * @return キャッシュするプロバイダー
+	 */
+	public static CachingSecretProvider create(SecretProvider delegate) {
+		Config config = ConfigFactory.load("application-sv4.conf");
+		return new CachingSecretProvider(delegate,
+				config.hasPath("secret.cache.max-size") ? config.getInt("secret.cache.max-size")
+						: 10000,
+				config.hasPath("secret.cache.refresh-after") ? config.getDuration(
+						"secret.cache.refresh-after", TimeUnit.SECONDS) : 5 * 60,
+				config.hasPath("secret.cache.expire-after") ? config.getDuration(
+						"secret.cache.expire-after", TimeUnit.SECONDS) : 60 * 60,
+				config.hasPath("secret.cache.negative-ttl") ? config.getDuration(
+						"secret.cache.negative-ttl", TimeUnit.SECONDS) : 30,
+				config.hasPath("secret.cache.negative-max-size") ? config
+						.getInt("secret.cache.negative-max-size") : 1000, EpochClock.SYSTEM);
+	}
+
+	/**
+	 * 否定キャッシュの最大エントリ数を、最大エントリ数の1/10にしてキャッシュを作成します。
+	 *
+	 * @param delegate 元になるプロバイダー
+	 * @param maxSize キャッシュする最大エントリ数
+	 * @param refreshAfterSeconds バックグラウンドで再取得するまでの時間（秒）
+	 * @param expireAfterSeconds キャッシュした値を使用しなくなるまでの時間（秒）
+	 * @param negativeTtlSeconds 存在しないアクセスキーをキャッシュする時間（秒）
+	 * @param clock 時計
+	 */
+	public CachingSecretProvider(SecretProvider delegate, int maxSize, long refreshAfterSeconds,
+			long expireAfterSeconds, long negativeTtlSeconds, EpochClock clock) {
+		this(delegate, maxSize, refreshAfterSeconds, expireAfterSeconds, negativeTtlSeconds, Math
+				.max(maxSize / 10, 1), clock);
+	}
+
+	/**
+	 * @param delegate 元になるプロバイダー
+	 * @param maxSize キャッシュする最大エントリ数
+	 * @param refreshAfterSeconds バックグラウンドで再取得するまでの時間（秒）
+	 * @param expireAfterSeconds キャッシュした値を使用しなくなるまでの時間（秒）
+	 * @param negativeTtlSeconds 存在しないアクセスキーをキャッシュする時間（秒）
+	 * @param maxNegativeSize 存在しないアクセスキーをキャッシュする最大エントリ数
+	 * @param clock 時計
+	 */
+	public CachingSecretProvider(SecretProvider delegate, int maxSize, long refreshAfterSeconds,
+			long expireAfterSeconds, long negativeTtlSeconds, int maxNegativeSize, EpochClock clock) {
+		if (maxSize < 1 || maxNegativeSize < 1) {
+			throw new IllegalArgumentException(String.format(
+					"maxSize、maxNegativeSizeは1以上である必要があります。 [%d, %d]", maxSize,
+					maxNegativeSize));
+		}
+		if (refreshAfterSeconds > expireAfterSeconds) {
+			throw new IllegalArgumentException(String.format(
+					"refreshAfterSecondsはexpireAfterSeconds以下である必要があります。 [%d, %d]",
+					refreshAfterSeconds, expireAfterSeconds));
+		}
+		this.delegate = delegate;
+		this.maxSize = maxSize;
+		this.maxNegativeSize = maxNegativeSize;
+		this.refreshAfterSeconds = refreshAfterSeconds;
+		this.expireAfterSeconds = expireAfterSeconds;
+		this.negativeTtlSeconds = negativeTtlSeconds;
+		this.clock = clock;
+		this.refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sv4-secret-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public List<String> getSecrets(String accessKey) throws Exception {
+		long now = clock.currentTimeSeconds();
+		Entry entry = get(accessKey);
+		if (entry != null && isUsable(entry, now)) {
+			hitCount.incrementAndGet();
+			if (!entry.secrets.isEmpty()) {
+				entry.lastAccess = System.nanoTime();
+				if (now - entry.loadedAt >= refreshAfterSeconds) {
+					refreshAsync(accessKey, entry);
+				}
+			}
+			return entry.secrets;
+		}
+		missCount.incrementAndGet();
+		return load(accessKey, now).secrets;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailureCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * 存在するアクセスキーと否定キャッシュを合わせたエントリ数を返します。
+	 *
+	 * @return エントリ数
+	 */
+	public int size() {
+		return cache.size() + negativeCache.size();
+	}
+
+	/**
+	 * 否定キャッシュのエントリ数を返します。
+	 *
+	 * @return 否定キャッシュのエントリ数
+	 */
+	public int negativeSize() {
+		return negativeCache.size();
+	}
+
+	/**
+	 * アクセスキーのエントリを削除します。次の取得時に元のプロバイダーから再取得します。
+	 *
+	 * @param accessKey アクセスキー
+	 */
+	public void invalidate(String accessKey) {
+		cache.remove(accessKey);
+		negativeCache.remove(accessKey);
+	}
+
+	public void clear() {
+		cache.clear();
+		negativeCache.clear();
+	}
+
+	@Override
+	public void close() {
+		refreshExecutor.shutdownNow();
+	}
+
+	/**
+	 * <pre>
+	 * 元のプロバイダーから取得してキャッシュします。
+	 * 同じアクセスキーを取得中のスレッドがある場合は、その結果を待ちます
+	 * </pre>
+	 */
+	private Entry load(String accessKey, long now) throws Exception {
+		CompletableFuture<Entry> future = new CompletableFuture<>();
+		CompletableFuture<Entry> inFlight = loading.putIfAbsent(accessKey, future);
+		if (inFlight != null) {
+			try {
+				return inFlight.join();
+			} catch (CompletionException e) {
+				throw unwrap(e);
+			}
+		}
+		try {
+			//直前に他のスレッドが取得を終えていた場合は、その値を使用する
+			Entry entry = get(accessKey);
+			if (entry == null || !isUsable(entry, now)) {
+				entry = loadEntry(accessKey);
+			}
+			future.complete(entry);
+			return entry;
+		} catch (Throwable t) {
+			future.completeExceptionally(t);
+			throw t;
+		} finally {
+			loading.remove(accessKey, future);
+		}
+	}
+
+	/**
+	 * 更新時間を過ぎたエントリをバックグラウンドで再取得します。失敗した場合は古い値を使い続けます。
+	 */
+	private void refreshAsync(final String accessKey, final Entry entry) {
+		if (!entry.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			refreshExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						loadEntry(accessKey);
+					} catch (Exception e) {
+						//次の更新で再取得する
+					} finally {
+						entry.refreshing.set(false);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			//close()後は再取得しない
+			entry.refreshing.set(false);
+		}
+	}
+
+	/**
+	 * 有効時間内のエントリかを判定します。存在しないアクセスキーの場合は否定キャッシュの有効時間で判定します。
+	 */
+	private boolean isUsable(Entry entry, long now) {
+		long age = now - entry.loadedAt;
+		return age < (entry.secrets.isEmpty() ? negativeTtlSeconds : expireAfterSeconds);
+	}
+
+	private Entry loadEntry(String accessKey) throws Exception {
+		loadCount.incrementAndGet();
+		List<String> secrets;
+		try {
+			secrets = delegate.getSecrets(accessKey);
+		} catch (Exception e) {
+			loadFailureCount.incrementAndGet();
+			throw e;
+		}
+		if (secrets == null || secrets.isEmpty()) {
+			Entry entry = new Entry(Collections.<String> emptyList(), clock.currentTimeSeconds());
+			cache.remove(accessKey);
+			negativeCache.put(accessKey, entry);
+			if (negativeCache.size() > maxNegativeSize) {
+				evictNegativeOverflow(accessKey);
+			}
+			return entry;
+		}
+		//秘密鍵のフィンガープリントは読み込んだ時に一度だけ計算する
+		Entry entry = new Entry(SecretList.of(secrets), clock.currentTimeSeconds());
+		negativeCache.remove(accessKey);
+		cache.put(accessKey, entry);
+		if (cache.size() > maxSize) {
+			evictOverflow(accessKey);
+		}
+		return entry;
+	}
+
+	private Entry get(String accessKey) {
+		Entry entry = cache.get(accessKey);
+		return entry != null ? entry : negativeCache.get(accessKey);
+	}
+
+	/**
+	 * <pre>
+	 * 最大数を超えた分のエントリを、最後に使われたのが最も古いものから削除します。
+	 * 追加したばかりのエントリは削除しません
+	 * 全エントリを走査するので、キャッシュに新しいアクセスキーを追加した時にだけ行います
+	 * </pre>
+	 */
+	private void evictOverflow(String keep) {
+		while (cache.size() > maxSize) {
+			String oldestKey = null;
+			long oldestAccess = Long.MAX_VALUE;
+			for (Map.Entry<String, Entry> e : cache.entrySet()) {
+				long lastAccess = e.getValue().lastAccess;
+				if (lastAccess < oldestAccess && !e.getKey().equals(keep)) {
+					oldestKey = e.getKey();
+					oldestAccess = lastAccess;
+				}
+			}
+			if (oldestKey == null) {
+				return;
+			}
+			if (cache.remove(oldestKey) != null) {
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * 否定キャッシュの最大数を超えた分のエントリを削除します。
+	 * どのエントリを削除するかは特に決めていませんが、追加したばかりのエントリは削除しません
+	 */
+	private void evictNegativeOverflow(String keep) {
+		for (Iterator<String> it = negativeCache.keySet().iterator(); it.hasNext()
+				&& negativeCache.size() > maxNegativeSize;) {
+			if (!it.next().equals(keep)) {
+				it.remove();
+				evictionCount.incrementAndGet();
+			}
+		}
+	}
+
+	private static Exception unwrap(CompletionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof Exception) {
+			return (Exception) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return e;
+	}
+
+	private static class Entry {
+		private final List<String> secrets;
+		private final long loadedAt;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+		//最後に使われた時刻（System.nanoTime()）、削除する順番にのみ使用する
+		private volatile long lastAccess = System.nanoTime();
+
+		private Entry(List<String> secrets, long loadedAt) {
+			this.secrets = secrets;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
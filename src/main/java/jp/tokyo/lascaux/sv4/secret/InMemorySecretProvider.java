@@ -0,0 +1,92 @@
+package jp.tokyo.lascaux.sv4.secret;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * <pre>
+ * メモリ上に秘密鍵を保持するプロバイダーです。
+ * テストや、秘密鍵の数が少なくファイルで管理できる場合に使用してください
+ * ファイルはプロパティ形式で、複数の秘密鍵はカンマ区切りで指定します（UTF-8）
+ * 例）AKIDEXAMPLE=wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY,oldSecret
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class InMemorySecretProvider implements SecretProvider {
+	private final ConcurrentMap<String, List<String>> secrets = new ConcurrentHashMap<>();
+
+	/**
+	 * プロパティ形式のファイルから秘密鍵を読み込んだプロバイダーを作成します。
+	 *
+	 * @param file プロパティ形式のファイル
+	 * @return プロバイダー
+	 * @throws IOException ファイルの読み込みに失敗した時にスローされる例外
+	 */
+	public static InMemorySecretProvider load(File file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file);
+				Reader reader = new InputStreamReader(in, "UTF-8")) {
+			properties.load(reader);
+		}
+		InMemorySecretProvider provider = new InMemorySecretProvider();
+		for (String accessKey : properties.stringPropertyNames()) {
+			List<String> list = new ArrayList<>();
+			for (String secret : properties.getProperty(accessKey).split(",")) {
+				if (!StringUtils.isBlank(secret)) {
+					list.add(secret.trim());
+				}
+			}
+			provider.put(accessKey, list.toArray(new String[list.size()]));
+		}
+		return provider;
+	}
+
+	/**
+	 * アクセスキーの秘密鍵を設定します。すでにある場合は置き換えます。
+	 *
+	 * @param accessKey アクセスキー
+	 * @param privateKeys 秘密鍵（優先する順番）
+	 */
+	public void put(String accessKey, String... privateKeys) {
+		secrets.put(accessKey, SecretList.of(Arrays.asList(privateKeys)));
+	}
+
+	/**
+	 * アクセスキーを削除します。
+	 *
+	 * @param accessKey アクセスキー
+	 */
+	public void remove(String accessKey) {
+		secrets.remove(accessKey);
+	}
+
+	/**
+	 * 登録されているアクセスキーを返します。
+	 *
+	 * @return アクセスキー
+	 */
+	public Set<String> getAccessKeys() {
+		return Collections.unmodifiableSet(secrets.keySet());
+	}
+
+	@Override
+	public List<String> getSecrets(String accessKey) {
+		List<String> list = secrets.get(accessKey);
+		return list == null ? Collections.<String> emptyList() : list;
+	}
+}
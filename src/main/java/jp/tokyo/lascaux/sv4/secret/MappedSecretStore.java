@@ -0,0 +1,187 @@
+package jp.tokyo.lascaux.sv4.secret;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <pre>
+ * {@link MappedSecretStoreWriter}で作成したファイルをメモリマップして、秘密鍵を検索するプロバイダーです。
+ * アクセスキーと秘密鍵はヒープ上には展開しないので、アクセスキーが数百万件あってもヒープの使用量は増えません
+ * 検索時には、見つかった秘密鍵の文字列だけを作成します
+ * ファイルの形式（数値はすべてビッグエンディアン）
+ * ・ヘッダー：マジックナンバー(int)、バージョン(int)、スロット数(int、2のべき乗)、エントリ数(int)
+ * ・スロット：ハッシュ値(int)、レコードの位置(int、0は空き)をスロット数分（オープンアドレス法、線形探索）
+ * ・レコード：アクセスキーの長さ(short)、アクセスキー(UTF-8)、秘密鍵の数(byte)、
+ * 　　　　　　秘密鍵毎に長さ(short)と秘密鍵(UTF-8)
+ * ファイルの置き換えは{@link MappedSecretStoreWriter#writeTo(Path)}で行い、{@link #reload()}で反映してください
+ * マップ中のファイルを直接書き換えると、検索中のストアが書き換え途中の内容を読んでしまうので注意してください
+ * Windowsではマップ中のファイルを置き換えられないので、別のパスに書き出して{@link #open(Path)}し直してください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class MappedSecretStore implements SecretProvider {
+	static final int MAGIC = 0x53563453;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int SLOT_SIZE = 8;
+	private final Path path;
+	private volatile Mapping mapping;
+
+	private MappedSecretStore(Path path, Mapping mapping) {
+		this.path = path;
+		this.mapping = mapping;
+	}
+
+	/**
+	 * ファイルをメモリマップしてストアを作成します。
+	 *
+	 * @param path ファイルのパス
+	 * @return ストア
+	 * @throws IOException ファイルの読み込みに失敗した場合や、形式が正しくない場合にスローされる例外
+	 */
+	public static MappedSecretStore open(Path path) throws IOException {
+		return new MappedSecretStore(path, Mapping.map(path));
+	}
+
+	/**
+	 * <pre>
+	 * ファイルをメモリマップし直します。
+	 * 検索中のスレッドは古いマッピングで検索を終え、以降の検索は新しいマッピングで行います
+	 * 失敗した場合は古いマッピングを使い続けます
+	 * </pre>
+	 *
+	 * @throws IOException ファイルの読み込みに失敗した場合や、形式が正しくない場合にスローされる例外
+	 */
+	public void reload() throws IOException {
+		mapping = Mapping.map(path);
+	}
+
+	/**
+	 * ファイルの更新日時が変わっている場合のみ、メモリマップし直します。
+	 *
+	 * @return メモリマップし直した場合はtrue
+	 * @throws IOException ファイルの読み込みに失敗した場合や、形式が正しくない場合にスローされる例外
+	 */
+	public boolean reloadIfModified() throws IOException {
+		if (Files.getLastModifiedTime(path).toMillis() == mapping.lastModified) {
+			return false;
+		}
+		reload();
+		return true;
+	}
+
+	/**
+	 * 登録されているアクセスキーの数を返します。
+	 *
+	 * @return アクセスキーの数
+	 */
+	public int size() {
+		return mapping.entryCount;
+	}
+
+	@Override
+	public List<String> getSecrets(String accessKey) {
+		return mapping.find(accessKey.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * アクセスキーのハッシュ値です。ファイルの作成と検索で同じ値を使用します（FNV-1a）。
+	 */
+	static int hash(byte[] key) {
+		int h = 0x811c9dc5;
+		for (byte b : key) {
+			h ^= b & 0xff;
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	private static class Mapping {
+		private final ByteBuffer buffer;
+		private final int slotCount;
+		private final int entryCount;
+		private final long lastModified;
+
+		private Mapping(ByteBuffer buffer, int slotCount, int entryCount, long lastModified) {
+			this.buffer = buffer;
+			this.slotCount = slotCount;
+			this.entryCount = entryCount;
+			this.lastModified = lastModified;
+		}
+
+		private static Mapping map(Path path) throws IOException {
+			long lastModified = Files.getLastModifiedTime(path).toMillis();
+			MappedByteBuffer buffer;
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+					throw new IOException("秘密鍵ファイルのサイズが正しくありません。 [" + path + "]");
+				}
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				throw new IOException("秘密鍵ファイルの形式が正しくありません。 [" + path + "]");
+			}
+			int slotCount = buffer.getInt(8);
+			int entryCount = buffer.getInt(12);
+			if (slotCount <= 0 || Integer.bitCount(slotCount) != 1 || entryCount >= slotCount
+					|| HEADER_SIZE + (long) slotCount * SLOT_SIZE > buffer.capacity()) {
+				throw new IOException("秘密鍵ファイルのヘッダーが正しくありません。 [" + path + "]");
+			}
+			return new Mapping(buffer, slotCount, entryCount, lastModified);
+		}
+
+		private List<String> find(byte[] key) {
+			int hash = hash(key);
+			int mask = slotCount - 1;
+			//空きスロットが必ずあるので、探索は終了する
+			for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+				int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+				int recordPosition = buffer.getInt(slotPosition + 4);
+				if (recordPosition == 0) {
+					return Collections.emptyList();
+				}
+				if (buffer.getInt(slotPosition) == hash && keyEquals(recordPosition, key)) {
+					return readSecrets(recordPosition + 2 + key.length);
+				}
+			}
+		}
+
+		private boolean keyEquals(int position, byte[] key) {
+			if (buffer.getShort(position) != key.length) {
+				return false;
+			}
+			for (int i = 0; i < key.length; i++) {
+				if (buffer.get(position + 2 + i) != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private List<String> readSecrets(int position) {
+			int count = buffer.get(position) & 0xff;
+			int p = position + 1;
+			List<String> secrets = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				int length = buffer.getShort(p) & 0xffff;
+				byte[] bytes = new byte[length];
+				for (int j = 0; j < length; j++) {
+					bytes[j] = buffer.get(p + 2 + j);
+				}
+				secrets.add(new String(bytes, StandardCharsets.UTF_8));
+				p += 2 + length;
+			}
+			return secrets;
+		}
+	}
+}
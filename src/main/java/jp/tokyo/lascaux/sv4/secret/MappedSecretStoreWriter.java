@@ -0,0 +1,156 @@
+package jp.tokyo.lascaux.sv4.secret;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <pre>
+ * {@link MappedSecretStore}で使用するファイルを作成するクラスです。
+ * 同じディレクトリに一時ファイルを作成してから置き換えるので、
+ * 検索中のストアが書き込み途中のファイルを読むことはありません
+ * mainメソッドから、プロパティ形式のファイル（{@link InMemorySecretProvider#load}と同じ形式）を変換することもできます
+ * 引数: [プロパティファイル] [出力ファイル]
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class MappedSecretStoreWriter {
+	private final Map<String, byte[][]> entries = new LinkedHashMap<>();
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("usage: MappedSecretStoreWriter [properties file] [output file]");
+			System.exit(1);
+		}
+		InMemorySecretProvider source = InMemorySecretProvider.load(new File(args[0]));
+		MappedSecretStoreWriter writer = new MappedSecretStoreWriter();
+		for (String accessKey : source.getAccessKeys()) {
+			writer.put(accessKey, source.getSecrets(accessKey).toArray(new String[0]));
+		}
+		writer.writeTo(Paths.get(args[1]));
+	}
+
+	/**
+	 * アクセスキーの秘密鍵を追加します。すでにある場合は置き換えます。
+	 *
+	 * @param accessKey アクセスキー
+	 * @param privateKeys 秘密鍵（優先する順番、255個まで）
+	 * @return このオブジェクト
+	 */
+	public MappedSecretStoreWriter put(String accessKey, String... privateKeys) {
+		byte[] key = accessKey.getBytes(StandardCharsets.UTF_8);
+		if (key.length == 0 || key.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("アクセスキーの長さが正しくありません。 [" + accessKey + "]");
+		}
+		if (privateKeys.length > 255) {
+			throw new IllegalArgumentException("秘密鍵は255個までです。 [" + accessKey + "]");
+		}
+		byte[][] secrets = new byte[privateKeys.length][];
+		for (int i = 0; i < privateKeys.length; i++) {
+			secrets[i] = privateKeys[i].getBytes(StandardCharsets.UTF_8);
+			if (secrets[i].length > 0xffff) {
+				throw new IllegalArgumentException("秘密鍵が長すぎます。 [" + accessKey + "]");
+			}
+		}
+		entries.put(accessKey, secrets);
+		return this;
+	}
+
+	/**
+	 * <pre>
+	 * ファイルを作成し、指定したパスのファイルと置き換えます。
+	 * Windowsでは、{@link MappedSecretStore}がメモリマップしているファイルは
+	 * マッピングがGCで解放されるまで置き換えられず、例外をスローします（作成した一時ファイルは削除します）
+	 * その場合は別のパスに書き出し、{@link MappedSecretStore#open(Path)}で新しいストアを作成してください
+	 * </pre>
+	 *
+	 * @param path 出力先のパス
+	 * @throws IOException ファイルの書き込みや置き換えに失敗した時にスローされる例外
+	 */
+	public void writeTo(Path path) throws IOException {
+		Path absolute = path.toAbsolutePath();
+		Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(),
+				".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				write(out);
+			}
+			try {
+				try {
+					Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (FileSystemException e) {
+				throw new IOException("ファイルを置き換えられません。メモリマップ中の可能性があります。 ["
+						+ absolute + "]", e);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private void write(OutputStream os) throws IOException {
+		//負荷率を0.5以下にする
+		int slotCount = Integer.highestOneBit(Math.max(entries.size(), 1) * 2 - 1) << 1;
+		int[] slotHashes = new int[slotCount];
+		int[] slotPositions = new int[slotCount];
+		long position = MappedSecretStore.HEADER_SIZE + (long) slotCount
+				* MappedSecretStore.SLOT_SIZE;
+		for (Map.Entry<String, byte[][]> e : entries.entrySet()) {
+			byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+			int hash = MappedSecretStore.hash(key);
+			int slot = hash & (slotCount - 1);
+			while (slotPositions[slot] != 0) {
+				slot = (slot + 1) & (slotCount - 1);
+			}
+			slotHashes[slot] = hash;
+			slotPositions[slot] = (int) position;
+			position += recordSize(key, e.getValue());
+			if (position > Integer.MAX_VALUE) {
+				throw new IOException("秘密鍵ファイルが2GBを超えます。");
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+		out.writeInt(MappedSecretStore.MAGIC);
+		out.writeInt(MappedSecretStore.VERSION);
+		out.writeInt(slotCount);
+		out.writeInt(entries.size());
+		for (int i = 0; i < slotCount; i++) {
+			out.writeInt(slotHashes[i]);
+			out.writeInt(slotPositions[i]);
+		}
+		for (Map.Entry<String, byte[][]> e : entries.entrySet()) {
+			byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+			out.writeShort(key.length);
+			out.write(key);
+			out.writeByte(e.getValue().length);
+			for (byte[] secret : e.getValue()) {
+				out.writeShort(secret.length);
+				out.write(secret);
+			}
+		}
+		out.flush();
+	}
+
+	private static long recordSize(byte[] key, byte[][] secrets) {
+		long size = 2 + key.length + 1;
+		for (byte[] secret : secrets) {
+			size += 2 + secret.length;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,76 @@
+package jp.tokyo.lascaux.sv4.secret;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+
+/**
+ * <pre>
+ * 秘密鍵のリストと、各秘密鍵のフィンガープリント（SHA-256の16進数文字列）を合わせて保持する変更できないリストです。
+ * フィンガープリントは作成時に一度だけ計算し、{@link jp.tokyo.lascaux.sv4.cache.SigningKeyCache}のキーに使用します
+ * プロバイダーはエントリを読み込んだ時にこのリストを作成して返すことで、
+ * リクエスト毎に秘密鍵をハッシュ化せずに署名キーのキャッシュを検索できるようになります
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public final class SecretList extends AbstractList<String> implements RandomAccess {
+	private final String[] secrets;
+	private final String[] fingerprints;
+
+	private SecretList(List<String> secrets) {
+		this.secrets = secrets.toArray(new String[secrets.size()]);
+		this.fingerprints = new String[this.secrets.length];
+		for (int i = 0; i < this.secrets.length; i++) {
+			fingerprints[i] = this.secrets[i] == null ? null : fingerprint(this.secrets[i]);
+		}
+	}
+
+	/**
+	 * 秘密鍵のリストからフィンガープリントを計算したリストを作成します。すでにこのクラスの場合はそのまま返します。
+	 *
+	 * @param secrets 秘密鍵のリスト
+	 * @return フィンガープリントを保持するリスト
+	 */
+	public static SecretList of(List<String> secrets) {
+		return secrets instanceof SecretList ? (SecretList) secrets : new SecretList(secrets);
+	}
+
+	/**
+	 * 秘密鍵のフィンガープリントを計算します。
+	 *
+	 * @param secret 秘密鍵
+	 * @return フィンガープリント
+	 */
+	public static String fingerprint(String secret) {
+		return ReusableSHAAlgorithm.getInstance(HashType.SHA256).hashedString(secret);
+	}
+
+	/**
+	 * <pre>
+	 * リストのindex番目の秘密鍵のフィンガープリントを返します。
+	 * このクラスのリストの場合は計算済みの値を返し、それ以外の場合は計算します
+	 * </pre>
+	 *
+	 * @param secrets 秘密鍵のリスト
+	 * @param index 位置
+	 * @return フィンガープリント
+	 */
+	public static String fingerprint(List<String> secrets, int index) {
+		return secrets instanceof SecretList ? ((SecretList) secrets).fingerprints[index]
+				: fingerprint(secrets.get(index));
+	}
+
+	@Override
+	public String get(int index) {
+		return secrets[index];
+	}
+
+	@Override
+	public int size() {
+		return secrets.length;
+	}
+}
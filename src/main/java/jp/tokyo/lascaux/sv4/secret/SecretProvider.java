@@ -0,0 +1,23 @@
+package jp.tokyo.lascaux.sv4.secret;
+
+import java.util.List;
+
+/**
+ * <pre>
+ * アクセスキーから秘密鍵を取得するためのインターフェースです。
+ * データベースなどから取得する場合は、{@link CachingSecretProvider}でラップして使用してください
+ * 秘密鍵のローテーション中は複数の秘密鍵を返すことができ、検証はリストの順番に行います
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public interface SecretProvider {
+	/**
+	 * アクセスキーに対応する秘密鍵を返します。
+	 *
+	 * @param accessKey アクセスキー
+	 * @return 秘密鍵のリスト、アクセスキーが存在しない場合は空のリスト
+	 * @throws Exception 秘密鍵の取得に失敗した時にスローされる例外
+	 */
+	List<String> getSecrets(String accessKey) throws Exception;
+}
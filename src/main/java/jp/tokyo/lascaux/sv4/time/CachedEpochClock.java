@@ -0,0 +1,60 @@
+package jp.tokyo.lascaux.sv4.time;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <pre>
+ * 一定間隔で更新した時刻を返す、精度の粗いクロックです。
+ * 現在時刻の取得はvolatileの読み込みだけになります
+ * 更新はデーモンスレッドで行うので、不要になったらclose()してください
+ * 有効期限や時刻のずれの検証は秒単位なので、1秒未満の間隔であれば検証結果には影響しません
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class CachedEpochClock implements EpochClock, Closeable {
+	private final EpochClock source;
+	private final ScheduledExecutorService scheduler;
+	private volatile long currentTimeSeconds;
+
+	/**
+	 * @param source 元になるクロック
+	 * @param intervalMillis 更新間隔（ミリ秒）
+	 */
+	public CachedEpochClock(EpochClock source, long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("intervalMillisは1以上である必要があります。 ["
+					+ intervalMillis + "]");
+		}
+		this.source = source;
+		this.currentTimeSeconds = source.currentTimeSeconds();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sv4-cached-epoch-clock");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				currentTimeSeconds = CachedEpochClock.this.source.currentTimeSeconds();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long currentTimeSeconds() {
+		return currentTimeSeconds;
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,27 @@
+package jp.tokyo.lascaux.sv4.time;
+
+/**
+ * <pre>
+ * 有効期限などの検証で使用する現在時刻を返すインターフェースです。
+ * 時刻はUTCのエポック秒で扱い、検証は整数の比較だけで行います
+ * テストでは固定の時刻を返す実装を設定してください
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public interface EpochClock {
+	/** システム時刻を使用するクロック */
+	EpochClock SYSTEM = new EpochClock() {
+		@Override
+		public long currentTimeSeconds() {
+			return System.currentTimeMillis() / 1000;
+		}
+	};
+
+	/**
+	 * 現在時刻をエポック秒で返します。
+	 *
+	 * @return 現在時刻（エポック秒）
+	 */
+	long currentTimeSeconds();
+}
@@ -0,0 +1,231 @@
+package jp.tokyo.lascaux.sv4.time;
+
+/**
+ * <pre>
+ * SignatureV4で使用する固定フォーマットの日時文字列を、UTCのエポック秒に変換するクラスです。
+ * SimpleDateFormatやCalendarを使用せず、文字列以外のオブジェクトを作成しません
+ * ・yyyyMMdd'T'HHmmss'Z'（X-Amz-Dateなど）
+ * ・yyyyMMdd（資格情報の要求日付）
+ * ・EEE, dd MMM yyyy HH:mm:ss GMT（RFC1123、dateヘッダー）
+ * 変換できない場合は{@link #INVALID}を返します
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public final class Timestamps {
+	/** 変換できなかったことを表す値 */
+	public static final long INVALID = Long.MIN_VALUE;
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul",
+			"Aug", "Sep", "Oct", "Nov", "Dec" };
+	private static final String[] DAYS_OF_WEEK = { "Mon", "Tue", "Wed", "Thu", "Fri", "Sat",
+			"Sun" };
+
+	private Timestamps() {
+	}
+
+	/**
+	 * yyyyMMdd'T'HHmmss'Z'形式の文字列をエポック秒に変換します。
+	 *
+	 * @param s 日時文字列
+	 * @return エポック秒、変換できない場合は{@link #INVALID}
+	 */
+	public static long parseIso8601Basic(String s) {
+		if (s == null || s.length() != 16 || s.charAt(8) != 'T' || s.charAt(15) != 'Z') {
+			return INVALID;
+		}
+		long days = parseDays(s, 0);
+		int hour = digits(s, 9, 2);
+		int minute = digits(s, 11, 2);
+		int second = digits(s, 13, 2);
+		if (days == INVALID || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0
+				|| second > 59) {
+			return INVALID;
+		}
+		return days * 86400 + hour * 3600 + minute * 60 + second;
+	}
+
+	/**
+	 * yyyyMMdd形式の文字列を、その日の0時のエポック秒に変換します。
+	 *
+	 * @param s 日付文字列
+	 * @return エポック秒、変換できない場合は{@link #INVALID}
+	 */
+	public static long parseBasicDate(String s) {
+		if (s == null || s.length() != 8) {
+			return INVALID;
+		}
+		long days = parseDays(s, 0);
+		return days == INVALID ? INVALID : days * 86400;
+	}
+
+	/**
+	 * <pre>
+	 * RFC1123形式（例：Mon, 09 Sep 2011 23:36:00 GMT）の文字列をエポック秒に変換します。
+	 * 曜日は名前だけを確認し、日付との整合性は確認しません
+	 * タイムゾーンはGMT、UTC、Zと、+hhmm/-hhmm形式に対応します
+	 * </pre>
+	 *
+	 * @param s 日時文字列
+	 * @return エポック秒、変換できない場合は{@link #INVALID}
+	 */
+	public static long parseRfc1123(String s) {
+		if (s == null || s.length() < 26 || s.charAt(3) != ',' || s.charAt(4) != ' '
+				|| indexOf(DAYS_OF_WEEK, s, 0) < 0) {
+			return INVALID;
+		}
+		//日は1桁も許容する
+		int i = 5;
+		int dayLength = s.charAt(6) == ' ' ? 1 : 2;
+		int day = digits(s, i, dayLength);
+		i += dayLength;
+		if (day < 1 || s.charAt(i) != ' ') {
+			return INVALID;
+		}
+		int month = indexOf(MONTHS, s, i + 1) + 1;
+		i += 4;
+		if (month < 1 || s.length() < i + 16 || s.charAt(i) != ' ') {
+			return INVALID;
+		}
+		int year = digits(s, i + 1, 4);
+		i += 5;
+		if (year < 0 || s.charAt(i) != ' ' || s.charAt(i + 3) != ':' || s.charAt(i + 6) != ':'
+				|| s.charAt(i + 9) != ' ') {
+			return INVALID;
+		}
+		int hour = digits(s, i + 1, 2);
+		int minute = digits(s, i + 4, 2);
+		int second = digits(s, i + 7, 2);
+		if (day > daysInMonth(year, month) || hour < 0 || hour > 23 || minute < 0 || minute > 59
+				|| second < 0 || second > 59) {
+			return INVALID;
+		}
+		int offsetSeconds = parseZone(s, i + 10);
+		if (offsetSeconds == Integer.MIN_VALUE) {
+			return INVALID;
+		}
+		return daysFromCivil(year, month, day) * 86400 + hour * 3600 + minute * 60 + second
+				- offsetSeconds;
+	}
+
+	/**
+	 * エポック秒をyyyyMMdd'T'HHmmss'Z'形式の文字列に変換します。
+	 *
+	 * @param epochSeconds エポック秒
+	 * @return 日時文字列
+	 */
+	public static String formatIso8601Basic(long epochSeconds) {
+		long days = Math.floorDiv(epochSeconds, 86400);
+		int secondsOfDay = (int) Math.floorMod(epochSeconds, 86400);
+		//daysFromCivilの逆変換
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+		char[] c = new char[16];
+		put(c, 0, year, 4);
+		put(c, 4, month, 2);
+		put(c, 6, day, 2);
+		c[8] = 'T';
+		put(c, 9, secondsOfDay / 3600, 2);
+		put(c, 11, secondsOfDay / 60 % 60, 2);
+		put(c, 13, secondsOfDay % 60, 2);
+		c[15] = 'Z';
+		return new String(c);
+	}
+
+	/**
+	 * 指定位置からのyyyyMMddを1970/01/01からの日数に変換します。
+	 */
+	private static long parseDays(String s, int offset) {
+		int year = digits(s, offset, 4);
+		int month = digits(s, offset + 4, 2);
+		int day = digits(s, offset + 6, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+			return INVALID;
+		}
+		return daysFromCivil(year, month, day);
+	}
+
+	/**
+	 * グレゴリオ暦の日付から1970/01/01からの日数を計算します。
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = Math.floorDiv(y, 400);
+		int yoe = y - era * 400;
+		int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return (long) era * 146097 + doe - 719468;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * タイムゾーンをUTCからの秒数に変換します。変換できない場合はInteger.MIN_VALUEを返します。
+	 */
+	private static int parseZone(String s, int offset) {
+		int length = s.length() - offset;
+		if ((length == 3 && (s.startsWith("GMT", offset) || s.startsWith("UTC", offset)))
+				|| (length == 1 && s.charAt(offset) == 'Z')) {
+			return 0;
+		}
+		if (length == 5 && (s.charAt(offset) == '+' || s.charAt(offset) == '-')) {
+			int hh = digits(s, offset + 1, 2);
+			int mm = digits(s, offset + 3, 2);
+			if (hh < 0 || mm < 0 || mm > 59) {
+				return Integer.MIN_VALUE;
+			}
+			int seconds = hh * 3600 + mm * 60;
+			return s.charAt(offset) == '-' ? -seconds : seconds;
+		}
+		return Integer.MIN_VALUE;
+	}
+
+	private static int indexOf(String[] names, String s, int offset) {
+		for (int i = 0; i < names.length; i++) {
+			if (s.startsWith(names[i], offset)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * 指定位置からの数字を整数に変換します。数字以外を含む場合は-1を返します。
+	 */
+	private static int digits(String s, int offset, int length) {
+		int value = 0;
+		for (int i = offset; i < offset + length; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static void put(char[] c, int offset, int value, int length) {
+		for (int i = offset + length - 1; i >= offset; i--) {
+			c[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package jp.tokyo.lascaux.sv4.util;
+
+/**
+ * <pre>
+ * SignatureV4の正規化で使用するパーセントエンコーディングを行うクラスです。
+ * 非予約文字（A-Z a-z 0-9 - . _ ~）以外はUTF-8のバイト毎に大文字の%XX形式に変換します
+ * 判定は静的なテーブルで行い、変換が不要な場合は文字列を作成しません
+ * {@see http://docs.aws.amazon.com/ja_jp/general/latest/gr/sigv4-create-canonical-request.html}
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public final class PercentEncoder {
+	private static final boolean[] UNRESERVED = new boolean[128];
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	static {
+		for (char c = '0'; c <= '9'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (char c = 'A'; c <= 'Z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (char c = 'a'; c <= 'z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		UNRESERVED['-'] = true;
+		UNRESERVED['.'] = true;
+		UNRESERVED['_'] = true;
+		UNRESERVED['~'] = true;
+	}
+
+	private PercentEncoder() {
+	}
+
+	public static boolean isUnreserved(int c) {
+		return c < 128 && c >= 0 && UNRESERVED[c];
+	}
+
+	/**
+	 * <pre>
+	 * デコード済みの文字列をエンコードします。
+	 * すべて非予約文字の場合は引数の文字列をそのまま返します
+	 * </pre>
+	 *
+	 * @param decoded デコード済みの文字列
+	 * @return エンコードされた文字列
+	 */
+	public static String encode(String decoded) {
+		int length = decoded.length();
+		int i = 0;
+		while (i < length && isUnreserved(decoded.charAt(i))) {
+			i++;
+		}
+		if (i == length) {
+			return decoded;
+		}
+		StringBuilder sb = new StringBuilder(length + 16);
+		sb.append(decoded, 0, i);
+		for (; i < length; i++) {
+			char c = decoded.charAt(i);
+			if (isUnreserved(c)) {
+				sb.append(c);
+			} else {
+				i = appendEncodedChar(sb, decoded, i, length);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * <pre>
+	 * 生のURI（パス、クエリーのキーや値）の指定範囲を正規化されたエンコード形式に変換します。
+	 * ・非予約文字はそのまま
+	 * ・%XXは、非予約文字を表す場合は文字に戻し、それ以外は大文字の16進数にそろえる
+	 * ・plusAsSpaceがtrueの場合、+は空白として%20にする
+	 * ・それ以外の文字はUTF-8でエンコードする（%の後が16進数2桁でない場合の%も含む）
+	 * 変換が不要な場合は部分文字列をそのまま返します
+	 * </pre>
+	 *
+	 * @param raw 生の文字列
+	 * @param start 開始位置
+	 * @param end 終了位置（この位置は含まない）
+	 * @param plusAsSpace +を空白として扱う場合はtrue
+	 * @return 正規化された文字列
+	 */
+	public static String normalize(String raw, int start, int end, boolean plusAsSpace) {
+		int i = start;
+		while (i < end && isUnreserved(raw.charAt(i))) {
+			i++;
+		}
+		if (i == end) {
+			return raw.substring(start, end);
+		}
+		StringBuilder sb = new StringBuilder(end - start + 16);
+		sb.append(raw, start, i);
+		appendNormalized(sb, raw, i, end, plusAsSpace);
+		return sb.toString();
+	}
+
+	/**
+	 * {@link #normalize(String, int, int, boolean)}と同じ変換を行い、StringBuilderに追加します。
+	 */
+	public static void appendNormalized(StringBuilder sb, String raw, int start, int end,
+			boolean plusAsSpace) {
+		for (int i = start; i < end; i++) {
+			char c = raw.charAt(i);
+			if (isUnreserved(c)) {
+				sb.append(c);
+			} else if (c == '%' && i + 2 < end && hexValue(raw.charAt(i + 1)) >= 0
+					&& hexValue(raw.charAt(i + 2)) >= 0) {
+				int b = hexValue(raw.charAt(i + 1)) << 4 | hexValue(raw.charAt(i + 2));
+				if (isUnreserved(b)) {
+					sb.append((char) b);
+				} else {
+					appendByte(sb, b);
+				}
+				i += 2;
+			} else if (c == '+' && plusAsSpace) {
+				sb.append("%20");
+			} else {
+				i = appendEncodedChar(sb, raw, i, end);
+			}
+		}
+	}
+
+	/**
+	 * 指定位置の文字をUTF-8でエンコードして追加し、サロゲートペアの場合は下位サロゲートの位置を返します。
+	 * 対になっていないサロゲートは?として扱います。
+	 */
+	private static int appendEncodedChar(StringBuilder sb, String s, int i, int end) {
+		char c = s.charAt(i);
+		int codePoint = c;
+		if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+			codePoint = Character.toCodePoint(c, s.charAt(++i));
+		} else if (Character.isSurrogate(c)) {
+			codePoint = '?';
+		}
+		if (codePoint < 0x80) {
+			appendByte(sb, codePoint);
+		} else if (codePoint < 0x800) {
+			appendByte(sb, 0xc0 | codePoint >> 6);
+			appendByte(sb, 0x80 | codePoint & 0x3f);
+		} else if (codePoint < 0x10000) {
+			appendByte(sb, 0xe0 | codePoint >> 12);
+			appendByte(sb, 0x80 | codePoint >> 6 & 0x3f);
+			appendByte(sb, 0x80 | codePoint & 0x3f);
+		} else {
+			appendByte(sb, 0xf0 | codePoint >> 18);
+			appendByte(sb, 0x80 | codePoint >> 12 & 0x3f);
+			appendByte(sb, 0x80 | codePoint >> 6 & 0x3f);
+			appendByte(sb, 0x80 | codePoint & 0x3f);
+		}
+		return i;
+	}
+
+	private static void appendByte(StringBuilder sb, int b) {
+		sb.append('%').append(HEX[b >> 4 & 0xf]).append(HEX[b & 0xf]);
+	}
+
+	private static int hexValue(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,93 @@
+package jp.tokyo.lascaux.sv4.util;
+
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * 生のクエリー文字列（HttpServletRequest#getQueryString()）から正規化されたクエリー文字列を作成するクラスです。
+ * コンテナによるデコードと再エンコードを行わず、正規化された形式と違う部分だけを変換します
+ * ・"&"で区切られた各ペアのキーと値を{@link PercentEncoder#normalize}で正規化する（+は空白とする）
+ * ・"="がないペアは値を空文字とする
+ * ・空のペアは無視する
+ * ・シグネチャーのパラメータは除外する
+ * ・エンコード後のキー、値の順で並べ替える
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public final class QueryStringCanonicalizer {
+
+	private QueryStringCanonicalizer() {
+	}
+
+	/**
+	 * 生のクエリー文字列を正規化します。対象となるペアがない場合はnullを返します。
+	 *
+	 * @param rawQuery 生のクエリー文字列
+	 * @param lowerSignatureParamName 除外するシグネチャーのパラメータ名（小文字）
+	 * @return 正規化されたクエリー文字列
+	 */
+	public static String canonicalize(String rawQuery, String lowerSignatureParamName) {
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return null;
+		}
+		int length = rawQuery.length();
+		int capacity = 8;
+		String[] keys = new String[capacity];
+		String[] values = new String[capacity];
+		int size = 0;
+		int start = 0;
+		while (start <= length) {
+			int end = rawQuery.indexOf('&', start);
+			if (end < 0) {
+				end = length;
+			}
+			if (end > start) {
+				int eq = rawQuery.indexOf('=', start);
+				int keyEnd = eq < 0 || eq > end ? end : eq;
+				String key = PercentEncoder.normalize(rawQuery, start, keyEnd, true);
+				if (!key.equalsIgnoreCase(lowerSignatureParamName)) {
+					String value = keyEnd == end ? "" : PercentEncoder.normalize(rawQuery,
+							keyEnd + 1, end, true);
+					if (size == capacity) {
+						capacity *= 2;
+						keys = Arrays.copyOf(keys, capacity);
+						values = Arrays.copyOf(values, capacity);
+					}
+					//キー、値の順で二分挿入する
+					int low = 0;
+					int high = size;
+					while (low < high) {
+						int mid = (low + high) >>> 1;
+						int c = keys[mid].compareTo(key);
+						if (c == 0) {
+							c = values[mid].compareTo(value);
+						}
+						if (c <= 0) {
+							low = mid + 1;
+						} else {
+							high = mid;
+						}
+					}
+					System.arraycopy(keys, low, keys, low + 1, size - low);
+					System.arraycopy(values, low, values, low + 1, size - low);
+					keys[low] = key;
+					values[low] = value;
+					size++;
+				}
+			}
+			start = end + 1;
+		}
+		if (size == 0) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(length + 16);
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append('&');
+			}
+			sb.append(keys[i]).append('=').append(values[i]);
+		}
+		return sb.toString();
+	}
+}
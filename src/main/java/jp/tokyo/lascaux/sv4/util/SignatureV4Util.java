@@ -1,14 +1,18 @@
 package jp.tokyo.lascaux.sv4.util;
 
-import java.net.URI;
-import java.net.URL;
-import java.util.BitSet;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-import org.apache.commons.codec.net.URLCodec;
 import org.apache.commons.lang.StringUtils;
 
+import jp.tokyo.lascaux.sv4.SignatureV4Params;
 import jp.tokyo.lascaux.sv4.SignatureV4Params.KeyValuesMap;
 import jp.tokyo.lascaux.sv4.entity.ParameterType;
 
@@ -19,6 +23,8 @@ import jp.tokyo.lascaux.sv4.entity.ParameterType;
  */
 public class SignatureV4Util {
 	public static final String LINE_SEPARATOR = "\n";
+	/** フォームのContent-Type */
+	public static final String FORM_URL_ENCODED = "application/x-www-form-urlencoded";
 
 	private SignatureV4Util() {
 	}
@@ -30,17 +36,39 @@ public class SignatureV4Util {
 	 * @return 正規化されたURI
 	 */
 	public static String normalizeUri(String originalUri) {
-		if (StringUtils.isEmpty(originalUri)) {
-			return "/";
-		}
-		try {
-			//仮のドメインを使用して変換だけ行う
-			URL url = new URI(String.format("http://localhost.com%s", originalUri)).normalize()
-					.toURL();
-			return url.getPath();
-		} catch (Exception e) {
-			throw new IllegalArgumentException();
+		return UriPathNormalizer.normalize(originalUri, UriPathNormalizer.Rule.GENERIC);
+	}
+
+	/**
+	 * 引数のURIから、指定されたルールで正規化されたURIを返します。
+	 *
+	 * @param originalUri 変換対象のURI
+	 * @param rule 正規化のルール
+	 * @return 正規化されたURI
+	 */
+	public static String normalizeUri(String originalUri, UriPathNormalizer.Rule rule) {
+		return UriPathNormalizer.normalize(originalUri, rule);
+	}
+
+	/**
+	 * <pre>
+	 * パラメータから正規化されたクエリー文字列を作成します。
+	 * パース時に生のクエリー文字列を保持している場合は{@link QueryStringCanonicalizer}で、
+	 * 保持していない場合はデコード済みのクエリーをエンコードして作成します
+	 * </pre>
+	 *
+	 * @param params SV4パラメータ
+	 * @param parameterType パラメータタイプ
+	 * @return 正規化されたクエリー文字列、クエリーがない場合はnull
+	 */
+	public static String createCanonicalQueries(SignatureV4Params params,
+			ParameterType parameterType) {
+		String rawQueryString = params.getRawQueryString();
+		if (rawQueryString != null) {
+			return QueryStringCanonicalizer.canonicalize(rawQueryString,
+					parameterType.getLowerSignatureParamName());
 		}
+		return createCanonicalQueries(params.getQueries(), parameterType);
 	}
 
 	/**
@@ -60,14 +88,6 @@ public class SignatureV4Util {
 		if (queryMap == null) {
 			return null;
 		}
-		BitSet bitset = new BitSet();
-		bitset.set(0x30, 0x3a);
-		bitset.set(0x41, 0x5b);
-		bitset.set(0x61, 0x7b);
-		bitset.set(0x2d, 0x2f);
-		bitset.set(0x5f, 0x60);
-		bitset.set(0x7e, 0x7f);
-		bitset.set(0x20, 0x21);
 		String lowerSignatureName = parameterType.getLowerSignatureParamName();
 		boolean b = false;
 		StringBuilder esb = new StringBuilder();
@@ -75,16 +95,13 @@ public class SignatureV4Util {
 			if (lowerSignatureName.equals(key.toLowerCase())) {
 				continue;
 			}
-			List<String> values = queryMap.getOriginalValues(key);
-			if (values != null) {
+			List<String> originalValues = queryMap.getOriginalValues(key);
+			if (originalValues != null) {
+				List<String> values = new ArrayList<>(originalValues);
 				Collections.sort(values);
 				for (String value : values) {
-					//Bitsetを指定しても半角スペースは強引に+に変換されてしまうので、ここで元に戻す。というかなんでそんな実装なんだバカなのか。Bitset指定した意味がないじゃないか。
-					String encodedKey = new String(URLCodec.encodeUrl(bitset, key.getBytes()));
-					encodedKey = encodedKey.replaceAll("\\+", "%20");
-					String encodedValue = new String(URLCodec.encodeUrl(bitset, value.getBytes()));
-					encodedValue = encodedValue.replaceAll("\\+", "%20");
-					esb.append(encodedKey).append("=").append(encodedValue).append("&");
+					esb.append(PercentEncoder.encode(key)).append("=")
+							.append(PercentEncoder.encode(value)).append("&");
 					b = true;
 				}
 			}
@@ -114,6 +131,121 @@ public class SignatureV4Util {
 		return headerValue;
 	}
 
+	/**
+	 * <pre>
+	 * 小文字の16進数文字列のシグネチャーをバイト配列にデコードします。
+	 * 長さが違う場合や16進数以外の文字を含む場合はnullを返します
+	 * </pre>
+	 *
+	 * @param signature シグネチャー文字列
+	 * @param length デコード後のバイト数
+	 * @return デコードされたバイト配列、あるいはnull
+	 */
+	public static byte[] decodeHexSignature(String signature, int length) {
+		if (signature == null || signature.length() != length * 2) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			int high = hexValue(signature.charAt(i * 2));
+			int low = hexValue(signature.charAt(i * 2 + 1));
+			if (high < 0 || low < 0) {
+				return null;
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	private static int hexValue(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		return -1;
+	}
+
+	/**
+	 * <pre>
+	 * 2つのバイト配列を、内容に関わらず同じ時間で比較します。
+	 * シグネチャーの比較でタイミング攻撃を防ぐために使用してください
+	 * 長さが違う場合はすぐにfalseを返します（長さは秘密ではないため）
+	 * </pre>
+	 *
+	 * @param a バイト配列
+	 * @param b バイト配列
+	 * @return 内容が同じ場合はtrue
+	 */
+	public static boolean constantTimeEquals(byte[] a, byte[] b) {
+		if (a.length != b.length) {
+			return false;
+		}
+		int result = 0;
+		for (int i = 0; i < a.length; i++) {
+			result |= a[i] ^ b[i];
+		}
+		return result == 0;
+	}
+
+	/**
+	 * <pre>
+	 * Content-Typeがフォーム（application/x-www-form-urlencoded）かどうかを返します。
+	 * フォームの場合、コンテナはgetParameterMap()でボディを読み込んでしまうので、パーサーは使用しません
+	 * </pre>
+	 *
+	 * @param contentType Content-Type
+	 * @return フォームの場合はtrue
+	 */
+	public static boolean isFormUrlEncoded(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		int end = contentType.indexOf(';');
+		String mediaType = (end < 0 ? contentType : contentType.substring(0, end)).trim();
+		return FORM_URL_ENCODED.equalsIgnoreCase(mediaType);
+	}
+
+	/**
+	 * <pre>
+	 * クエリー文字列やフォームのボディを、コンテナと同じようにデコードしてパラメータマップを作成します。
+	 * 同じキーの値は出現順に保持します
+	 * </pre>
+	 *
+	 * @param encoded クエリー文字列やフォームのボディ
+	 * @param charset 文字コード
+	 * @return パラメータマップ
+	 * @throws IllegalArgumentException エスケープのフォーマットが間違っている場合にスローされる例外
+	 */
+	public static Map<String, String[]> decodeUrlEncoded(String encoded, Charset charset) {
+		Map<String, String[]> map = new LinkedHashMap<>();
+		if (StringUtils.isEmpty(encoded)) {
+			return map;
+		}
+		try {
+			for (String pair : StringUtils.split(encoded, '&')) {
+				int index = pair.indexOf('=');
+				String key = URLDecoder.decode(index < 0 ? pair : pair.substring(0, index),
+						charset.name());
+				String value = index < 0 ? "" : URLDecoder.decode(pair.substring(index + 1),
+						charset.name());
+				String[] values = map.get(key);
+				if (values == null) {
+					map.put(key, new String[] { value });
+				} else {
+					String[] newValues = Arrays.copyOf(values, values.length + 1);
+					newValues[values.length] = value;
+					map.put(key, newValues);
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			//Charsetから取得した名前なのでないことはない
+			throw new RuntimeException(e);
+		}
+		return map;
+	}
+
 	//アルゴリズム抽出
 	//CanonicalRequest作成
 	//クエリの正規化
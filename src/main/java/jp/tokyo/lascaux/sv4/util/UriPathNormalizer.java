@@ -0,0 +1,123 @@
+package jp.tokyo.lascaux.sv4.util;
+
+/**
+ * <pre>
+ * 正規化されたURI（パス部分）を作成するクラスです。
+ * java.net.URIなどは使用せずに1回の走査で変換し、変換が不要な場合は引数の文字列をそのまま返します
+ * 各セグメントは{@link PercentEncoder#appendNormalized}で正規化します（+はそのまま%2Bになります）
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public final class UriPathNormalizer {
+	/**
+	 * パスの正規化のルールです。
+	 */
+	public enum Rule {
+		/** 連続したスラッシュを1つにまとめ、"."と".."を解決します */
+		GENERIC,
+		/** S3と同じく、スラッシュや"."と".."をそのまま残します */
+		S3;
+	}
+
+	private UriPathNormalizer() {
+	}
+
+	/**
+	 * 引数のパスを正規化します。空の場合は"/"を返します。
+	 *
+	 * @param rawPath 生のパス（デコードされていないもの）
+	 * @param rule 正規化のルール
+	 * @return 正規化されたパス
+	 */
+	public static String normalize(String rawPath, Rule rule) {
+		if (rawPath == null || rawPath.isEmpty()) {
+			return "/";
+		}
+		if (isCanonical(rawPath, rule)) {
+			return rawPath;
+		}
+		int length = rawPath.length();
+		StringBuilder sb = new StringBuilder(length + 16);
+		sb.append('/');
+		int i = rawPath.charAt(0) == '/' ? 1 : 0;
+		if (rule == Rule.S3) {
+			while (i <= length) {
+				int end = indexOfSlash(rawPath, i, length);
+				PercentEncoder.appendNormalized(sb, rawPath, i, end, false);
+				if (end < length) {
+					sb.append('/');
+				}
+				i = end + 1;
+			}
+			return sb.toString();
+		}
+		//出力は常に"/"で終わるようにしておき、最後のセグメントの後に"/"がない場合のみ取り除く
+		boolean trailingSlash = true;
+		while (i < length) {
+			if (rawPath.charAt(i) == '/') {
+				i++;
+				continue;
+			}
+			int end = indexOfSlash(rawPath, i, length);
+			int segmentLength = end - i;
+			if (segmentLength == 1 && rawPath.charAt(i) == '.') {
+				trailingSlash = true;
+			} else if (segmentLength == 2 && rawPath.charAt(i) == '.'
+					&& rawPath.charAt(i + 1) == '.') {
+				int outputLength = sb.length();
+				if (outputLength > 1) {
+					sb.setLength(sb.lastIndexOf("/", outputLength - 2) + 1);
+				}
+				trailingSlash = true;
+			} else {
+				PercentEncoder.appendNormalized(sb, rawPath, i, end, false);
+				sb.append('/');
+				trailingSlash = end < length;
+			}
+			i = end;
+		}
+		if (!trailingSlash && sb.length() > 1) {
+			sb.setLength(sb.length() - 1);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 非予約文字と"/"のみで構成され、ルールにより変換されるセグメントを含まないかを判定します。
+	 */
+	private static boolean isCanonical(String rawPath, Rule rule) {
+		int length = rawPath.length();
+		if (rawPath.charAt(0) != '/') {
+			return false;
+		}
+		int segmentStart = 1;
+		for (int i = 1; i <= length; i++) {
+			char c = i < length ? rawPath.charAt(i) : '/';
+			if (c == '/') {
+				if (rule == Rule.GENERIC) {
+					int segmentLength = i - segmentStart;
+					if (segmentLength == 0 && i < length) {
+						return false;
+					}
+					if (segmentLength == 1 && rawPath.charAt(segmentStart) == '.') {
+						return false;
+					}
+					if (segmentLength == 2 && rawPath.charAt(segmentStart) == '.'
+							&& rawPath.charAt(segmentStart + 1) == '.') {
+						return false;
+					}
+				}
+				segmentStart = i + 1;
+			} else if (!PercentEncoder.isUnreserved(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOfSlash(String s, int from, int length) {
+		int index = s.indexOf('/', from);
+		return index < 0 ? length : index;
+	}
+}
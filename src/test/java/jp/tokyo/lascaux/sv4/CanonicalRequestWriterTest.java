@@ -0,0 +1,63 @@
+package jp.tokyo.lascaux.sv4;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ParameterType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+import jp.tokyo.lascaux.sv4.entity.SignatureType;
+
+/**
+ * CanonicalRequestWriterが文字列で作成した場合と同じハッシュ値になることをテストします。
+ *
+ * @author Shunichi Todoroki
+ */
+public class CanonicalRequestWriterTest extends SignatureV4AbstractTest {
+	private static final String AUTHORIZATION = "AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host;p;zoo, Signature=00";
+
+	@Test
+	public void sameAsCanonicalRequestString() throws Exception {
+		TestHeaders headers = new TestHeaders();
+		headers.put("Authorization", AUTHORIZATION);
+		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
+		headers.put("Host", "host.foo.com");
+		headers.put("p", "  a   b  ");
+		headers.put("p", "\"quoted   value\"");
+		headers.put("p", "");
+		headers.put("zoo", "ሴ 𠮷 é \ud800");
+		verify("GET", "/foo/../%E1%88%B4", headers, "b=2&a=1&ሴ=bar", null);
+		verify("POST", "/", headers, null, "foo=bar");
+	}
+
+	/**
+	 * 1024バイトのバッファを超える長さでも同じになること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void longerThanBuffer() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			sb.append("ሴa ");
+		}
+		TestHeaders headers = new TestHeaders();
+		headers.put("Authorization", AUTHORIZATION);
+		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
+		headers.put("Host", "host.foo.com");
+		headers.put("zoo", sb.toString());
+		verify("GET", "/", headers, null, null);
+	}
+
+	private static void verify(String method, String uri, TestHeaders headers, String query,
+			String payload) throws Exception {
+		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
+				method, uri, headers, query, payload);
+		String expected = ReusableSHAAlgorithm.getInstance(HashType.SHA256).hashedString(
+				SignatureV4Validator.createCanonicalRequest(params, HashType.SHA256,
+						ParameterType.AMAZON));
+		assertEquals(expected, CanonicalRequestWriter.getInstance().hashCanonicalRequest(params,
+				HashType.SHA256, ParameterType.AMAZON));
+	}
+}
@@ -0,0 +1,82 @@
+package jp.tokyo.lascaux.sv4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params.KeyValuesMap;
+
+public class KeyValuesMapTest {
+
+	/**
+	 * 大文字小文字を区別しない検索で、同じキーの値が追加された順番で返ることを確認します。
+	 */
+	@Test
+	public void lowerKey() {
+		KeyValuesMap map = new KeyValuesMap();
+		map.put("ZOO", "zoobar");
+		map.put("Host", "host.foo.com");
+		map.put("zoo", "foobar");
+		map.put("x-amz-date", "20110909T233600Z");
+		map.put("Zoo", Arrays.asList("a", "b"));
+		assertEquals(6, map.size());
+		assertEquals("zoobar", map.getSingleByLowerKey("zoo"));
+		assertEquals("host.foo.com", map.getSingleByLowerKey("host"));
+		assertEquals("20110909T233600Z", map.getSingleByLowerKey("x-amz-date"));
+		assertNull(map.getSingleByLowerKey("date"));
+		assertEquals(Arrays.asList("zoobar", "foobar", "a", "b"), map.getValuesByLowerKey("zoo"));
+		assertEquals(Collections.emptyList(), map.getValuesByLowerKey("zo"));
+		assertEquals(Arrays.asList("zoobar", "foobar", "a", "b"), map.getLowerKeyMap().get("zoo"));
+	}
+
+	/**
+	 * 大文字小文字を区別する検索と、キーの順番を確認します。
+	 */
+	@Test
+	public void originalKey() {
+		KeyValuesMap map = new KeyValuesMap();
+		for (int i = 0; i < 40; i++) {
+			map.put("k" + (39 - i), String.valueOf(i));
+		}
+		map.put("K1", "upper");
+		map.put("k1", "again");
+		assertEquals("38", map.getSingle("k1"));
+		assertEquals("upper", map.getSingle("K1"));
+		assertNull(map.getSingle("k40"));
+		assertEquals(Arrays.asList("38", "again"), map.getOriginalValues("k1"));
+		assertEquals("K1", map.sortedOriginalKeyset().iterator().next());
+		assertEquals("38", map.getSingleValueOriginalMap().get("k1"));
+		assertEquals("38", map.getSingleValueLowerKeyMap().get("k1"));
+	}
+
+	/**
+	 * 互換性のためのマップと値のリストは変更できないこと
+	 */
+	@Test
+	public void unmodifiable() {
+		KeyValuesMap map = new KeyValuesMap();
+		map.put("Host", "host.foo.com");
+		try {
+			map.getOriginalMap().put("zoo", new ArrayList<String>());
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		try {
+			map.getLowerKeyMap().get("host").add("other");
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		try {
+			map.getOriginalValues("Host").clear();
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		assertEquals(Arrays.asList("host.foo.com"), map.getOriginalMap().get("Host"));
+	}
+}
@@ -1,25 +1,43 @@
 package jp.tokyo.lascaux.sv4;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 
 import jp.tokyo.lascaux.sv4.SignatureV4RequestParser.Headers;
+import jp.tokyo.lascaux.sv4.time.EpochClock;
 
 public abstract class SignatureV4AbstractTest {
+	/** aws4_testsuiteの日付（2011/09/09 23:36:00 UTC） */
+	protected static final long TEST_SUITE_TIME = 1315611360L;
 	protected static SignatureV4RequestParser PARSER;
+	protected static SignatureV4RequestParser RAW_QUERY_PARSER;
 
 	@BeforeClass
 	public static void before() throws Exception {
 		PARSER = new SignatureV4RequestParser();
+		RAW_QUERY_PARSER = new SignatureV4RequestParser(ParseOption.RAW_QUERY_STRING);
+		setClock(TEST_SUITE_TIME);
 	}
 
 	@Before
@@ -32,6 +50,128 @@ public abstract class SignatureV4AbstractTest {
 
 	@AfterClass
 	public static void after() throws Exception {
+		SignatureV4Validator.setClock(EpochClock.SYSTEM);
+	}
+
+	/**
+	 * 検証で使用する時計を固定の時刻にします。
+	 *
+	 * @param epochSeconds 時刻（エポック秒）
+	 */
+	protected static void setClock(final long epochSeconds) {
+		SignatureV4Validator.setClock(new EpochClock() {
+			@Override
+			public long currentTimeSeconds() {
+				return epochSeconds;
+			}
+		});
+	}
+
+	/**
+	 * <pre>
+	 * テスト用のHttpServletRequestを作成します。
+	 * ヘッダー名は実際のコンテナと同じく大文字小文字を区別せずに検索します
+	 * パーサーが使用するメソッド以外はUnsupportedOperationExceptionをスローします
+	 * </pre>
+	 *
+	 * @param method メソッド
+	 * @param requestUri リクエストURI
+	 * @param queryString クエリー文字列
+	 * @param headers ヘッダー
+	 * @param body ボディ
+	 * @return HttpServletRequest
+	 */
+	protected static HttpServletRequest createRequest(final String method,
+			final String requestUri, final String queryString, final TestHeaders headers,
+			final byte[] body) {
+		final ServletInputStream in = createServletInputStream(body == null ? new byte[0] : body);
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				SignatureV4AbstractTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+						switch (m.getName()) {
+						case "getMethod":
+							return method;
+						case "getRequestURI":
+							return requestUri;
+						case "getQueryString":
+							return queryString;
+						case "getHeaderNames":
+							return headers.getHeaderNames();
+						case "getHeader":
+							return headers.getHeaderIgnoreCase((String) args[0]);
+						case "getHeaders":
+							return headers.getHeadersIgnoreCase((String) args[0]);
+						case "getContentType":
+							return headers.getHeaderIgnoreCase("content-type");
+						case "getContentLength":
+							return body == null ? 0 : body.length;
+						case "getCharacterEncoding":
+							return null;
+						case "getInputStream":
+							return in;
+						case "getParameterMap":
+							return createParameterMap(queryString);
+						default:
+							throw new UnsupportedOperationException(m.getName());
+						}
+					}
+				});
+	}
+
+	/**
+	 * コンテナと同じようにクエリー文字列をデコードしてパラメータマップを作成します。
+	 */
+	private static Map<String, String[]> createParameterMap(String queryString)
+			throws UnsupportedEncodingException {
+		Map<String, String[]> map = new HashMap<>();
+		if (queryString == null || queryString.isEmpty()) {
+			return map;
+		}
+		for (String query : queryString.split("&")) {
+			int index = query.indexOf('=');
+			String key = URLDecoder.decode(index < 0 ? query : query.substring(0, index), "UTF-8");
+			String value = index < 0 ? "" : URLDecoder.decode(query.substring(index + 1), "UTF-8");
+			String[] values = map.get(key);
+			if (values == null) {
+				map.put(key, new String[] { value });
+			} else {
+				String[] newValues = Arrays.copyOf(values, values.length + 1);
+				newValues[values.length] = value;
+				map.put(key, newValues);
+			}
+		}
+		return map;
+	}
+
+	protected static ServletInputStream createServletInputStream(byte[] bytes) {
+		final ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+		return new ServletInputStream() {
+			@Override
+			public int read() throws IOException {
+				return bais.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return bais.read(b, off, len);
+			}
+
+			@Override
+			public boolean isFinished() {
+				return bais.available() == 0;
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setReadListener(ReadListener readListener) {
+			}
+		};
 	}
 
 	protected static class TestHeaders implements Headers {
@@ -60,6 +200,10 @@ public abstract class SignatureV4AbstractTest {
 			}
 		}
 
+		protected void remove(String key) {
+			headers.remove(key);
+		}
+
 		@Override
 		public Enumeration<String> getHeaderNames() {
 			return Collections.enumeration(headers.keySet());
@@ -78,5 +222,25 @@ public abstract class SignatureV4AbstractTest {
 			List<String> list = obj instanceof List ? (List) obj : null;
 			return Collections.enumeration(list);
 		}
+
+		protected String getHeaderIgnoreCase(String key) {
+			Enumeration<String> values = getHeadersIgnoreCase(key);
+			return values.hasMoreElements() ? values.nextElement() : null;
+		}
+
+		@SuppressWarnings("unchecked")
+		protected Enumeration<String> getHeadersIgnoreCase(String key) {
+			List<String> values = new ArrayList<>();
+			for (Map.Entry<String, Object> e : headers.entrySet()) {
+				if (e.getKey().equalsIgnoreCase(key)) {
+					if (e.getValue() instanceof List) {
+						values.addAll((List<String>) e.getValue());
+					} else {
+						values.add((String) e.getValue());
+					}
+				}
+			}
+			return Collections.enumeration(values);
+		}
 	}
 }
@@ -1,5 +1,8 @@
 package jp.tokyo.lascaux.sv4;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -7,6 +10,7 @@ import java.io.InputStream;
 
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
 
 import org.junit.Test;
 
@@ -51,6 +55,26 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 		};
 	}
 
+	/**
+	 * <pre>
+	 * クエリー付きのテストスイートのリクエストを、getParameterMap()のデコード済みの値から正規化する場合と、
+	 * 生のクエリー文字列から正規化する場合（{@link ParseOption#RAW_QUERY_STRING}）の両方で検証します。
+	 * </pre>
+	 */
+	private static void validateQuery(String method, TestHeaders headers, String queryString)
+			throws Exception {
+		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
+				method, "/", headers, queryString, null);
+		assertNull(params.getRawQueryString());
+		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
+				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		params = RAW_QUERY_PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE, method,
+				"/", headers, queryString, null);
+		assertEquals(queryString, params.getRawQueryString());
+		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
+				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+	}
+
 	/**
 	 * <pre>
 	 * AmazonのSignatureVersion4の仕様解説ページにあるサンプルを
@@ -76,6 +100,58 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
 	}
 
+	/**
+	 * {@link #amazonSample()}と同じリクエストを、ボディをストリームのままハッシュ化してテストします。
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void amazonSampleStreamPayload() throws Exception {
+		TestHeaders headers = new TestHeaders();
+		headers.put(
+				"Authorization",
+				"AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request,SignedHeaders=content-type;host;x-amz-date,Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c");
+		headers.put("Host", "iam.amazonaws.com");
+		headers.put("Content-type", "application/x-www-form-urlencoded; charset=utf-8");
+		headers.put("X-Amz-Date", "20110909T233600Z");
+		HttpServletRequest request = createRequest("POST", "/", null, headers,
+				"Action=ListUsers&Version=2010-05-08".getBytes("UTF-8"));
+		SignatureV4Params params = new SignatureV4RequestParser(ParseOption.STREAM_PAYLOAD).parse(
+				SignatureType.AMAZON, request);
+		assertNull(params.getPayload());
+		assertEquals("b6359072c78d70ebee1e81adcbab4f01bf2c23245fa365ef83fe8f1f955085e2",
+				params.getPayloadHash());
+		SignatureV4Validator.validate(SignatureType.AMAZON, params,
+				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+	}
+
+	/**
+	 * 署名対象のヘッダーのみを取得するオプションで、署名対象外のヘッダーを取得せずに検証できること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void amazonSampleSignedHeadersOnly() throws Exception {
+		TestHeaders headers = new TestHeaders();
+		headers.put(
+				"Authorization",
+				"AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request,SignedHeaders=content-type;host;x-amz-date,Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c");
+		headers.put("Host", "iam.amazonaws.com");
+		headers.put("Content-type", "application/x-www-form-urlencoded; charset=utf-8");
+		headers.put("X-Amz-Date", "20110909T233600Z");
+		headers.put("Cookie", "session=0123456789");
+		headers.put("User-Agent", "test");
+		HttpServletRequest request = createRequest("POST", "/", null, headers,
+				"Action=ListUsers&Version=2010-05-08".getBytes("UTF-8"));
+		SignatureV4Params params = new SignatureV4RequestParser(ParseOption.SIGNED_HEADERS_ONLY)
+				.parse(SignatureType.AMAZON, request);
+		assertNull(params.getHeaders().getSingleByLowerKey("cookie"));
+		assertNull(params.getHeaders().getSingleByLowerKey("user-agent"));
+		assertEquals("iam.amazonaws.com", params.getHeaders().getSingleByLowerKey("host"));
+		SignatureV4Validator.validate(SignatureType.AMAZON, params,
+				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+	}
+
 	/**
 	 * ヘッダーキーに重複したキーのものがあった場合
 	 *
@@ -327,10 +403,7 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=56c054473fd260c13e4e7393eb203662195f5d4a1fada5314b8b52b23f985e9f");
 		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
 		headers.put("Host", "host.foo.com");
-		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
-				"GET", "/", headers, "foo=bar", null);
-		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
-				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		validateQuery("GET", headers, "foo=bar");
 	}
 
 	/**
@@ -346,10 +419,7 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=be7148d34ebccdc6423b19085378aa0bee970bdc61d144bd1a8c48c33079ab09");
 		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
 		headers.put("Host", "host.foo.com");
-		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
-				"GET", "/", headers, "foo=Zoo&foo=aha", null);
-		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
-				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		validateQuery("GET", headers, "foo=Zoo&foo=aha");
 	}
 
 	/**
@@ -365,10 +435,7 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=0dc122f3b28b831ab48ba65cb47300de53fbe91b577fe113edac383730254a3b");
 		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
 		headers.put("Host", "host.foo.com");
-		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
-				"GET", "/", headers, "a=foo&b=foo", null);
-		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
-				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		validateQuery("GET", headers, "a=foo&b=foo");
 	}
 
 	/**
@@ -384,8 +451,26 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=feb926e49e382bec75c9d7dcb2a1b6dc8aa50ca43c25d2bc51143768c0875acc");
 		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
 		headers.put("Host", "host.foo.com");
-		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
-				"GET", "/", headers, "foo=b&foo=a", null);
+		validateQuery("GET", headers, "foo=b&foo=a");
+	}
+
+	/**
+	 * URLが「/?foo=b&foo=a」で、生のクエリー文字列から正規化する場合
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void getVanillaQueryOrderValueRawQuery() throws Exception {
+		TestHeaders headers = new TestHeaders();
+		headers.put(
+				"Authorization",
+				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=feb926e49e382bec75c9d7dcb2a1b6dc8aa50ca43c25d2bc51143768c0875acc");
+		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
+		headers.put("Host", "host.foo.com");
+		HttpServletRequest request = createRequest("GET", "/", "foo=b&foo=a", headers, null);
+		SignatureV4Params params = new SignatureV4RequestParser(ParseOption.RAW_QUERY_STRING)
+				.parse(SignatureType.AMAZON_TEST_SUITE, request);
+		assertEquals("foo=b&foo=a", params.getRawQueryString());
 		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
 				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
 	}
@@ -403,16 +488,10 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=f1498ddb4d6dae767d97c466fb92f1b59a2c71ca29ac954692663f9db03426fb");
 		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
 		headers.put("Host", "host.foo.com");
-		SignatureV4Params params = PARSER
-				.createSignatureV4Params(
-						SignatureType.AMAZON_TEST_SUITE,
-						"GET",
-						"/",
-						headers,
-						"-._~0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz=-._~0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz",
-						null);
-		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
-				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		validateQuery(
+				"GET",
+				headers,
+				"-._~0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz=-._~0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz");
 	}
 
 	/**
@@ -447,10 +526,7 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=6fb359e9a05394cc7074e0feb42573a2601abc0c869a953e8c5c12e4e01f1a8c");
 		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
 		headers.put("Host", "host.foo.com");
-		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
-				"GET", "/", headers, "ሴ=bar", null);
-		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
-				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		validateQuery("GET", headers, "ሴ=bar");
 	}
 
 	/**
@@ -549,10 +625,7 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=b6e3b79003ce0743a491606ba1035a804593b0efb1e20a11cba83f8c25a57a92");
 		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
 		headers.put("Host", "host.foo.com");
-		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
-				"POST", "/", headers, "foo=bar", null);
-		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
-				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		validateQuery("POST", headers, "foo=bar");
 	}
 
 	/**
@@ -618,10 +691,7 @@ public class SignatureV4AmazonTest extends SignatureV4AbstractTest {
 				" AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature=b6e3b79003ce0743a491606ba1035a804593b0efb1e20a11cba83f8c25a57a92");
 		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
 		headers.put("Host", "host.foo.com");
-		SignatureV4Params params = PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE,
-				"POST", "/", headers, "foo=bar", null);
-		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params,
-				"wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		validateQuery("POST", headers, "foo=bar");
 	}
 
 	/**
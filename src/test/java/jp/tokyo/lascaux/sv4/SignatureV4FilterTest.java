@@ -0,0 +1,567 @@
+package jp.tokyo.lascaux.sv4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params.Credential;
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+import jp.tokyo.lascaux.sv4.entity.SignatureType;
+import jp.tokyo.lascaux.sv4.payload.StandardPayloadHashStrategy;
+import jp.tokyo.lascaux.sv4.replay.ReplayDetector;
+import jp.tokyo.lascaux.sv4.secret.InMemorySecretProvider;
+
+/**
+ * SignatureV4Filterの非同期の読み込みと検証をテストするテストケースです。
+ *
+ * @author Shunichi Todoroki
+ */
+public class SignatureV4FilterTest extends SignatureV4AbstractTest {
+	private static final String SECRET = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+	private static final String BODY = "Action=ListUsers&Version=2010-05-08";
+	private static final String SCOPE = "20110909/us-east-1/iam/aws4_request";
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * ボディが届いた分だけ読み込まれ、検証後に再ディスパッチされたリクエストでボディを再度読み込めること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void asyncVerified() throws Exception {
+		FakeExchange exchange = new FakeExchange(BODY.getBytes("UTF-8"), true);
+		SignatureV4Filter filter = createFilter();
+		RecordingChain chain = new RecordingChain();
+		filter.doFilter(exchange.request, exchange.response, chain);
+		assertTrue(exchange.asyncStarted);
+		exchange.feed(0, 10);
+		exchange.feed(10, BODY.length());
+		assertFalse(exchange.finished.await(0, TimeUnit.MILLISECONDS));
+		exchange.finish();
+		assertTrue(exchange.finished.await(5, TimeUnit.SECONDS));
+		assertTrue(exchange.dispatched);
+		assertNull(chain.request);
+		//コンテナによる再ディスパッチ
+		exchange.dispatcherType = DispatcherType.ASYNC;
+		filter.doFilter(exchange.request, exchange.response, chain);
+		assertTrue(chain.request instanceof VerifiedBodyRequestWrapper);
+		assertEquals(BODY, chain.body);
+		assertEquals(BODY, chain.reread);
+		assertEquals("ListUsers", chain.request.getParameter("Action"));
+		assertTrue(((ValidationResult) exchange.attributes.get(SignatureV4Filter.RESULT_ATTRIBUTE))
+				.isValid());
+		assertEquals(0, exchange.status);
+	}
+
+	/**
+	 * ボディが署名と一致しない場合は、再ディスパッチせずにエラーを返すこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void asyncRejected() throws Exception {
+		FakeExchange exchange = new FakeExchange("Action=DeleteUsers&Version=2010-05-08"
+				.getBytes("UTF-8"), true);
+		RecordingChain chain = new RecordingChain();
+		createFilter().doFilter(exchange.request, exchange.response, chain);
+		exchange.feed(0, exchange.body.length);
+		exchange.finish();
+		assertTrue(exchange.finished.await(5, TimeUnit.SECONDS));
+		assertFalse(exchange.dispatched);
+		assertNull(chain.request);
+		assertEquals(HttpServletResponse.SC_FORBIDDEN, exchange.status);
+		assertEquals(ErrorType.WRONG_SIGNATURE, ((ValidationResult) exchange.attributes
+				.get(SignatureV4Filter.RESULT_ATTRIBUTE)).getErrorType());
+	}
+
+	/**
+	 * 非同期処理に対応していないリクエストは、呼び出したスレッドで検証して後続に渡すこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void blocking() throws Exception {
+		FakeExchange exchange = new FakeExchange(BODY.getBytes("UTF-8"), false);
+		exchange.feed(0, BODY.length());
+		exchange.finish();
+		RecordingChain chain = new RecordingChain();
+		createFilter().doFilter(exchange.request, exchange.response, chain);
+		assertFalse(exchange.asyncStarted);
+		assertEquals(BODY, chain.body);
+		assertEquals(BODY, chain.reread);
+	}
+
+	/**
+	 * <pre>
+	 * "UNSIGNED-PAYLOAD"の場合は、ボディを読み込まずにエグゼキューターで検証して、
+	 * 再ディスパッチされたリクエストで元のリクエストを後続に渡すこと
+	 * ボディは署名の対象ではないので、署名時と異なるボディでも成功する
+	 * </pre>
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void unsignedPayload() throws Exception {
+		TestHeaders headers = new TestHeaders();
+		headers.put("Host", "iam.amazonaws.com");
+		headers.put("X-Amz-Date", "20110909T233600Z");
+		headers.put("X-Amz-Content-Sha256", StandardPayloadHashStrategy.UNSIGNED_PAYLOAD);
+		byte[] body = "unsigned".getBytes("UTF-8");
+		sign("PUT", "/unsigned", headers, "host;x-amz-content-sha256;x-amz-date");
+		FakeExchange exchange = new FakeExchange("PUT", "/unsigned", headers, body, true);
+		exchange.feed(0, body.length);
+		exchange.finish();
+		RecordingChain chain = new RecordingChain();
+		final AtomicInteger executed = new AtomicInteger();
+		SignatureV4Filter filter = createFilter(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				executed.incrementAndGet();
+				command.run();
+			}
+		});
+		filter.doFilter(exchange.request, exchange.response, chain);
+		assertTrue(exchange.asyncStarted);
+		assertTrue(exchange.finished.await(5, TimeUnit.SECONDS));
+		assertTrue(exchange.dispatched);
+		assertTrue(executed.get() > 0);
+		assertNull(chain.request);
+		exchange.dispatcherType = DispatcherType.ASYNC;
+		filter.doFilter(exchange.request, exchange.response, chain);
+		assertTrue(chain.request == exchange.request);
+		assertEquals("unsigned", chain.body);
+		assertTrue(((ValidationResult) exchange.attributes.get(SignatureV4Filter.RESULT_ATTRIBUTE))
+				.isValid());
+	}
+
+	/**
+	 * <pre>
+	 * aws-chunked形式の場合は、チャンクのシグネチャーを検証しながらデコードしたボディを後続に渡すこと
+	 * リプレイ検出を設定していても、リクエストの検証は1回だけなので再送とはならないこと
+	 * </pre>
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void chunked() throws Exception {
+		ReplayDetector detector = new ReplayDetector(900, 60, 1000);
+		SignatureV4Validator.setReplayStore(detector);
+		try {
+			FakeExchange exchange = createChunkedExchange(false, true);
+			SignatureV4Filter filter = createFilter();
+			RecordingChain chain = new RecordingChain();
+			filter.doFilter(exchange.request, exchange.response, chain);
+			assertTrue(exchange.asyncStarted);
+			assertTrue(exchange.finished.await(5, TimeUnit.SECONDS));
+			assertTrue(exchange.dispatched);
+			exchange.dispatcherType = DispatcherType.ASYNC;
+			filter.doFilter(exchange.request, exchange.response, chain);
+			assertEquals(0, exchange.status);
+			assertEquals(BODY + BODY, chain.body);
+			assertEquals(BODY.length() * 2, chain.request.getContentLength());
+			assertTrue(((ValidationResult) exchange.attributes
+					.get(SignatureV4Filter.RESULT_ATTRIBUTE)).isValid());
+			assertEquals(1, detector.getRecordedCount());
+		} finally {
+			SignatureV4Validator.setReplayStore(null);
+		}
+	}
+
+	/**
+	 * 非同期処理に対応していないリクエストのaws-chunked形式は、呼び出したスレッドで検証して後続に渡すこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void chunkedBlocking() throws Exception {
+		FakeExchange exchange = createChunkedExchange(false, false);
+		RecordingChain chain = new RecordingChain();
+		createFilter().doFilter(exchange.request, exchange.response, chain);
+		assertFalse(exchange.asyncStarted);
+		assertEquals(0, exchange.status);
+		assertEquals(BODY + BODY, chain.body);
+	}
+
+	/**
+	 * チャンクのデータが改ざんされている場合は、後続の読み込みで例外となること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void chunkedTampered() throws Exception {
+		FakeExchange exchange = createChunkedExchange(true, true);
+		SignatureV4Filter filter = createFilter();
+		filter.doFilter(exchange.request, exchange.response, new RecordingChain());
+		assertTrue(exchange.finished.await(5, TimeUnit.SECONDS));
+		exchange.dispatcherType = DispatcherType.ASYNC;
+		try {
+			filter.doFilter(exchange.request, exchange.response, new RecordingChain());
+			fail();
+		} catch (IOException e) {
+			assertEquals(ErrorType.WRONG_SIGNATURE,
+					((SignatureV4Exception) e.getCause()).getErrorType());
+		}
+	}
+
+	/**
+	 * Content-Lengthが最大サイズを超える場合は、ボディを読み込まずに413を返すこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void payloadTooLarge() throws Exception {
+		FakeExchange exchange = new FakeExchange(BODY.getBytes("UTF-8"), true);
+		exchange.contentLength = 10 * 1024 * 1024 + 1;
+		RecordingChain chain = new RecordingChain();
+		createFilter().doFilter(exchange.request, exchange.response, chain);
+		assertFalse(exchange.asyncStarted);
+		assertNull(chain.request);
+		assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exchange.status);
+		assertEquals(ErrorType.PAYLOAD_TOO_LARGE, ((ValidationResult) exchange.attributes
+				.get(SignatureV4Filter.RESULT_ATTRIBUTE)).getErrorType());
+	}
+
+	/**
+	 * ボディが届く前にタイムアウトした場合は408を返し、後から届いたボディは無視すること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void timeout() throws Exception {
+		FakeExchange exchange = new FakeExchange(BODY.getBytes("UTF-8"), true);
+		RecordingChain chain = new RecordingChain();
+		createFilter().doFilter(exchange.request, exchange.response, chain);
+		exchange.feed(0, 10);
+		assertEquals(1, exchange.listeners.size());
+		exchange.listeners.get(0).onTimeout(null);
+		assertTrue(exchange.finished.await(0, TimeUnit.MILLISECONDS));
+		assertEquals(HttpServletResponse.SC_REQUEST_TIMEOUT, exchange.status);
+		exchange.feed(10, BODY.length());
+		exchange.finish();
+		assertFalse(exchange.dispatched);
+		assertNull(exchange.attributes.get(SignatureV4Filter.RESULT_ATTRIBUTE));
+		exchange.listeners.get(0).onComplete(null);
+	}
+
+	private static SignatureV4Filter createFilter() throws Exception {
+		return createFilter(DIRECT);
+	}
+
+	private static SignatureV4Filter createFilter(Executor executor) throws Exception {
+		InMemorySecretProvider provider = new InMemorySecretProvider();
+		provider.put("AKIDEXAMPLE", SECRET);
+		SignatureV4Filter filter = new SignatureV4Filter(SignatureType.AMAZON, provider, executor);
+		filter.init(null);
+		return filter;
+	}
+
+	/**
+	 * <pre>
+	 * BODYを2つのチャンクに分けたaws-chunked形式のリクエストを作成します。
+	 * tamperedがtrueの場合は、署名後に最初のチャンクのデータを書き換えます
+	 * </pre>
+	 */
+	private static FakeExchange createChunkedExchange(boolean tampered, boolean asyncSupported)
+			throws Exception {
+		TestHeaders headers = new TestHeaders();
+		headers.put("Host", "iam.amazonaws.com");
+		headers.put("Content-Encoding", "aws-chunked");
+		headers.put("X-Amz-Content-Sha256", "STREAMING-AWS4-HMAC-SHA256-PAYLOAD");
+		headers.put("X-Amz-Date", "20110909T233600Z");
+		headers.put("X-Amz-Decoded-Content-Length", String.valueOf(BODY.length() * 2));
+		String seedSignature = sign("PUT", "/chunked", headers,
+				"content-encoding;host;x-amz-content-sha256;x-amz-date;x-amz-decoded-content-length");
+		ReusableSHAAlgorithm sha = ReusableSHAAlgorithm.getInstance(HashType.SHA256);
+		byte[] signingKey = SignatureV4Validator.createSigningKey(SignatureType.AMAZON, sha,
+				new Credential("AKIDEXAMPLE", "20110909", "us-east-1", "iam", "aws4_request"),
+				SECRET);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		String previous = seedSignature;
+		for (String chunk : new String[] { BODY, BODY, "" }) {
+			String stringToSign = "AWS4-HMAC-SHA256-PAYLOAD\n20110909T233600Z\n" + SCOPE + "\n"
+					+ previous + "\n" + HashType.SHA256.getEmptyPayloadHash() + "\n"
+					+ sha.hashedString(chunk);
+			previous = new String(Hex.encodeHex(sha.hashHmac(stringToSign, signingKey)));
+			out.write((Integer.toHexString(chunk.length()) + ";chunk-signature=" + previous
+					+ "\r\n" + (tampered && chunk.length() > 0 ? chunk.replace("List", "Drop")
+					: chunk) + "\r\n").getBytes("UTF-8"));
+			tampered = false;
+		}
+		byte[] body = out.toByteArray();
+		FakeExchange exchange = new FakeExchange("PUT", "/chunked", headers, body, asyncSupported);
+		exchange.feed(0, body.length);
+		exchange.finish();
+		return exchange;
+	}
+
+	/**
+	 * <pre>
+	 * ヘッダーにAuthorizationヘッダーを追加して、テスト用のリクエストに署名します。
+	 * ペイロードのハッシュ値は"X-Amz-Content-Sha256"ヘッダーの値を使用します
+	 * </pre>
+	 *
+	 * @return シグネチャー
+	 */
+	private static String sign(String method, String requestUri, TestHeaders headers,
+			String signedHeaders) throws Exception {
+		String prefix = "AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/" + SCOPE + ",SignedHeaders="
+				+ signedHeaders + ",Signature=";
+		headers.put("Authorization", prefix + "00");
+		SignatureV4Params params = new SignatureV4RequestParser(StandardPayloadHashStrategy.DECLARED)
+				.parse(SignatureType.AMAZON, new FakeExchange(method, requestUri, headers,
+						new byte[0], false).request);
+		ReusableSHAAlgorithm sha = ReusableSHAAlgorithm.getInstance(HashType.SHA256);
+		String stringToSign = SignatureV4Validator.createStringToSign(SignatureV4Validator
+				.getProfile(SignatureType.AMAZON), params, sha.hashedString(SignatureV4Validator
+				.createCanonicalRequest(params, HashType.SHA256, SignatureType.AMAZON
+						.getParameterType())));
+		String signature = new String(Hex.encodeHex(sha.hashHmac(stringToSign, SignatureV4Validator
+				.createSigningKey(SignatureType.AMAZON, sha, params.getCredential(), SECRET))));
+		headers.remove("Authorization");
+		headers.put("Authorization", prefix + signature);
+		return signature;
+	}
+
+	/**
+	 * 後続に渡されたリクエストと、そのボディを2回読み込んだ結果を記録します。
+	 */
+	private static class RecordingChain implements FilterChain {
+		private ServletRequest request;
+		private String body;
+		private String reread;
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+			this.request = request;
+			this.body = IOUtils.toString(request.getInputStream(), "UTF-8");
+			//元のボディを再度読み込めるのは、検証時に読み込んだボディを保持している場合のみ
+			if (request instanceof VerifiedBodyRequestWrapper) {
+				this.reread = IOUtils.toString(request.getReader());
+			}
+		}
+	}
+
+	/**
+	 * <pre>
+	 * テスト用のリクエスト、レスポンス、非同期コンテキストの組です。
+	 * ボディはfeed()で届いた分だけ読み込めるようになります
+	 * </pre>
+	 */
+	private static class FakeExchange {
+		private final byte[] body;
+		private final TestHeaders headers;
+		private final List<AsyncListener> listeners = new ArrayList<>();
+		private final Map<String, Object> attributes = new HashMap<>();
+		private final ByteArrayOutputStream arrived = new ByteArrayOutputStream();
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private final HttpServletRequest request;
+		private final HttpServletResponse response;
+		private final ServletInputStream in;
+		private int position;
+		private boolean allArrived;
+		private ReadListener listener;
+		private boolean asyncStarted;
+		private boolean dispatched;
+		private DispatcherType dispatcherType = DispatcherType.REQUEST;
+		private int status;
+		private int contentLength;
+
+		/**
+		 * IAMのフォームのサンプルのリクエストを作成します。
+		 */
+		private FakeExchange(byte[] body, boolean asyncSupported) {
+			this("POST", "/", createFormHeaders(), body, asyncSupported);
+		}
+
+		private FakeExchange(final String method, final String requestUri, TestHeaders headers,
+				byte[] body, final boolean asyncSupported) {
+			this.body = body;
+			this.headers = headers;
+			this.contentLength = body.length;
+			this.in = new ServletInputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) {
+					byte[] bytes = arrived.toByteArray();
+					if (position == bytes.length) {
+						return allArrived ? -1 : 0;
+					}
+					int n = Math.min(len, bytes.length - position);
+					System.arraycopy(bytes, position, b, off, n);
+					position += n;
+					return n;
+				}
+
+				@Override
+				public boolean isFinished() {
+					return allArrived && position == arrived.size();
+				}
+
+				@Override
+				public boolean isReady() {
+					return position < arrived.size() || allArrived;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					listener = readListener;
+				}
+			};
+			final AsyncContext async = (AsyncContext) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { AsyncContext.class },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method m, Object[] args) {
+							switch (m.getName()) {
+							case "addListener":
+								listeners.add((AsyncListener) args[0]);
+								return null;
+							case "dispatch":
+								dispatched = true;
+								finished.countDown();
+								return null;
+							case "complete":
+								finished.countDown();
+								return null;
+							default:
+								return null;
+							}
+						}
+					});
+			this.request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method m, Object[] args) {
+							switch (m.getName()) {
+							case "getMethod":
+								return method;
+							case "getRequestURI":
+								return requestUri;
+							case "getQueryString":
+								return null;
+							case "getParameterMap":
+								return new HashMap<String, String[]>();
+							case "getHeaderNames":
+								return headers.getHeaderNames();
+							case "getHeader":
+								return headers.getHeaderIgnoreCase((String) args[0]);
+							case "getHeaders":
+								return headers.getHeadersIgnoreCase((String) args[0]);
+							case "getContentType":
+								return headers.getHeaderIgnoreCase("content-type");
+							case "getContentLength":
+								return contentLength;
+							case "getCharacterEncoding":
+								return "UTF-8";
+							case "getInputStream":
+								return in;
+							case "isAsyncSupported":
+								return asyncSupported;
+							case "isAsyncStarted":
+								return asyncStarted;
+							case "startAsync":
+								asyncStarted = true;
+								return async;
+							case "getDispatcherType":
+								return dispatcherType;
+							case "getAttribute":
+								return attributes.get(args[0]);
+							case "setAttribute":
+								attributes.put((String) args[0], args[1]);
+								return null;
+							case "removeAttribute":
+								attributes.remove(args[0]);
+								return null;
+							default:
+								throw new UnsupportedOperationException(m.getName());
+							}
+						}
+					});
+			this.response = (HttpServletResponse) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method m, Object[] args) {
+							switch (m.getName()) {
+							case "isCommitted":
+								return false;
+							case "sendError":
+								status = (Integer) args[0];
+								return null;
+							default:
+								throw new UnsupportedOperationException(m.getName());
+							}
+						}
+					});
+		}
+
+		private static TestHeaders createFormHeaders() {
+			TestHeaders headers = new TestHeaders();
+			headers.put("Authorization",
+					"AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request,SignedHeaders=content-type;host;x-amz-date,Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c");
+			headers.put("Host", "iam.amazonaws.com");
+			headers.put("Content-type", "application/x-www-form-urlencoded; charset=utf-8");
+			headers.put("X-Amz-Date", "20110909T233600Z");
+			return headers;
+		}
+
+		private void feed(int from, int to) throws IOException {
+			arrived.write(Arrays.copyOfRange(body, from, to));
+			if (listener != null) {
+				listener.onDataAvailable();
+			}
+		}
+
+		private void finish() throws IOException {
+			allArrived = true;
+			if (listener != null) {
+				listener.onDataAvailable();
+				listener.onAllDataRead();
+			}
+		}
+	}
+}
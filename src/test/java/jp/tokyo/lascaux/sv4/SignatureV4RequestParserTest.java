@@ -1,11 +1,16 @@
 package jp.tokyo.lascaux.sv4;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
-import java.util.regex.Matcher;
+import java.util.Arrays;
+import java.util.TreeSet;
 
 import org.junit.Test;
 
+import jp.tokyo.lascaux.sv4.SignatureV4Params.Credential;
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+
 public class SignatureV4RequestParserTest {
 	public void patternTest() {
 
@@ -32,16 +37,86 @@ public class SignatureV4RequestParserTest {
 				true);
 	}
 
+	/**
+	 * パラメータの順番や名前の大文字小文字が違っていてもパースできることをテストします。
+	 */
+	@Test
+	public void parseHeaderAuthOrderAndCase() {
+		verify("AWS4-HMAC-SHA256 Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c, Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request, SignedHeaders=content-type;host;x-amz-date",
+				true);
+		verify("AWS4-HMAC-SHA256 credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request,signedheaders=content-type;host;x-amz-date,\tSIGNATURE=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c",
+				true);
+	}
+
+	/**
+	 * 形式が間違っている場合にINVALID_PARAMSになることをテストします。
+	 */
+	@Test
+	public void parseHeaderAuthInvalid() {
+		//アルゴリズム名のみ
+		verify("AWS4-HMAC-SHA256 ", false);
+		//Signatureがない
+		verify("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request, SignedHeaders=content-type;host;x-amz-date",
+				false);
+		//カンマがない
+		verify("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request SignedHeaders=content-type;host;x-amz-date, Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c",
+				false);
+		//値が空
+		verify("AWS4-HMAC-SHA256 Credential=, SignedHeaders=content-type;host;x-amz-date, Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c",
+				false);
+		//重複
+		verify("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request, Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request, SignedHeaders=content-type;host;x-amz-date, Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c",
+				false);
+		//不明なパラメータ
+		verify("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request, SignedHeaders=content-type;host;x-amz-date, Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c, Foo=bar",
+				false);
+		//末尾のカンマ
+		verify("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request, SignedHeaders=content-type;host;x-amz-date, Signature=ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c,",
+				false);
+	}
+
+	/**
+	 * credentialの区切りの数が違う場合にINVALID_PARAMSになることをテストします。
+	 */
+	@Test
+	public void parseCredential() throws SignatureV4Exception {
+		Credential c = AuthorizationHeaderTokenizer.parseCredential(
+				"x AKID/20110909/us-east-1/iam/aws4_request y", 2, 42);
+		assertEquals("AKID", c.getAccessKey());
+		assertEquals("20110909", c.getRequestDate());
+		assertEquals("us-east-1", c.getRegion());
+		assertEquals("iam", c.getRequestService());
+		assertEquals("aws4_request", c.getConstString());
+		for (String s : new String[] { "AKID/20110909/us-east-1/iam",
+				"AKID/20110909/us-east-1/iam/aws4_request/x" }) {
+			try {
+				AuthorizationHeaderTokenizer.parseCredential(s, 0, s.length());
+				fail(s);
+			} catch (SignatureV4Exception e) {
+				assertEquals(ErrorType.INVALID_PARAMS, e.getErrorType());
+			}
+		}
+	}
+
 	private static void verify(String target, boolean expected) {
-		Matcher m = SignatureV4RequestParser.HEADER_AUTHORIZATION_PATTERN.matcher(target);
-		boolean b = m.matches();
+		AuthorizationHeaderTokenizer tokenizer = new AuthorizationHeaderTokenizer();
+		boolean b;
+		try {
+			tokenizer.tokenize(target);
+			b = true;
+		} catch (SignatureV4Exception e) {
+			assertEquals(ErrorType.INVALID_PARAMS, e.getErrorType());
+			b = false;
+		}
 		assertEquals(expected, b);
 		if (b) {
-			assertEquals("AWS4-HMAC-SHA256", m.group(1));
-			assertEquals("AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request", m.group(3));
-			assertEquals("content-type;host;x-amz-date", m.group(5));
+			assertEquals("AWS4-HMAC-SHA256", tokenizer.getAlgorithm());
+			assertEquals("AKIDEXAMPLE/20110909/us-east-1/iam/aws4_request",
+					tokenizer.getCredentialString());
+			assertEquals(new TreeSet<>(Arrays.asList("content-type", "host", "x-amz-date")),
+					tokenizer.getLowerSignedHeaders());
 			assertEquals("ced6826de92d2bdeed8f846f0bf508e8559e98e4b0199114b84c54174deb456c",
-					m.group(7));
+					tokenizer.getSignature());
 		}
 	}
 }
@@ -0,0 +1,402 @@
+package jp.tokyo.lascaux.sv4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import jp.tokyo.lascaux.sv4.cache.SigningKeyCache;
+import jp.tokyo.lascaux.sv4.entity.ErrorType;
+import jp.tokyo.lascaux.sv4.entity.SignatureType;
+import jp.tokyo.lascaux.sv4.replay.ReplayDetector;
+import jp.tokyo.lascaux.sv4.replay.ReplayResult;
+import jp.tokyo.lascaux.sv4.replay.ReplayStore;
+import jp.tokyo.lascaux.sv4.secret.InMemorySecretProvider;
+import jp.tokyo.lascaux.sv4.secret.SecretList;
+import jp.tokyo.lascaux.sv4.secret.SecretProvider;
+import jp.tokyo.lascaux.sv4.util.SignatureV4Util;
+
+/**
+ * SignatureV4Validatorの検証処理をテストするテストケースです。
+ *
+ * @author Shunichi Todoroki
+ */
+public class SignatureV4ValidatorTest extends SignatureV4AbstractTest {
+	protected static final String SECRET = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+	protected static final String SIGNATURE = "b27ccfbfa7df52a200ff74193ca6e32d4b48b8856fab7ebf1c595d0670a7e470";
+
+	/**
+	 * シグネチャーのデコードと比較
+	 */
+	@Test
+	public void decodeAndCompareSignature() {
+		byte[] decoded = SignatureV4Util.decodeHexSignature(SIGNATURE, 32);
+		assertEquals(32, decoded.length);
+		assertTrue(SignatureV4Util.constantTimeEquals(decoded,
+				SignatureV4Util.decodeHexSignature(SIGNATURE, 32)));
+		assertFalse(SignatureV4Util.constantTimeEquals(decoded,
+				SignatureV4Util.decodeHexSignature(SIGNATURE.replace('b', 'c'), 32)));
+		assertNull(SignatureV4Util.decodeHexSignature(SIGNATURE, 20));
+		assertNull(SignatureV4Util.decodeHexSignature(SIGNATURE.toUpperCase(), 32));
+		assertNull(SignatureV4Util.decodeHexSignature(SIGNATURE.replace('b', 'x'), 32));
+	}
+
+	/**
+	 * 正しいシグネチャー
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void validSignature() throws Exception {
+		SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE),
+				SECRET);
+	}
+
+	/**
+	 * シグネチャーが一致しない場合
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void wrongSignature() throws Exception {
+		assertErrorType(ErrorType.WRONG_SIGNATURE, createParams(SIGNATURE.replace('b', 'c')));
+	}
+
+	/**
+	 * シグネチャーの長さや文字が不正な場合
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void malformedSignature() throws Exception {
+		assertErrorType(ErrorType.WRONG_SIGNATURE, createParams(SIGNATURE.substring(2)));
+		assertErrorType(ErrorType.WRONG_SIGNATURE, createParams(SIGNATURE.toUpperCase()));
+	}
+
+	/**
+	 * 複数の秘密鍵の候補で検証し、一致した候補のインデックスが返ること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void candidateSecrets() throws Exception {
+		assertEquals(0, SignatureV4Validator.validateCandidates(SignatureType.AMAZON_TEST_SUITE,
+				createParams(SIGNATURE), Arrays.asList(SECRET, "OLD" + SECRET)));
+		assertEquals(2, SignatureV4Validator.validateCandidates(SignatureType.AMAZON_TEST_SUITE,
+				createParams(SIGNATURE), Arrays.asList("NEW" + SECRET, "OLD" + SECRET, SECRET)));
+		try {
+			SignatureV4Validator.validateCandidates(SignatureType.AMAZON_TEST_SUITE,
+					createParams(SIGNATURE), Arrays.asList("NEW" + SECRET, "OLD" + SECRET));
+			fail();
+		} catch (SignatureV4Exception e) {
+			assertEquals(ErrorType.WRONG_SIGNATURE, e.getErrorType());
+		}
+		try {
+			SignatureV4Validator.validateCandidates(SignatureType.AMAZON_TEST_SUITE,
+					createParams(SIGNATURE), Collections.<String> emptyList());
+			fail();
+		} catch (SignatureV4Exception e) {
+			assertEquals(ErrorType.INVALID_PARAMS, e.getErrorType());
+		}
+	}
+
+	/**
+	 * プロバイダーから取得した秘密鍵で検証すること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void secretProvider() throws Exception {
+		InMemorySecretProvider provider = new InMemorySecretProvider();
+		provider.put("AKIDEXAMPLE", "NEW" + SECRET, SECRET);
+		assertEquals(1, SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE,
+				createParams(SIGNATURE), provider));
+		provider.remove("AKIDEXAMPLE");
+		assertErrorType(ErrorType.UNKNOWN_ACCESS_KEY, provider);
+		assertErrorType(ErrorType.SECRET_UNAVAILABLE, new SecretProvider() {
+			@Override
+			public List<String> getSecrets(String accessKey) throws Exception {
+				throw new IllegalStateException();
+			}
+		});
+	}
+
+	/**
+	 * ローテーション中に後の秘密鍵で署名された場合も、前の候補の署名キーを再計算しないこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void rotationCachesAllCandidates() throws Exception {
+		InMemorySecretProvider provider = new InMemorySecretProvider();
+		provider.put("AKIDEXAMPLE", "NEW" + SECRET, SECRET);
+		SigningKeyCache cache = SignatureV4Validator.getSigningKeyCache();
+		cache.clear();
+		assertEquals(1, SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE,
+				createParams(SIGNATURE), provider));
+		long misses = cache.getMissCount();
+		long hits = cache.getHitCount();
+		assertEquals(1, SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE,
+				createParams(SIGNATURE), provider));
+		assertEquals(misses, cache.getMissCount());
+		assertEquals(hits + 2, cache.getHitCount());
+		//プロバイダーのリストは計算済みのフィンガープリントを持つ
+		List<String> secrets = provider.getSecrets("AKIDEXAMPLE");
+		assertEquals(SecretList.fingerprint(SECRET), SecretList.fingerprint(secrets, 1));
+	}
+
+	/**
+	 * リプレイ検出を設定した場合は、検証済みのリクエストの再送を拒否すること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void replay() throws Exception {
+		ReplayDetector detector = new ReplayDetector(900, 60, 1000);
+		SignatureV4Validator.setReplayStore(detector);
+		try {
+			SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE),
+					SECRET);
+			assertErrorType(ErrorType.REPLAYED, createParams(SIGNATURE));
+			//シグネチャーが一致しないリクエストは記録しない
+			assertErrorType(ErrorType.WRONG_SIGNATURE, createParams(SIGNATURE.replace('b', 'c')));
+			assertEquals(1, detector.getRecordedCount());
+		} finally {
+			SignatureV4Validator.setReplayStore(null);
+		}
+	}
+
+	/**
+	 * 非同期の検証
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void validateAsync() throws Exception {
+		final AtomicInteger executed = new AtomicInteger();
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				executed.incrementAndGet();
+				new Thread(command).start();
+			}
+		};
+		InMemorySecretProvider provider = new InMemorySecretProvider();
+		provider.put("AKIDEXAMPLE", "NEW" + SECRET, SECRET);
+		ValidationResult result = SignatureV4Validator.validateAsync(
+				SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE), provider, executor)
+				.toCompletableFuture().get(5, TimeUnit.SECONDS);
+		assertTrue(result.isValid());
+		assertEquals(1, result.getMatchedIndex());
+		assertEquals(1, executed.get());
+		result = SignatureV4Validator.validateCandidatesAsync(SignatureType.AMAZON_TEST_SUITE,
+				createParams(SIGNATURE.replace('b', 'c')), Arrays.asList(SECRET), executor)
+				.toCompletableFuture().get(5, TimeUnit.SECONDS);
+		assertFalse(result.isValid());
+		assertEquals(-1, result.getMatchedIndex());
+		assertEquals(ErrorType.WRONG_SIGNATURE, result.getErrorType());
+		assertEquals(2, executed.get());
+		//署名計算前の検証で拒否する場合はエグゼキューターを使用しない
+		result = SignatureV4Validator.validateCandidatesAsync(SignatureType.AMAZON_TEST_SUITE,
+				createParams(SIGNATURE.substring(2)), Arrays.asList(SECRET), executor)
+				.toCompletableFuture().get(5, TimeUnit.SECONDS);
+		assertEquals(ErrorType.WRONG_SIGNATURE, result.getErrorType());
+		assertEquals(2, executed.get());
+		//デフォルトのエグゼキューター
+		assertTrue(SignatureV4Validator
+				.validateCandidatesAsync(SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE),
+						Arrays.asList(SECRET)).toCompletableFuture().get(5, TimeUnit.SECONDS)
+				.isValid());
+	}
+
+	/**
+	 * 非同期の検証でのリプレイ検出
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void replayAsync() throws Exception {
+		SignatureV4Validator.setReplayStore(new ReplayDetector(900, 60, 1000));
+		try {
+			assertTrue(awaitValidation().isValid());
+			assertEquals(ErrorType.REPLAYED, awaitValidation().getErrorType());
+			//応答しないストア
+			SignatureV4Validator.setReplayStore(new ReplayStore() {
+				@Override
+				public CompletableFuture<ReplayResult[]> checkAndSet(long[] fingerprints,
+						long[] expireAts, long now) {
+					return new CompletableFuture<>();
+				}
+			});
+			assertEquals(ErrorType.REPLAY_CHECK_FAILED, awaitValidation().getErrorType());
+			//記録できなかった場合は再送ではなく確認の失敗
+			SignatureV4Validator.setReplayStore(new ReplayStore() {
+				@Override
+				public CompletableFuture<ReplayResult[]> checkAndSet(long[] fingerprints,
+						long[] expireAts, long now) {
+					return CompletableFuture.completedFuture(new ReplayResult[] {
+							ReplayResult.OVERFLOW });
+				}
+			});
+			assertEquals(ErrorType.REPLAY_CHECK_FAILED, awaitValidation().getErrorType());
+			assertErrorType(ErrorType.REPLAY_CHECK_FAILED, createParams(SIGNATURE));
+		} finally {
+			SignatureV4Validator.setReplayStore(null);
+		}
+	}
+
+	/**
+	 * ストアに渡す有効期限は、現在時刻に記録期間を足した時刻までになること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void replayExpireAtClamped() throws Exception {
+		final long[] recorded = new long[1];
+		SignatureV4Validator.setReplayStore(new ReplayStore() {
+			@Override
+			public CompletableFuture<ReplayResult[]> checkAndSet(long[] fingerprints,
+					long[] expireAts, long now) {
+				recorded[0] = expireAts[0];
+				return CompletableFuture.completedFuture(new ReplayResult[] {
+						ReplayResult.ACCEPTED });
+			}
+		});
+		try {
+			//日付に許容するずれを足すと、現在時刻に記録期間（15分）を足した時刻より先になる
+			setClock(TEST_SUITE_TIME - 15 * 60);
+			SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE),
+					SECRET);
+			assertEquals(TEST_SUITE_TIME, recorded[0]);
+		} finally {
+			setClock(TEST_SUITE_TIME);
+			SignatureV4Validator.setReplayStore(null);
+		}
+	}
+
+	/**
+	 * 有効期限が切れている場合は、署名を計算する前に拒否されること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void expired() throws Exception {
+		PreValidationStatistics statistics = SignatureV4Validator.getPreValidationStatistics();
+		long rejected = statistics.getRejectedCount(PreValidationStage.EXPIRE);
+		try {
+			setClock(TEST_SUITE_TIME + 61);
+			//シグネチャーは一致しないが、その前に有効期限で拒否される
+			assertErrorType(ErrorType.EXPIRE, createParams(SIGNATURE, "X-Amz-Expires=60"));
+			assertEquals(rejected + 1, statistics.getRejectedCount(PreValidationStage.EXPIRE));
+			assertErrorType(ErrorType.INVALID_PARAMS, createParams(SIGNATURE, "X-Amz-Expires=x"));
+			//負の値や7日を超える値は期限切れではなくパラメータの誤り
+			assertErrorType(ErrorType.INVALID_PARAMS, createParams(SIGNATURE, "X-Amz-Expires=-1"));
+			assertErrorType(ErrorType.INVALID_PARAMS,
+					createParams(SIGNATURE, "X-Amz-Expires=604801"));
+		} finally {
+			setClock(TEST_SUITE_TIME);
+		}
+	}
+
+	/**
+	 * リクエストの日付と現在時刻のずれが許容範囲（15分）を超える場合
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void clockSkew() throws Exception {
+		PreValidationStatistics statistics = SignatureV4Validator.getPreValidationStatistics();
+		long rejected = statistics.getRejectedCount(PreValidationStage.CLOCK_SKEW);
+		try {
+			setClock(TEST_SUITE_TIME + 15 * 60);
+			SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE),
+					SECRET);
+			setClock(TEST_SUITE_TIME - 15 * 60);
+			SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE),
+					SECRET);
+			setClock(TEST_SUITE_TIME + 15 * 60 + 1);
+			assertErrorType(ErrorType.TIME_SKEWED, createParams(SIGNATURE));
+			setClock(TEST_SUITE_TIME - 15 * 60 - 1);
+			assertErrorType(ErrorType.TIME_SKEWED, createParams(SIGNATURE));
+			assertEquals(rejected + 2, statistics.getRejectedCount(PreValidationStage.CLOCK_SKEW));
+			//有効期限がある場合は、古い日付は有効期限で判定する
+			setClock(TEST_SUITE_TIME + 15 * 60 + 1);
+			assertErrorType(ErrorType.WRONG_SIGNATURE, createParams(SIGNATURE, "X-Amz-Expires=3600"));
+		} finally {
+			setClock(TEST_SUITE_TIME);
+		}
+	}
+
+	/**
+	 * 資格情報のスコープが設定と一致しない場合
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void scopeMismatch() throws Exception {
+		PreValidationStatistics statistics = SignatureV4Validator.getPreValidationStatistics();
+		long rejected = statistics.getRejectedCount(PreValidationStage.SCOPE);
+		TestHeaders headers = new TestHeaders();
+		headers.put("Authorization",
+				"AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-west-2/host/aws4_request, SignedHeaders=date;host, Signature="
+						+ SIGNATURE);
+		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
+		headers.put("Host", "host.foo.com");
+		assertErrorType(ErrorType.INVALID_PARAMS, PARSER.createSignatureV4Params(
+				SignatureType.AMAZON_TEST_SUITE, "GET", "/", headers, null, null));
+		assertEquals(rejected + 1, statistics.getRejectedCount(PreValidationStage.SCOPE));
+	}
+
+	protected static SignatureV4Params createParams(String signature) throws Exception {
+		return createParams(signature, null);
+	}
+
+	protected static SignatureV4Params createParams(String signature, String queryString)
+			throws Exception {
+		TestHeaders headers = new TestHeaders();
+		headers.put("Authorization",
+				"AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20110909/us-east-1/host/aws4_request, SignedHeaders=date;host, Signature="
+						+ signature);
+		headers.put("DATE", "Mon, 09 Sep 2011 23:36:00 GMT");
+		headers.put("Host", "host.foo.com");
+		return PARSER.createSignatureV4Params(SignatureType.AMAZON_TEST_SUITE, "GET", "/", headers,
+				queryString, null);
+	}
+
+	private static ValidationResult awaitValidation() throws Exception {
+		return SignatureV4Validator
+				.validateCandidatesAsync(SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE),
+						Arrays.asList(SECRET)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+	}
+
+	private static void assertErrorType(ErrorType expected, SecretProvider provider)
+			throws Exception {
+		try {
+			SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, createParams(SIGNATURE),
+					provider);
+			fail();
+		} catch (SignatureV4Exception e) {
+			assertEquals(expected, e.getErrorType());
+		}
+	}
+
+	protected static void assertErrorType(ErrorType expected, SignatureV4Params params) {
+		try {
+			SignatureV4Validator.validate(SignatureType.AMAZON_TEST_SUITE, params, SECRET);
+			fail();
+		} catch (SignatureV4Exception e) {
+			assertEquals(expected, e.getErrorType());
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package jp.tokyo.lascaux.sv4.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.tokyo.lascaux.sv4.entity.Hash;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+import jp.tokyo.lascaux.sv4.entity.SHAAlgorithm;
+
+/**
+ * <pre>
+ * SHAAlgorithmとReusableSHAAlgorithmの処理時間を比較する簡易ベンチマークです。
+ * 1回の検証と同じ、ダイジェスト2回とHMAC5回を1オペレーションとして計測します
+ * JUnitからは実行されないので、mainメソッドから実行してください
+ * 引数: [スレッド数] [スレッド毎のオペレーション数]
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class HashBenchmark {
+	private static final String CANONICAL_REQUEST = "POST\n/\n\ncontent-type:application/x-www-form-urlencoded; charset=utf-8\nhost:iam.amazonaws.com\nx-amz-date:20110909T233600Z\n\ncontent-type;host;x-amz-date\nb6359072c78d70ebee1e81adcbab4f01bf2c23245fa365ef83fe8f1f955085e2";
+	private static final byte[] SECRET = "AWS4wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY".getBytes();
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime()
+				.availableProcessors();
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		for (int i = 0; i < 2; i++) {
+			//1回目はウォームアップ
+			boolean print = i > 0;
+			run("SHAAlgorithm", new SHAAlgorithm(HashType.SHA256), threads, operations, print);
+			run("ReusableSHAAlgorithm", ReusableSHAAlgorithm.getInstance(HashType.SHA256), threads,
+					operations, print);
+		}
+	}
+
+	private static void run(String name, final Hash hash, int threads, final int operations,
+			boolean print) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Integer>> tasks = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				tasks.add(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int sink = 0;
+						for (int i = 0; i < operations; i++) {
+							sink += operation(hash);
+						}
+						return sink;
+					}
+				});
+			}
+			long start = System.nanoTime();
+			int sink = 0;
+			for (Future<Integer> f : executor.invokeAll(tasks)) {
+				sink += f.get();
+			}
+			long elapsed = System.nanoTime() - start;
+			if (print) {
+				long total = (long) threads * operations;
+				System.out.printf("%-22s threads=%d ops=%d %,d ops/s (%.1f ns/op) [%d]%n", name,
+						threads, total, total * 1000000000L / elapsed, (double) elapsed / total, sink);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static int operation(Hash hash) throws Exception {
+		String hashed = hash.hashedString(CANONICAL_REQUEST);
+		hash.hashedString("");
+		byte[] kDate = hash.hashHmac("20110909", SECRET);
+		byte[] kRegion = hash.hashHmac("us-east-1", kDate);
+		byte[] kService = hash.hashHmac("iam", kRegion);
+		byte[] kSigning = hash.hashHmac("aws4_request", kService);
+		return hash.hashHmac(hashed, kSigning)[0];
+	}
+}
@@ -0,0 +1,84 @@
+package jp.tokyo.lascaux.sv4.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.tokyo.lascaux.sv4.replay.ReplayDetector;
+import jp.tokyo.lascaux.sv4.replay.ReplayResult;
+
+/**
+ * <pre>
+ * ReplayDetector#registerのスループットを計測する簡易ベンチマークです。
+ * 各スレッドは重複しないシグネチャーを記録し、現在時刻は1秒ずつ進めながら記録期間を一巡させます
+ * JUnitからは実行されないので、mainメソッドから実行してください
+ * 引数: [スレッド数] [スレッド毎のオペレーション数] [最大の記録数（毎秒）]
+ * 最大の記録数を指定しない場合は、ベンチマークで記録する毎秒の数にします
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class ReplayDetectorBenchmark {
+	private static final long NOW = 1315611360L;
+	private static final long WINDOW = 900;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime()
+				.availableProcessors();
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		//記録期間の2倍の時間で全オペレーションを記録する
+		int maxRate = args.length > 2 ? Integer.parseInt(args[2]) : (int) ((long) threads
+				* operations / (WINDOW * 2)) + 1;
+		for (int i = 0; i < 2; i++) {
+			//1回目はウォームアップ
+			run(new ReplayDetector(WINDOW, 60, maxRate), threads, operations, i > 0);
+		}
+	}
+
+	private static void run(final ReplayDetector detector, int threads, final int operations,
+			boolean print) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Integer>> tasks = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final long seed = (t + 1L) << 40;
+				tasks.add(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int rejected = 0;
+						for (int i = 0; i < operations; i++) {
+							//SplitMix64で重複しないシグネチャーを作る
+							long z = (seed + i) * 0x9e3779b97f4a7c15L;
+							z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+							z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+							long now = NOW + (long) i * WINDOW * 2 / operations;
+							if (detector.register(z ^ (z >>> 31), now + WINDOW,
+									now) != ReplayResult.ACCEPTED) {
+								rejected++;
+							}
+						}
+						return rejected;
+					}
+				});
+			}
+			long start = System.nanoTime();
+			int rejected = 0;
+			for (Future<Integer> f : executor.invokeAll(tasks)) {
+				rejected += f.get();
+			}
+			long elapsed = System.nanoTime() - start;
+			if (print) {
+				long total = (long) threads * operations;
+				System.out.printf(
+						"ReplayDetector threads=%d ops=%d %,d ops/s (%.1f ns/op) rejected=%d overflow=%d%n",
+						threads, total, total * 1000000000L / elapsed, (double) elapsed / total,
+						rejected, detector.getOverflowCount());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
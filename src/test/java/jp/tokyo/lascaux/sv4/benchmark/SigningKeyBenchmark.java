@@ -0,0 +1,98 @@
+package jp.tokyo.lascaux.sv4.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.tokyo.lascaux.sv4.cache.SigningKey;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.ReusableSHAAlgorithm;
+import jp.tokyo.lascaux.sv4.entity.SHAAlgorithm;
+
+/**
+ * <pre>
+ * 署名キーが決まっている場合の最後のHMAC（署名文字列の署名）の処理時間を比較する簡易ベンチマークです。
+ * ・SHAAlgorithm#hashHmac (Macの取得と初期化を毎回行う)
+ * ・ReusableSHAAlgorithm#hashHmac (Macは使い回すが初期化は毎回行う)
+ * ・SigningKey#sign (初期化済みのMacを使用する)
+ * JUnitからは実行されないので、mainメソッドから実行してください
+ * 引数: [スレッド数] [スレッド毎のオペレーション数]
+ * </pre>
+ *
+ * @author Shunichi Todoroki
+ */
+public class SigningKeyBenchmark {
+	private static final String STRING_TO_SIGN = "AWS4-HMAC-SHA256\n20110909T233600Z\n20110909/us-east-1/iam/aws4_request\n3511de7e95d28ecd39e9513b642aee07e54f4941150d8df8bf94b328ef7e55e2";
+	private static final byte[] K_SIGNING = new byte[32];
+
+	private interface Signer {
+		byte[] sign(String data) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime()
+				.availableProcessors();
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		final SHAAlgorithm shaAlgorithm = new SHAAlgorithm(HashType.SHA256);
+		final ReusableSHAAlgorithm reusable = ReusableSHAAlgorithm.getInstance(HashType.SHA256);
+		final SigningKey signingKey = new SigningKey(HashType.SHA256, K_SIGNING);
+		for (int i = 0; i < 2; i++) {
+			//1回目はウォームアップ
+			boolean print = i > 0;
+			run("SHAAlgorithm", new Signer() {
+				@Override
+				public byte[] sign(String data) throws Exception {
+					return shaAlgorithm.hashHmac(data, K_SIGNING);
+				}
+			}, threads, operations, print);
+			run("ReusableSHAAlgorithm", new Signer() {
+				@Override
+				public byte[] sign(String data) throws Exception {
+					return reusable.hashHmac(data, K_SIGNING);
+				}
+			}, threads, operations, print);
+			run("SigningKey", new Signer() {
+				@Override
+				public byte[] sign(String data) throws Exception {
+					return signingKey.sign(data);
+				}
+			}, threads, operations, print);
+		}
+	}
+
+	private static void run(String name, final Signer signer, int threads, final int operations,
+			boolean print) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Integer>> tasks = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				tasks.add(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int sink = 0;
+						for (int i = 0; i < operations; i++) {
+							sink += signer.sign(STRING_TO_SIGN)[0];
+						}
+						return sink;
+					}
+				});
+			}
+			long start = System.nanoTime();
+			int sink = 0;
+			for (Future<Integer> f : executor.invokeAll(tasks)) {
+				sink += f.get();
+			}
+			long elapsed = System.nanoTime() - start;
+			if (print) {
+				long total = (long) threads * operations;
+				System.out.printf("%-22s threads=%d ops=%d %,d ops/s (%.1f ns/op) [%d]%n", name,
+						threads, total, total * 1000000000L / elapsed, (double) elapsed / total, sink);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package jp.tokyo.lascaux.sv4.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Params.Credential;
+import jp.tokyo.lascaux.sv4.entity.HashType;
+import jp.tokyo.lascaux.sv4.entity.SignatureType;
+import jp.tokyo.lascaux.sv4.time.EpochClock;
+
+public class SigningKeyCacheTest {
+	private static final String SECRET = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+
+	/**
+	 * 同じキーで取得した場合はヒット、違う秘密鍵の場合はミスになることを確認します。
+	 */
+	@Test
+	public void hitAndMiss() {
+		SigningKeyCache cache = new SigningKeyCache(10);
+		Credential credential = credential("20110909");
+		assertNull(cache.get(SignatureType.AMAZON, HashType.SHA256, credential, SECRET));
+		SigningKey signingKey = key(1);
+		cache.put(SignatureType.AMAZON, HashType.SHA256, credential, SECRET, signingKey);
+		assertSame(signingKey,
+				cache.get(SignatureType.AMAZON, HashType.SHA256, credential("20110909"), SECRET));
+		assertNull(cache.get(SignatureType.AMAZON, HashType.SHA256, credential, SECRET + "x"));
+		assertNull(cache.get(SignatureType.AMAZON, HashType.SHA1, credential, SECRET));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+	}
+
+	/**
+	 * 日付が進んだ場合に前日より古いエントリが削除されることを確認します。
+	 */
+	@Test
+	public void evictByDate() {
+		SigningKeyCache cache = new SigningKeyCache(10);
+		cache.put(SignatureType.AMAZON, HashType.SHA256, credential("20110908"), SECRET,
+				key(1));
+		cache.put(SignatureType.AMAZON, HashType.SHA256, credential("20110909"), SECRET,
+				key(2));
+		assertEquals(2, cache.size());
+		cache.put(SignatureType.AMAZON, HashType.SHA256, credential("20110910"), SECRET,
+				key(3));
+		assertEquals(2, cache.size());
+		assertNull(cache.get(SignatureType.AMAZON, HashType.SHA256, credential("20110908"), SECRET));
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	/**
+	 * 未来の日付で登録しても、現在時刻の翌日より先のエントリは削除されないことを確認します。
+	 */
+	@Test
+	public void futureDateCapped() {
+		//2011-09-09T12:00:00Z
+		SigningKeyCache cache = new SigningKeyCache(10, new EpochClock() {
+			@Override
+			public long currentTimeSeconds() {
+				return 1315569600L;
+			}
+		});
+		cache.put(SignatureType.AMAZON, HashType.SHA256, credential("20110909"), SECRET,
+				key(1));
+		cache.put(SignatureType.AMAZON, HashType.SHA256, credential("99991231"), SECRET,
+				key(2));
+		assertEquals(2, cache.size());
+		assertEquals(0, cache.getEvictionCount());
+	}
+
+	/**
+	 * 最大数を超えないことを確認します。
+	 */
+	@Test
+	public void evictBySize() {
+		SigningKeyCache cache = new SigningKeyCache(3);
+		for (int i = 0; i < 10; i++) {
+			cache.put(SignatureType.AMAZON, HashType.SHA256, credential("20110909"), SECRET + i,
+					key(i));
+		}
+		assertEquals(3, cache.size());
+		assertEquals(7, cache.getEvictionCount());
+	}
+
+	private static SigningKey key(int i) {
+		return new SigningKey(HashType.SHA256, new byte[] { (byte) i });
+	}
+
+	private static Credential credential(String date) {
+		return new Credential("AKIDEXAMPLE", date, "us-east-1", "iam", "aws4_request");
+	}
+}
@@ -0,0 +1,44 @@
+package jp.tokyo.lascaux.sv4.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+import jp.tokyo.lascaux.sv4.SignatureV4Exception;
+
+public class SignatureProfileTest {
+
+	/**
+	 * 設定とシグネチャータイプから値が組み立てられていること
+	 */
+	@Test
+	public void create() throws SignatureV4Exception {
+		SignatureProfile profile = SignatureProfile.create(SignatureType.LASCAUX,
+				ConfigFactory.load("application-sv4.conf"));
+		assertSame(ParameterType.LASCAUX, profile.getParameterType());
+		assertEquals("/ap-northeast-1/apis/apis_request", profile.getScopeSuffix());
+		assertEquals("20110909/ap-northeast-1/apis/apis_request", profile.createScope("20110909"));
+		assertSame(HashType.SHA256, profile.getHashType("LSCX-HMAC-SHA256"));
+		assertSame(HashType.SHA1, profile.getHashType("LSCX-HMAC-SHA1"));
+		try {
+			profile.getHashType("AWS4-HMAC-SHA256");
+			fail();
+		} catch (SignatureV4Exception e) {
+			assertEquals(ErrorType.INVALID_ALGORITHM_NAME, e.getErrorType());
+		}
+	}
+
+	/**
+	 * パラメータ名が従来と同じ値であること
+	 */
+	@Test
+	public void parameterNames() {
+		assertEquals("X-Amz-Date", ParameterType.AMAZON.getDateParamName());
+		assertEquals("x-amz-content-sha256", ParameterType.AMAZON.getLowerContentSha256ParamName());
+		assertEquals("x-lascaux-signedheaders", ParameterType.LASCAUX.getLowerSignedHeadersParamName());
+	}
+}
@@ -0,0 +1,116 @@
+package jp.tokyo.lascaux.sv4.payload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class PayloadBufferTest {
+	/**
+	 * しきい値までのボディはメモリに保持し、何度でも先頭から読み込めること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void inMemory() throws Exception {
+		byte[] body = randomBytes(100000);
+		PayloadBuffer buffer = new PayloadBuffer(1024 * 1024);
+		write(buffer, body);
+		assertFalse(buffer.isSpilled());
+		assertEquals(body.length, buffer.size());
+		assertArrayEquals(body, IOUtils.toByteArray(buffer.openInputStream()));
+		assertArrayEquals(body, IOUtils.toByteArray(buffer.openInputStream()));
+		buffer.close();
+	}
+
+	/**
+	 * しきい値を超えたボディは一時ファイルに書き出し、close()で削除されること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void spill() throws Exception {
+		Set<Path> before = spillFiles();
+		byte[] body = randomBytes(100000);
+		PayloadBuffer buffer = new PayloadBuffer(40000);
+		write(buffer, body);
+		assertTrue(buffer.isSpilled());
+		assertEquals(body.length, buffer.size());
+		InputStream in = buffer.openInputStream();
+		assertEquals(body[0], (byte) in.read());
+		assertArrayEquals(body, IOUtils.toByteArray(buffer.openInputStream()));
+		//他のストリームの読み込み位置に影響されないこと
+		byte[] rest = IOUtils.toByteArray(in);
+		assertArrayEquals(Arrays.copyOfRange(body, 1, body.length), rest);
+		Set<Path> created = spillFiles();
+		created.removeAll(before);
+		assertEquals(1, created.size());
+		//読み込み中のストリームがあっても削除できること
+		buffer.close();
+		assertFalse(Files.exists(created.iterator().next()));
+		try {
+			in.read();
+			fail();
+		} catch (IOException e) {
+			//クローズ後は読み込めない
+		}
+	}
+
+	/**
+	 * 書き込みの終了前は読み込めないこと
+	 *
+	 * @throws Exception
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void notFinished() throws Exception {
+		try (PayloadBuffer buffer = new PayloadBuffer()) {
+			buffer.write(new byte[10], 0, 10);
+			buffer.openInputStream();
+		}
+	}
+
+	/**
+	 * 不規則な長さで書き込む
+	 */
+	private static void write(PayloadBuffer buffer, byte[] body) throws IOException {
+		Random random = new Random(0);
+		for (int off = 0; off < body.length;) {
+			int len = Math.min(random.nextInt(30000), body.length - off);
+			buffer.write(body, off, len);
+			off += len;
+		}
+		buffer.finish();
+	}
+
+	private static Set<Path> spillFiles() throws IOException {
+		Set<Path> files = new HashSet<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+				Paths.get(System.getProperty("java.io.tmpdir")), "sv4-payload*.tmp")) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,97 @@
+package jp.tokyo.lascaux.sv4.replay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BatchingReplayStoreTest {
+	private static final long NOW = 1315611360L;
+
+	/**
+	 * 複数のサーバーのどれに再送されても検出できること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void cluster() throws Exception {
+		try (TcpReplayStoreServer server = new TcpReplayStoreServer(new ReplayDetector(900, 60,
+				1000));
+				TcpReplayStoreClient clientA = new TcpReplayStoreClient(server.getPort());
+				TcpReplayStoreClient clientB = new TcpReplayStoreClient(server.getPort());
+				BatchingReplayStore nodeA = new BatchingReplayStore(clientA, 512, 0, 4);
+				BatchingReplayStore nodeB = new BatchingReplayStore(clientB, 512, 0, 4)) {
+			assertTrue(checkAndSet(nodeA, 1L));
+			assertFalse(checkAndSet(nodeB, 1L));
+			assertFalse(checkAndSet(nodeA, 1L));
+			assertTrue(checkAndSet(nodeB, 2L));
+		}
+	}
+
+	/**
+	 * 同時に来た呼び出しがまとめられ、元のストアの呼び出し回数が呼び出し数より少なくなること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void batching() throws Exception {
+		try (TcpReplayStoreServer server = new TcpReplayStoreServer(new ReplayDetector(900, 60,
+				1000));
+				TcpReplayStoreClient client = new TcpReplayStoreClient(server.getPort());
+				BatchingReplayStore store = new BatchingReplayStore(client, 64, 0, 1)) {
+			List<CompletableFuture<ReplayResult[]>> futures = new ArrayList<>();
+			for (int i = 0; i < 2000; i++) {
+				//半分は重複
+				futures.add(store.checkAndSet(new long[] { i / 2 }, new long[] { NOW + 900 }, NOW));
+			}
+			int accepted = 0;
+			for (CompletableFuture<ReplayResult[]> future : futures) {
+				if (future.get(5, TimeUnit.SECONDS)[0] == ReplayResult.ACCEPTED) {
+					accepted++;
+				}
+			}
+			assertEquals(1000, accepted);
+			assertEquals(2000, store.getRequestCount());
+			assertTrue(store.getBatchCount() < 2000);
+			assertEquals(store.getBatchCount(), client.getCallCount());
+		}
+	}
+
+	/**
+	 * 元のストアが失敗した場合は、まとめた呼び出しがすべて失敗すること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void failure() throws Exception {
+		try (BatchingReplayStore store = new BatchingReplayStore(new ReplayStore() {
+			@Override
+			public CompletableFuture<ReplayResult[]> checkAndSet(long[] fingerprints,
+					long[] expireAts, long now) {
+				CompletableFuture<ReplayResult[]> future = new CompletableFuture<>();
+				future.completeExceptionally(new IllegalStateException("down"));
+				return future;
+			}
+		}, 64, 0, 1)) {
+			try {
+				checkAndSet(store, 1L);
+				fail();
+			} catch (ExecutionException e) {
+				assertEquals("down", e.getCause().getMessage());
+			}
+		}
+	}
+
+	private static boolean checkAndSet(ReplayStore store, long fingerprint) throws Exception {
+		return store.checkAndSet(new long[] { fingerprint }, new long[] { NOW + 900 }, NOW)
+				.get(5, TimeUnit.SECONDS)[0] == ReplayResult.ACCEPTED;
+	}
+}
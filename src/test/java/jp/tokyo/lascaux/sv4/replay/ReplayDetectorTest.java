@@ -0,0 +1,96 @@
+package jp.tokyo.lascaux.sv4.replay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReplayDetectorTest {
+	private static final long NOW = 1315611360L;
+
+	/**
+	 * 有効期限内の同じシグネチャーは拒否すること
+	 */
+	@Test
+	public void replay() {
+		ReplayDetector detector = new ReplayDetector(900, 60, 1000);
+		assertEquals(ReplayResult.ACCEPTED, detector.register(1L, NOW + 900, NOW));
+		assertEquals(ReplayResult.REPLAYED, detector.register(1L, NOW + 900, NOW + 10));
+		assertEquals(ReplayResult.ACCEPTED, detector.register(2L, NOW + 900, NOW));
+		assertEquals(ReplayResult.ACCEPTED, detector.register(0L, NOW + 900, NOW));
+		assertEquals(ReplayResult.REPLAYED, detector.register(0L, NOW + 900, NOW));
+		assertEquals(3, detector.getRecordedCount());
+		assertEquals(2, detector.getReplayedCount());
+	}
+
+	/**
+	 * 有効期限が過ぎたバケットは削除されること
+	 */
+	@Test
+	public void evict() {
+		ReplayDetector detector = new ReplayDetector(900, 60, 1000);
+		assertEquals(ReplayResult.ACCEPTED, detector.register(1L, NOW + 60, NOW));
+		assertEquals(ReplayResult.REPLAYED, detector.register(1L, NOW + 60, NOW + 59));
+		//バケットの終わりを過ぎた後は記録が削除されている
+		assertEquals(ReplayResult.ACCEPTED, detector.register(1L, NOW + 2000, NOW + 180));
+		//有効期限がすでに過ぎているリクエストは記録しない
+		assertEquals(ReplayResult.ACCEPTED, detector.register(3L, NOW, NOW + 1));
+		assertEquals(ReplayResult.ACCEPTED, detector.register(3L, NOW, NOW + 1));
+		//記録期間は最大でwindowまで
+		assertEquals(ReplayResult.REPLAYED, detector.register(1L, NOW + 2000, NOW + 180 + 899));
+		assertEquals(ReplayResult.ACCEPTED, detector.register(1L, NOW + 2000, NOW + 180 + 960));
+	}
+
+	/**
+	 * バケットの容量を超えた場合は、再送ではなく記録できなかったことを返すこと
+	 */
+	@Test
+	public void overflow() {
+		ReplayDetector detector = new ReplayDetector(60, 60, 1);
+		long accepted = 0;
+		for (long i = 1; i <= 10000; i++) {
+			ReplayResult result = detector.register(i * 0x9e3779b97f4a7c15L, NOW + 60, NOW);
+			assertNotEquals(ReplayResult.REPLAYED, result);
+			if (result == ReplayResult.ACCEPTED) {
+				accepted++;
+			}
+		}
+		assertEquals(detector.getRecordedCount(), accepted);
+		assertEquals(10000, detector.getRecordedCount() + detector.getOverflowCount());
+		assertTrue(detector.getOverflowCount() > 0);
+		assertEquals(0, detector.getReplayedCount());
+	}
+
+	/**
+	 * <pre>
+	 * 設定の最大の記録数で、記録期間を超える時間リクエストが続いても容量を超えないこと
+	 * ヘッダーで署名したリクエストはすべて記録期間の終わりのバケットに入るので、最も偏る場合です
+	 * </pre>
+	 */
+	@Test
+	public void sustainedMaxRate() {
+		ReplayDetector detector = ReplayDetector.create();
+		int rate = detector.getMaxRatePerSecond();
+		long seed = 0;
+		for (long now = NOW; now < NOW + 30 * 60; now++) {
+			for (int i = 0; i < rate; i++) {
+				//SplitMix64で重複しないシグネチャーを作る
+				long z = ++seed * 0x9e3779b97f4a7c15L;
+				z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+				z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+				detector.register(z ^ (z >>> 31), now + 900, now);
+			}
+		}
+		assertEquals(0, detector.getOverflowCount());
+		assertEquals(0, detector.getReplayedCount());
+		assertEquals(rate * 30L * 60, detector.getRecordedCount());
+	}
+
+	@Test
+	public void fingerprint() {
+		assertEquals(0xb27ccfbfa7df52a2L, ReplayDetector
+				.fingerprint("b27ccfbfa7df52a200ff74193ca6e32d4b48b8856fab7ebf1c595d0670a7e470"));
+		assertEquals(0xabL, ReplayDetector.fingerprint("ab"));
+	}
+}
@@ -0,0 +1,102 @@
+package jp.tokyo.lascaux.sv4.replay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <pre>
+ * {@link TcpReplayStoreServer}に接続するテスト用のストアです。
+ * リクエストはレスポンスを待たずに送り、レスポンスは受信用のスレッドでIDから対応する結果に設定します
+ * </pre>
+ */
+public class TcpReplayStoreClient implements ReplayStore, Closeable {
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final ConcurrentMap<Integer, CompletableFuture<ReplayResult[]>> pending = new ConcurrentHashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final AtomicInteger callCount = new AtomicInteger();
+
+	public TcpReplayStoreClient(int port) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		this.socket.setTcpNoDelay(true);
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop(in);
+			}
+		}, "replay-store-client");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public CompletableFuture<ReplayResult[]> checkAndSet(long[] fingerprints, long[] expireAts,
+			long now) {
+		callCount.incrementAndGet();
+		int id = nextId.incrementAndGet();
+		CompletableFuture<ReplayResult[]> future = new CompletableFuture<>();
+		pending.put(id, future);
+		try {
+			synchronized (out) {
+				out.writeInt(id);
+				out.writeInt(fingerprints.length);
+				out.writeLong(now);
+				for (int i = 0; i < fingerprints.length; i++) {
+					out.writeLong(fingerprints[i]);
+					out.writeLong(expireAts[i]);
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			pending.remove(id);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * サーバーを呼び出した回数を返します。
+	 */
+	public int getCallCount() {
+		return callCount.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	private void readLoop(DataInputStream in) {
+		try {
+			while (true) {
+				int id = in.readInt();
+				int count = in.readInt();
+				ReplayResult[] results = new ReplayResult[count];
+				for (int i = 0; i < count; i++) {
+					results[i] = ReplayResult.values()[in.readByte()];
+				}
+				CompletableFuture<ReplayResult[]> future = pending.remove(id);
+				if (future != null) {
+					future.complete(results);
+				}
+			}
+		} catch (IOException e) {
+			for (CompletableFuture<ReplayResult[]> future : pending.values()) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+}
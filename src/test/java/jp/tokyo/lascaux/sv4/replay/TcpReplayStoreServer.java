@@ -0,0 +1,97 @@
+package jp.tokyo.lascaux.sv4.replay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * <pre>
+ * テスト用の、TCPでReplayStoreを共有するサーバーです。
+ * 複数のサーバーで再送を検出する構成を、1つのプロセスの中で再現するために使用します
+ * リクエスト：ID(int)、件数(int)、現在時刻(long)、件数分のシグネチャー(long)と有効期限(long)
+ * レスポンス：ID(int)、件数(int)、件数分の結果(byte、1は初めてのシグネチャー)
+ * 1つの接続で、レスポンスを待たずに続けてリクエストを送ることができます
+ * </pre>
+ */
+public class TcpReplayStoreServer implements Closeable {
+	private final ReplayStore store;
+	private final ServerSocket serverSocket;
+
+	public TcpReplayStoreServer(ReplayStore store) throws IOException {
+		this.store = store;
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "replay-store-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	private void acceptLoop() {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread handler = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					handle(socket);
+				}
+			}, "replay-store-connection");
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	private void handle(Socket socket) {
+		try (Socket s = socket;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+						s.getOutputStream()))) {
+			while (true) {
+				int id = in.readInt();
+				int count = in.readInt();
+				long now = in.readLong();
+				long[] fingerprints = new long[count];
+				long[] expireAts = new long[count];
+				for (int i = 0; i < count; i++) {
+					fingerprints[i] = in.readLong();
+					expireAts[i] = in.readLong();
+				}
+				ReplayResult[] results = store.checkAndSet(fingerprints, expireAts, now).get();
+				out.writeInt(id);
+				out.writeInt(count);
+				for (ReplayResult result : results) {
+					out.writeByte(result.ordinal());
+				}
+				//続けてリクエストが届いている場合はまとめて送る
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (Exception e) {
+			//切断された
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package jp.tokyo.lascaux.sv4.secret;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jp.tokyo.lascaux.sv4.time.EpochClock;
+
+public class CachingSecretProviderTest {
+	private final AtomicLong now = new AtomicLong(1000);
+	private final EpochClock clock = new EpochClock() {
+		@Override
+		public long currentTimeSeconds() {
+			return now.get();
+		}
+	};
+	private InMemorySecretProvider source;
+	private CountingProvider counting;
+	private CachingSecretProvider provider;
+
+	@Before
+	public void setUp() {
+		source = new InMemorySecretProvider();
+		source.put("AKID1", "secret1");
+		source.put("AKID2", "secret2", "oldSecret2");
+		counting = new CountingProvider(source);
+		provider = new CachingSecretProvider(counting, 2, 60, 600, 10, clock);
+	}
+
+	@After
+	public void tearDown() {
+		provider.close();
+	}
+
+	/**
+	 * 2回目以降はキャッシュから返すこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void hit() throws Exception {
+		assertEquals(Arrays.asList("secret2", "oldSecret2"), provider.getSecrets("AKID2"));
+		assertEquals(Arrays.asList("secret2", "oldSecret2"), provider.getSecrets("AKID2"));
+		assertEquals(1, counting.calls.get());
+		assertEquals(1, provider.getHitCount());
+		assertEquals(1, provider.getMissCount());
+		//有効時間を過ぎた場合は呼び出したスレッドで再取得する
+		now.addAndGet(600);
+		source.put("AKID2", "secret3");
+		assertEquals(Collections.singletonList("secret3"), provider.getSecrets("AKID2"));
+		assertEquals(2, counting.calls.get());
+	}
+
+	/**
+	 * 存在しないアクセスキーも否定キャッシュの有効時間の間はキャッシュすること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void negative() throws Exception {
+		assertTrue(provider.getSecrets("UNKNOWN").isEmpty());
+		assertTrue(provider.getSecrets("UNKNOWN").isEmpty());
+		assertEquals(1, counting.calls.get());
+		now.addAndGet(10);
+		source.put("UNKNOWN", "created");
+		assertEquals(Collections.singletonList("created"), provider.getSecrets("UNKNOWN"));
+		assertEquals(2, counting.calls.get());
+	}
+
+	/**
+	 * 更新時間を過ぎた場合は、古い値を返しつつバックグラウンドで再取得すること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void refreshAhead() throws Exception {
+		assertEquals(Collections.singletonList("secret1"), provider.getSecrets("AKID1"));
+		source.put("AKID1", "rotated1");
+		now.addAndGet(60);
+		assertEquals(Collections.singletonList("secret1"), provider.getSecrets("AKID1"));
+		for (int i = 0; i < 100 && counting.calls.get() < 2; i++) {
+			Thread.sleep(10);
+		}
+		for (int i = 0; i < 100
+				&& !provider.getSecrets("AKID1").equals(Collections.singletonList("rotated1")); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(Collections.singletonList("rotated1"), provider.getSecrets("AKID1"));
+		assertEquals(2, counting.calls.get());
+	}
+
+	/**
+	 * 同じアクセスキーの取得が同時に発生した場合は、元のプロバイダーを1回だけ呼び出すこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void singleFlight() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		final CachingSecretProvider blocking = new CachingSecretProvider(new SecretProvider() {
+			@Override
+			public List<String> getSecrets(String accessKey) throws Exception {
+				calls.incrementAndGet();
+				entered.countDown();
+				release.await(5, TimeUnit.SECONDS);
+				return Collections.singletonList("slow");
+			}
+		}, 10, 60, 600, 10, clock);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<String>>> futures = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				futures.add(executor.submit(new Callable<List<String>>() {
+					@Override
+					public List<String> call() throws Exception {
+						return blocking.getSecrets("AKID");
+					}
+				}));
+			}
+			assertTrue(entered.await(5, TimeUnit.SECONDS));
+			//他のスレッドが待ち状態になるまで少し待つ
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<List<String>> future : futures) {
+				assertEquals(Collections.singletonList("slow"), future.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, calls.get());
+		} finally {
+			executor.shutdownNow();
+			blocking.close();
+		}
+	}
+
+	/**
+	 * 取得に失敗した場合は例外がそのままスローされ、キャッシュされないこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void loadFailure() throws Exception {
+		CachingSecretProvider failing = new CachingSecretProvider(new SecretProvider() {
+			@Override
+			public List<String> getSecrets(String accessKey) throws Exception {
+				throw new IllegalStateException("down");
+			}
+		}, 10, 60, 600, 10, clock);
+		try {
+			failing.getSecrets("AKID1");
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("down", e.getMessage());
+		} finally {
+			failing.close();
+		}
+		assertEquals(1, failing.getLoadFailureCount());
+		assertEquals(0, failing.size());
+	}
+
+	/**
+	 * エントリ数が最大数を超えないこと、最後に使われたのが最も古いエントリから削除すること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void bounded() throws Exception {
+		source.put("AKID3", "secret3");
+		provider.getSecrets("AKID1");
+		Thread.sleep(1);
+		provider.getSecrets("AKID2");
+		Thread.sleep(1);
+		//AKID1を使うとAKID2が最後に使われたのが最も古いエントリになる
+		provider.getSecrets("AKID1");
+		Thread.sleep(1);
+		provider.getSecrets("AKID3");
+		assertEquals(2, provider.size());
+		assertEquals(1, provider.getEvictionCount());
+		int calls = counting.calls.get();
+		provider.getSecrets("AKID1");
+		provider.getSecrets("AKID3");
+		assertEquals(calls, counting.calls.get());
+		provider.getSecrets("AKID2");
+		assertEquals(calls + 1, counting.calls.get());
+	}
+
+	/**
+	 * 存在しないアクセスキーを大量に取得しても、存在するアクセスキーのエントリは削除されないこと
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void negativeBounded() throws Exception {
+		provider.getSecrets("AKID1");
+		provider.getSecrets("AKID2");
+		for (int i = 0; i < 100; i++) {
+			assertTrue(provider.getSecrets("UNKNOWN" + i).isEmpty());
+		}
+		//否定キャッシュの最大数は最大エントリ数の1/10（最低1）
+		assertEquals(1, provider.negativeSize());
+		assertEquals(3, provider.size());
+		int calls = counting.calls.get();
+		provider.getSecrets("AKID1");
+		provider.getSecrets("AKID2");
+		assertEquals(calls, counting.calls.get());
+		//存在するようになったアクセスキーは否定キャッシュから移す
+		source.put("UNKNOWN99", "secret99");
+		provider.invalidate("UNKNOWN99");
+		assertEquals(Collections.singletonList("secret99"), provider.getSecrets("UNKNOWN99"));
+		assertEquals(0, provider.negativeSize());
+	}
+
+	private static class CountingProvider implements SecretProvider {
+		private final SecretProvider delegate;
+		private final AtomicInteger calls = new AtomicInteger();
+
+		private CountingProvider(SecretProvider delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public List<String> getSecrets(String accessKey) throws Exception {
+			calls.incrementAndGet();
+			return delegate.getSecrets(accessKey);
+		}
+	}
+}
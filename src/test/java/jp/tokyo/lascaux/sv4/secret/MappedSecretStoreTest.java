@@ -0,0 +1,88 @@
+package jp.tokyo.lascaux.sv4.secret;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedSecretStoreTest {
+	private Path dir;
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("sv4-secret");
+		file = dir.resolve("secrets.bin");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(dir);
+	}
+
+	/**
+	 * 作成したファイルから秘密鍵を検索できること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void lookup() throws Exception {
+		MappedSecretStoreWriter writer = new MappedSecretStoreWriter();
+		for (int i = 0; i < 1000; i++) {
+			writer.put("AKID" + i, "secret" + i);
+		}
+		writer.put("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY", "旧秘密鍵");
+		writer.writeTo(file);
+		MappedSecretStore store = MappedSecretStore.open(file);
+		assertEquals(1001, store.size());
+		assertEquals(Arrays.asList("wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY", "旧秘密鍵"),
+				store.getSecrets("AKIDEXAMPLE"));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(Collections.singletonList("secret" + i), store.getSecrets("AKID" + i));
+		}
+		assertTrue(store.getSecrets("AKID1000").isEmpty());
+		assertTrue(store.getSecrets("").isEmpty());
+	}
+
+	/**
+	 * ファイルを置き換えてreloadした場合に、新しいファイルで検索すること
+	 *
+	 * @throws Exception
+	 */
+	@Test
+	public void reload() throws Exception {
+		new MappedSecretStoreWriter().put("AKID1", "secret1").writeTo(file);
+		MappedSecretStore store = MappedSecretStore.open(file);
+		assertFalse(store.reloadIfModified());
+		new MappedSecretStoreWriter().put("AKID1", "rotated1").put("AKID2", "secret2")
+				.writeTo(file);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+		assertTrue(store.reloadIfModified());
+		assertEquals(Collections.singletonList("rotated1"), store.getSecrets("AKID1"));
+		assertEquals(Collections.singletonList("secret2"), store.getSecrets("AKID2"));
+		//不正なファイルの場合は古いマッピングを使い続ける
+		Path broken = dir.resolve("broken.bin");
+		Files.write(broken, new byte[32]);
+		Files.move(broken, file, StandardCopyOption.REPLACE_EXISTING);
+		try {
+			store.reload();
+			fail();
+		} catch (IOException e) {
+			//OK
+		}
+		assertEquals(Collections.singletonList("secret2"), store.getSecrets("AKID2"));
+	}
+}
@@ -0,0 +1,60 @@
+package jp.tokyo.lascaux.sv4.time;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class TimestampsTest {
+
+	/**
+	 * aws4_testsuiteの日付
+	 */
+	@Test
+	public void parse() {
+		assertEquals(1315611360L, Timestamps.parseIso8601Basic("20110909T233600Z"));
+		assertEquals(1315526400L, Timestamps.parseBasicDate("20110909"));
+		assertEquals(1315611360L, Timestamps.parseRfc1123("Mon, 09 Sep 2011 23:36:00 GMT"));
+		assertEquals(1315611360L, Timestamps.parseRfc1123("Mon, 9 Sep 2011 23:36:00 GMT"));
+		assertEquals(1315611360L, Timestamps.parseRfc1123("Tue, 10 Sep 2011 08:36:00 +0900"));
+		assertEquals(0L, Timestamps.parseIso8601Basic("19700101T000000Z"));
+		assertEquals(951782400L, Timestamps.parseBasicDate("20000229"));
+	}
+
+	/**
+	 * 変換できない文字列
+	 */
+	@Test
+	public void parseInvalid() {
+		assertEquals(Timestamps.INVALID, Timestamps.parseIso8601Basic(null));
+		assertEquals(Timestamps.INVALID, Timestamps.parseIso8601Basic("20110909T233600"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseIso8601Basic("20110909 233600Z"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseIso8601Basic("20110931T233600Z"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseIso8601Basic("20110909T243600Z"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseIso8601Basic("2011090AT233600Z"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseBasicDate("20110229"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseBasicDate("2011-9-9"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseRfc1123("Mon, 09 Foo 2011 23:36:00 GMT"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseRfc1123("Mon, 09 Sep 2011 23:36:00 JST"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseRfc1123("Mon 09 Sep 2011 23:36:00 GMT"));
+		assertEquals(Timestamps.INVALID, Timestamps.parseRfc1123("Mon, 09 Sep 2011 23:36 GMT"));
+	}
+
+	/**
+	 * SimpleDateFormatと同じ文字列になること
+	 */
+	@Test
+	public void format() {
+		SimpleDateFormat iso8601f = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.US);
+		iso8601f.setTimeZone(TimeZone.getTimeZone("GMT"));
+		long[] samples = { 0L, 951782400L, 1315611360L, 4102444799L, 1709251199L };
+		for (long sample : samples) {
+			String expected = iso8601f.format(sample * 1000);
+			assertEquals(expected, Timestamps.formatIso8601Basic(sample));
+			assertEquals(sample, Timestamps.parseIso8601Basic(expected));
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package jp.tokyo.lascaux.sv4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class QueryStringCanonicalizerTest {
+	private static final String SIGNATURE = "x-amz-signature";
+
+	/**
+	 * キー、値の順で並べ替えられること
+	 */
+	@Test
+	public void sort() {
+		assertEquals("a=foo&b=foo", canonicalize("b=foo&a=foo"));
+		assertEquals("foo=Zoo&foo=aha", canonicalize("foo=aha&foo=Zoo"));
+		//"="を含めた文字列ではなく、キーで先に比較する
+		assertEquals("a=2&a-b=1", canonicalize("a-b=1&a=2"));
+	}
+
+	/**
+	 * 正規化された形式と違う部分だけが変換されること
+	 */
+	@Test
+	public void normalize() {
+		assertEquals("a=b%20c", canonicalize("a=b+c"));
+		assertEquals("a=b%20c", canonicalize("a=b%20c"));
+		assertEquals("a=%2B%2F", canonicalize("a=%2b%2f"));
+		assertEquals("a=~z", canonicalize("a=%7E%7a"));
+		assertEquals("%E1%88%B4=bar", canonicalize("ሴ=bar"));
+		assertEquals("a=%25%25", canonicalize("a=%25%"));
+		assertEquals("a=%40%3A", canonicalize("a=@:"));
+	}
+
+	/**
+	 * 空のペア、値のないペア、シグネチャーの扱い
+	 */
+	@Test
+	public void emptyAndSignature() {
+		assertNull(canonicalize(""));
+		assertNull(canonicalize("&&"));
+		assertNull(canonicalize("X-Amz-Signature=abc"));
+		assertEquals("a=&b=", canonicalize("b&&a="));
+		assertEquals("X-Amz-Date=20110909T233600Z",
+				canonicalize("X-Amz-Signature=abc&X-Amz-Date=20110909T233600Z"));
+	}
+
+	/**
+	 * 変換が不要な場合は元の文字列の部分文字列を使用すること
+	 */
+	@Test
+	public void unreserved() {
+		String s = "-._~0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+		assertSame(s, PercentEncoder.encode(s));
+		assertEquals(s + "=" + s, canonicalize(s + "=" + s));
+	}
+
+	private static String canonicalize(String rawQuery) {
+		return QueryStringCanonicalizer.canonicalize(rawQuery, SIGNATURE);
+	}
+}
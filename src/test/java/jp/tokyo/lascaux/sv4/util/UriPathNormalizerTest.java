@@ -0,0 +1,68 @@
+package jp.tokyo.lascaux.sv4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import jp.tokyo.lascaux.sv4.util.UriPathNormalizer.Rule;
+
+public class UriPathNormalizerTest {
+
+	/**
+	 * aws4_testsuiteのパスのケース
+	 */
+	@Test
+	public void testSuite() {
+		assertEquals("/", UriPathNormalizer.normalize("/foo/bar/../..", Rule.GENERIC));
+		assertEquals("/", UriPathNormalizer.normalize("/foo/..", Rule.GENERIC));
+		assertEquals("/", UriPathNormalizer.normalize("/./", Rule.GENERIC));
+		assertEquals("/foo", UriPathNormalizer.normalize("/./foo", Rule.GENERIC));
+		assertEquals("/", UriPathNormalizer.normalize("//", Rule.GENERIC));
+		assertEquals("/foo/", UriPathNormalizer.normalize("//foo//", Rule.GENERIC));
+		assertEquals("/%20/foo", UriPathNormalizer.normalize("/%20/foo", Rule.GENERIC));
+		assertEquals("/%E1%88%B4", UriPathNormalizer.normalize("/%E1%88%B4", Rule.GENERIC));
+		assertEquals("/", UriPathNormalizer.normalize("", Rule.GENERIC));
+	}
+
+	/**
+	 * "."と".."の解決と末尾のスラッシュ
+	 */
+	@Test
+	public void dotSegments() {
+		assertEquals("/foo/", UriPathNormalizer.normalize("/foo/.", Rule.GENERIC));
+		assertEquals("/a/c", UriPathNormalizer.normalize("/a/b/../c", Rule.GENERIC));
+		assertEquals("/", UriPathNormalizer.normalize("/../..", Rule.GENERIC));
+		assertEquals("/a/", UriPathNormalizer.normalize("/a/b/..", Rule.GENERIC));
+		assertEquals("/.a/..b", UriPathNormalizer.normalize("/.a/..b", Rule.GENERIC));
+	}
+
+	/**
+	 * パーセントエンコーディングの正規化
+	 */
+	@Test
+	public void encoding() {
+		assertEquals("/~a/%2F/%2B", UriPathNormalizer.normalize("/%7ea/%2f/+", Rule.GENERIC));
+		assertEquals("/a%20b/%E1%88%B4", UriPathNormalizer.normalize("/a b/ሴ", Rule.GENERIC));
+	}
+
+	/**
+	 * S3のルールではスラッシュや"."、".."をそのまま残すこと
+	 */
+	@Test
+	public void s3() {
+		assertEquals("//foo//", UriPathNormalizer.normalize("//foo//", Rule.S3));
+		assertEquals("/foo/../bar/./", UriPathNormalizer.normalize("/foo/../bar/./", Rule.S3));
+		assertEquals("/a%20b/", UriPathNormalizer.normalize("/a b/", Rule.S3));
+	}
+
+	/**
+	 * 変換が不要な場合は同じ文字列を返すこと
+	 */
+	@Test
+	public void canonical() {
+		String path = "/-._~0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz/";
+		assertSame(path, UriPathNormalizer.normalize(path, Rule.GENERIC));
+		assertSame(path, UriPathNormalizer.normalize(path, Rule.S3));
+	}
+}